@@ -0,0 +1,397 @@
+package nl.rutilo.zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/** Content addressed store of the entries of many versions of an archive, like all releases of a
+  * product. Each archive is ingested once: the data of every entry is kept in a blob named by the
+  * SHA-256 of the data, so data that is the same in many versions is only kept (and compressed) once.
+  * A version file (.zversion) holds the header and the entries of a version with the keys of their blobs.
+  * <p>
+  * A version file can be used as a zip file (see ZipPatcher), so patches between any two versions are
+  * generated from the store without the original archives. Blobs are raw deflated, so deflated entries
+  * are copied as is (without inflating and deflating them again) when ingested, when writing the archive
+  * of a version (see writeArchive()) and when added to a patch as a whole.
+  * Blobs that are no longer used by any version after retiring versions are deleted by collectGarbage().
+  * Ingesting and collecting garbage hold an exclusive lock on the store (between processes as well),
+  * so garbage collection never deletes a blob that an ingest found to exist, nor its temporary files.
+  * <pre>
+  * store/.lock
+  * store/blobs/ab/cdef...          (ab being the first two hex digits of the key)
+  * store/versions/name.zversion
+  * </pre>
+  */
+public class BlobStore {
+    public static final String VERSION_EXT = ".zversion";
+    private static final int MAGIC = 0x5A445631; // ZDV1
+    private static final String BLOBS_DIR = "blobs";
+    private static final String VERSIONS_DIR = "versions";
+    private static final String TMP_EXT = ".tmp";
+    private static final String LOCK_FILENAME = ".lock";
+    /** A file lock is held by the whole JVM, so threads of one JVM (like server commands) take turns first */
+    private static final Map<Path,ReentrantLock> jvmLocks = new ConcurrentHashMap<>();
+
+    private final File root;
+
+    /** What was deleted by collectGarbage() */
+    public static class Collected {
+        public final int  blobs;
+        public final long bytes;
+
+        private Collected(int blobs, long bytes) {
+            this.blobs = blobs;
+            this.bytes = bytes;
+        }
+    }
+
+    /** The header and entries of a version. Entries have the crc, size, time and method they have in the
+      * archive and the size of their blob as compressed size.
+      */
+    static class Version {
+        final BlobStore store;
+        final String name;
+        final byte[] headerData;
+        final Map<String,ZipEntry> entries;
+        private final Map<String,String> keys; // per entry name, none for directories
+        private final String headerKey;
+
+        private Version(BlobStore store, String name, byte[] headerData, String headerKey, Map<String,ZipEntry> entries, Map<String,String> keys) { // NOSONAR -- only called when read
+            this.store = store;
+            this.name = name;
+            this.headerData = headerData;
+            this.headerKey = headerKey;
+            this.entries = entries;
+            this.keys = keys;
+        }
+
+        /** Opens a stream of the (uncompressed) data of given entry */
+        InputStream open(String entryName) throws IOException {
+            final String key = keys.get(entryName);
+            if(key == null) {
+                if(entries.containsKey(entryName)) return new ByteArrayInputStream(new byte[0]);
+                throw new IOException("No entry " + entryName + " in version " + name);
+            }
+            return ZipIndex.inflating(Files.newInputStream(store.blobFileOf(key).toPath()), entryName);
+        }
+        /** Opens a stream of the raw deflated data of given entry, of which the compressed size is the length */
+        InputStream openDeflated(String entryName) throws IOException {
+            final String key = keys.get(entryName);
+            if(key == null) throw new IOException("No data of " + entryName + " in version " + name);
+            return Files.newInputStream(store.blobFileOf(key).toPath());
+        }
+        private Set<String> allKeys() {
+            final Set<String> all = new HashSet<>(keys.values());
+            if(!headerKey.isEmpty()) all.add(headerKey);
+            return all;
+        }
+    }
+
+    /** Store in given directory, which is created if it doesn't exist */
+    public BlobStore(File root) throws IOException {
+        this.root = root;
+        Files.createDirectories(new File(root, BLOBS_DIR).toPath());
+        Files.createDirectories(new File(root, VERSIONS_DIR).toPath());
+    }
+
+    static boolean isVersion(File file) {
+        return file.getName().endsWith(VERSION_EXT) && file.isFile();
+    }
+
+    public File getRoot() { return root; }
+
+    /** Names of the versions in this store, sorted */
+    public List<String> getVersions() throws IOException {
+        try(final Stream<Path> files = Files.list(new File(root, VERSIONS_DIR).toPath())) {
+            return files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.endsWith(VERSION_EXT))
+                        .map(name -> name.substring(0, name.length() - VERSION_EXT.length()))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+    /** Version file of given version, which can be given to ZipPatcher as if it were the archive.
+      * The name is checked, so it cannot refer to a file outside the versions directory.
+      */
+    public File versionFileOf(String versionName) throws IOException {
+        if(!versionName.matches("[\\w.+-]+") || versionName.startsWith(".")) throw new IOException("Invalid version name: " + versionName);
+        return new File(new File(root, VERSIONS_DIR), versionName + VERSION_EXT);
+    }
+
+    @FunctionalInterface
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+    /** Runs given code while holding the exclusive lock of this store */
+    private <T> T locked(Locked<T> code) throws IOException {
+        final Path lockPath = new File(root, LOCK_FILENAME).getCanonicalFile().toPath();
+        final ReentrantLock jvmLock = jvmLocks.computeIfAbsent(lockPath, path -> new ReentrantLock());
+        jvmLock.lock();
+        try(final FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.lock(); // released when the channel is closed
+            return code.run();
+        } finally {
+            jvmLock.unlock();
+        }
+    }
+
+    /** Adds the entries of given zip file or directory as given version, replacing any version of that name.
+      * Entries are hashed in parallel (common pool, so every core is used) and only the data of entries
+      * that is not yet in the store is written.
+      */
+    public void ingest(String versionName, File archive) throws IOException {
+        final File versionFile = versionFileOf(versionName);
+        locked(() -> { ingest(versionFile, archive); return null; });
+    }
+    private void ingest(File versionFile, File archive) throws IOException {
+        final ZipIndex index = archive.isDirectory() ? null : ZipIndex.cachedOf(archive);
+        final List<ZipEntry> entries = new ArrayList<>();
+        if(index == null) entries.addAll(DirectoryIndex.indexOf(archive).values());
+        else index.entries.forEach(entry -> entries.add(entry.zipEntry));
+        final byte[] headerData = index == null ? new byte[0] : index.readHeaderData();
+
+        final String[] keys;
+        try(final FileChannel channel = index == null ? null : FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            try {
+                keys = IntStream.range(0, entries.size()).parallel().mapToObj(i -> {
+                    if(entries.get(i).isDirectory()) return "";
+                    try {
+                        return index == null
+                            ? addBlob(() -> Files.newInputStream(new File(archive, entries.get(i).getName()).toPath()), null, 0, 0)
+                            : addBlob(channel, index.entries.get(i));
+                    } catch(final IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).toArray(String[]::new);
+            } catch(final UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        final String headerKey = headerData.length == 0 ? "" : addBlob(() -> new ByteArrayInputStream(headerData), null, 0, 0);
+
+        final Path tmp = Files.createTempFile(versionFile.getParentFile().toPath(), versionFile.getName(), TMP_EXT);
+        try {
+            try(final OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                new DataOutputStream(fileOut).writeInt(MAGIC);
+                final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try(final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(fileOut, deflater))) {
+                    out.writeUTF(headerKey);
+                    out.writeInt(entries.size());
+                    for(int i=0; i<entries.size(); i++) {
+                        final ZipEntry entry = entries.get(i);
+                        out.writeUTF(entry.getName());
+                        out.writeUTF(keys[i]);
+                        out.writeLong(entry.getCrc());
+                        out.writeLong(entry.getSize());
+                        out.writeLong(keys[i].isEmpty() ? 0 : blobFileOf(keys[i]).length());
+                        out.writeLong(entry.getTime());
+                        out.writeInt(entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+            Files.move(tmp, versionFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Reads the version of given version file, which should be in the versions directory of a store */
+    static Version readVersion(File versionFile) throws IOException {
+        final File versionsDir = versionFile.getAbsoluteFile().getParentFile();
+        if(!VERSIONS_DIR.equals(versionsDir.getName())) throw new IOException("Version file is not in a store: " + versionFile);
+        final BlobStore store = new BlobStore(versionsDir.getParentFile());
+        final String name = versionFile.getName().substring(0, versionFile.getName().length() - VERSION_EXT.length());
+
+        try(final InputStream fileIn = new BufferedInputStream(Files.newInputStream(versionFile.toPath()))) {
+            if(new DataInputStream(fileIn).readInt() != MAGIC) throw new IOException("Not a version of a store: " + versionFile);
+            final Inflater inflater = new Inflater();
+            try(final DataInputStream in = new DataInputStream(new InflaterInputStream(fileIn, inflater))) {
+                final String headerKey = in.readUTF();
+                final int count = in.readInt();
+                final Map<String,ZipEntry> entries = new LinkedHashMap<>();
+                final Map<String,String> keys = new LinkedHashMap<>();
+                for(int i=0; i<count; i++) {
+                    final ZipEntry entry = new ZipEntry(in.readUTF());
+                    final String key = in.readUTF();
+                    entry.setCrc(in.readLong());
+                    entry.setSize(in.readLong());
+                    entry.setCompressedSize(in.readLong());
+                    final long time = in.readLong();
+                    if(time != -1) entry.setTime(time);
+                    entry.setMethod(in.readInt());
+                    entries.put(entry.getName(), entry);
+                    if(!key.isEmpty()) keys.put(entry.getName(), key);
+                }
+                final byte[] headerData;
+                if(headerKey.isEmpty()) headerData = new byte[0];
+                else try(final InputStream headerIn = ZipIndex.inflating(Files.newInputStream(store.blobFileOf(headerKey).toPath()), "header")) {
+                    headerData = ZipUtil.exhaust(headerIn);
+                }
+                return new Version(store, name, headerData, headerKey, entries, keys);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+    Version readVersion(String versionName) throws IOException {
+        final File versionFile = versionFileOf(versionName);
+        if(!versionFile.isFile()) throw new IOException("No version " + versionName + " in " + root);
+        return readVersion(versionFile);
+    }
+
+    /** Writes the archive of given version: the header and all entries, in the order of the ingested
+      * archive. Deflated entries are copied from their blobs as is.
+      */
+    public void writeArchive(String versionName, File zipFile) throws IOException {
+        final Version version = readVersion(versionName);
+        Files.deleteIfExists(zipFile.toPath());
+        try(final ZipWriter out = new ZipWriter(zipFile, version.headerData)) {
+            for(final ZipEntry entry : version.entries.values()) {
+                if(entry.getMethod() == ZipEntry.STORED || entry.isDirectory() || !version.keys.containsKey(entry.getName())) {
+                    try(final InputStream in = version.open(entry.getName())) { out.writeEntry(ZipUtil.copyOf(entry), in); }
+                } else {
+                    try(final InputStream in = version.openDeflated(entry.getName())) {
+                        out.writeCompressed(ZipUtil.copyOf(entry), entry.getCrc(), entry.getSize(), entry.getCompressedSize(), in);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Removes given version from the store. Its blobs are only deleted by collectGarbage(). */
+    public boolean retire(String versionName) throws IOException {
+        return Files.deleteIfExists(versionFileOf(versionName).toPath());
+    }
+
+    /** Deletes the blobs that are not used by any version (and left over temporary files) */
+    public Collected collectGarbage() throws IOException {
+        return locked(this::collectUnused);
+    }
+    private Collected collectUnused() throws IOException {
+        final Set<String> used = new HashSet<>();
+        for(final String versionName : getVersions()) used.addAll(readVersion(versionName).allKeys());
+
+        int blobs = 0;
+        long bytes = 0;
+        final List<Path> dirs;
+        try(final Stream<Path> list = Files.list(new File(root, BLOBS_DIR).toPath())) {
+            dirs = list.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        for(final Path dir : dirs) {
+            final List<Path> files;
+            try(final Stream<Path> list = Files.list(dir)) {
+                files = list.collect(Collectors.toList());
+            }
+            int kept = 0;
+            for(final Path file : files) {
+                final String key = dir.getFileName().toString() + file.getFileName().toString();
+                if(used.contains(key)) { kept++; continue; }
+                bytes += Files.size(file);
+                Files.delete(file);
+                if(!key.endsWith(TMP_EXT)) blobs++;
+            }
+            if(kept == 0) Files.deleteIfExists(dir);
+        }
+        return new Collected(blobs, bytes);
+    }
+
+    /** Size of all blobs in this store */
+    public long getBlobBytes() throws IOException {
+        try(final Stream<Path> files = Files.walk(new File(root, BLOBS_DIR).toPath())) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+
+    File blobFileOf(String key) {
+        return new File(new File(new File(root, BLOBS_DIR), key.substring(0, 2)), key.substring(2));
+    }
+
+    @FunctionalInterface
+    private interface Opener {
+        InputStream open() throws IOException;
+    }
+
+    /** Adds the blob of an entry of a zip file. Deflated data is copied as is. */
+    private String addBlob(FileChannel channel, ZipIndex.Entry entry) throws IOException {
+        final boolean deflated = entry.method == ZipEntry.DEFLATED;
+        return addBlob(() -> ZipIndex.openEntry(channel, entry, /*closeChannel:*/false),
+                       deflated ? channel : null, deflated ? ZipIndex.dataOffsetOf(channel, entry) : 0, deflated ? entry.compressedSize : 0);
+    }
+    /** Hashes the data and writes its blob if not already in the store: deflated, or else copied from the
+      * deflated data at given offset of given channel. Returns the key of the blob.
+      */
+    private String addBlob(Opener data, FileChannel deflated, long deflatedOffset, long deflatedLength) throws IOException {
+        final MessageDigest digest = ExactLayout.newDigest();
+        final byte[] buf = Pools.borrowBuffer();
+        try(final InputStream in = data.open()) {
+            for(int n; (n = in.read(buf)) >= 0; ) digest.update(buf, 0, n);
+        } finally {
+            Pools.release(buf);
+        }
+        final String key = ExactLayout.toHex(digest.digest());
+        final File blobFile = blobFileOf(key);
+        if(blobFile.exists()) return key;
+
+        Files.createDirectories(blobFile.getParentFile().toPath());
+        final Path tmp = Files.createTempFile(blobFile.getParentFile().toPath(), blobFile.getName(), TMP_EXT);
+        try {
+            if(deflated != null) {
+                try(final FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    for(long pos = 0; pos < deflatedLength; ) {
+                        final long n = deflated.transferTo(deflatedOffset + pos, deflatedLength - pos, out);
+                        if(n <= 0) throw new IOException("Unexpected end of file while copying");
+                        pos += n;
+                    }
+                }
+            } else {
+                final Deflater deflater = Pools.borrowDeflater(Deflater.DEFAULT_COMPRESSION, /*nowrap:*/true);
+                try(final InputStream in = data.open();
+                    final OutputStream out = new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), deflater, ZipUtil.COPY_BUFFER_SIZE)) {
+                    ZipUtil.copyAndReturnCount(in, out);
+                } finally {
+                    Pools.release(deflater, /*nowrap:*/true);
+                }
+            }
+            try {
+                Files.move(tmp, blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(final FileAlreadyExistsException e) {
+                // added concurrently, with the same data
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return key;
+    }
+}
@@ -7,35 +7,123 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.function.UnaryOperator;
+import java.util.regex.PatternSyntaxException;
 
 public class CLIArgs {
     public final String baseFile;
     public final String compareWith;
     public final String generatePatch;
+    public final boolean exact;
+    /** Number of shard files to spread the patch over, 1 for a single patch file */
+    public final int shards;
+    /** Replaced entries are deflated with their base version as preset dictionary */
+    public final boolean dictionary;
+    /** Replaced class files are encoded as delta against their base version */
+    public final boolean classDelta;
+    /** Added entries can be encoded against the most similar base entry */
+    public final boolean similar;
+    /** Small added and replaced entries are put in solid groups (see SolidGroups) */
+    public final boolean solid;
+    /** Add the merkle tree of the compare-with file to the patch */
+    public final boolean merkleTree;
+    /** Only print the estimated cost of the patch (see PatchPlan) */
+    public final boolean plan;
+    /** Ratio of the target archive above which the plan recommends shipping the archive instead */
+    public final double maxRatio;
+    public final EntryFilter filter;
+    /** Output format of the listed differences */
+    public final DiffFormat format;
     public final String patchWith;
     public final String patchTo;
+    /** File or http(s) url of the target zip to patch to by fetching only the ranges of changed entries */
+    public final String fetchFrom;
+    public final boolean inPlace;
+    public final boolean dryRun;
+    /** Portable index file to export the base file to */
+    public final String exportIndex;
+    /** Directory of the blob store to ingest the base file in or retire a version from (see BlobStore) */
+    public final String store;
+    /** Version name to ingest the base file as */
+    public final String ingest;
+    /** Version to remove from the store, after which unused data is deleted */
+    public final String retire;
+    /** Check the integrity of all entries of the base file */
+    public final boolean verify;
     public final boolean ignoreValidation;
     public final boolean verbose;
     public final boolean help;
+    /** Port to serve commands on, or 0 when not serving */
+    public final int serve;
+    /** Port of the server to run the command on, or 0 to run it here */
+    public final int server;
 
-    private CLIArgs(String baseFile, String compareWith, String generatePatch, // NOSONAR -- only called from createFor()
-                    String patchWith, String patchTo,
-                    boolean ignoreValidation, boolean verbose, boolean help) {
+    private CLIArgs(String baseFile, String compareWith, String generatePatch, boolean exact, int shards, boolean dictionary, boolean classDelta, boolean similar, boolean solid, boolean merkleTree, boolean plan, double maxRatio, EntryFilter filter, DiffFormat format, // NOSONAR -- only called from createFor()
+                    String patchWith, String patchTo, String fetchFrom, boolean inPlace, boolean dryRun, String exportIndex, String store, String ingest, String retire,
+                    boolean verify, boolean ignoreValidation, boolean verbose, boolean help, int serve, int server) {
         this.baseFile = baseFile;
         this.compareWith = compareWith;
         this.generatePatch = generatePatch;
+        this.exact = exact;
+        this.shards = shards;
+        this.dictionary = dictionary;
+        this.classDelta = classDelta;
+        this.similar = similar;
+        this.solid = solid;
+        this.merkleTree = merkleTree;
+        this.plan = plan;
+        this.maxRatio = maxRatio;
+        this.filter = filter;
+        this.format = format;
         this.patchWith = patchWith;
         this.patchTo = patchTo;
+        this.fetchFrom = fetchFrom;
+        this.inPlace = inPlace;
+        this.dryRun = dryRun;
+        this.exportIndex = exportIndex;
+        this.store = store;
+        this.ingest = ingest;
+        this.retire = retire;
+        this.verify = verify;
         this.ignoreValidation = ignoreValidation;
         this.verbose = verbose;
         this.help = help;
+        this.serve = serve;
+        this.server = server;
 
-        if(!help) {
-            if(baseFile    == null)                          throw error("No base-file provided.");
+        if(serve > 0 && (baseFile != null || server > 0)) throw error("Cannot serve and run a command at the same time.");
+        if(!help && serve == 0) {
+            if(baseFile    == null && retire == null)        throw error("No base-file provided.");
             if(compareWith == null && generatePatch != null) throw error("Cannot create patch without a compare-with.");
-            if(compareWith == null && patchWith     == null) throw error("No compare and not patch. Nothing to do.");
+            if(exact       && generatePatch == null && !plan) throw error("Cannot create exact patch without a generate-patch.");
+            if(exact       && !filter.isAll())               throw error("Cannot create exact patch of filtered entries.");
+            if(shards > 1  && generatePatch == null && !plan) throw error("Cannot create shards without a generate-patch.");
+            if(shards > 1  && exact)                         throw error("Cannot create exact patch in shards.");
+            if(dictionary  && generatePatch == null && !plan) throw error("Cannot use dictionaries without a generate-patch.");
+            if(dictionary  && (exact || shards > 1))         throw error("Cannot use dictionaries for an exact or sharded patch.");
+            if(classDelta  && generatePatch == null && !plan) throw error("Cannot use class deltas without a generate-patch.");
+            if(classDelta  && (exact || shards > 1))         throw error("Cannot use class deltas for an exact or sharded patch.");
+            if(similar     && !dictionary && !classDelta)    throw error("Cannot use similar entries without dictionaries or class deltas.");
+            if(solid       && generatePatch == null)         throw error("Cannot use solid groups without a generate-patch.");
+            if(solid       && (exact || shards > 1))         throw error("Cannot use solid groups for an exact or sharded patch.");
+            if(merkleTree  && generatePatch == null)         throw error("Cannot add merkle tree without a generate-patch.");
+            if(compareWith == null && !filter.isAll())       throw error("Cannot filter without a compare-with.");
+            if(plan        && compareWith == null)           throw error("Cannot plan a patch without a compare-with.");
+            if(format != DiffFormat.TEXT && (compareWith == null || generatePatch != null || plan)) throw error("Cannot use a format other than text except when listing differences.");
+            if(verify      && (compareWith != null || patchWith != null || fetchFrom != null)) throw error("Cannot verify and compare or patch at the same time.");
+            if(exportIndex != null && (compareWith != null || patchWith != null || fetchFrom != null || verify)) throw error("Cannot export index and do something else at the same time.");
+            if(store       == null && (ingest != null || retire != null)) throw error("Cannot ingest or retire without a store.");
+            if(store       != null && ingest == null && retire == null)   throw error("Cannot use a store without ingest or retire.");
+            if(store       != null && (compareWith != null || patchWith != null || fetchFrom != null || verify || exportIndex != null)) throw error("Cannot update a store and do something else at the same time.");
+            if(retire      != null && baseFile != null && ingest == null) throw error("Cannot retire with a base-file without ingesting it.");
+            if(compareWith == null && patchWith == null && fetchFrom == null && !verify && exportIndex == null && store == null) throw error("No compare and not patch. Nothing to do.");
+            if(fetchFrom   != null && (compareWith != null || patchWith != null)) throw error("Cannot fetch from a target and compare or patch with a patch file at the same time.");
+            if(fetchFrom   != null && !RangeSource.isUrl(fetchFrom) && !new File(fetchFrom).exists()) throw error("Cannot fetch -- file does not exist: " + fetchFrom);
             if(patchWith   != null && compareWith   != null) throw error("Cannot compare when patching. Remove the -compare-with.");
             if(patchWith   != null && !new File(patchWith).exists()) throw error("Cannot patch -- file does not exist: " + patchWith);
+            if(inPlace     && patchWith == null)                 throw error("Cannot patch in place without a patch-with.");
+            if(inPlace     && patchTo   != null)                 throw error("Cannot patch in place and patch to another file.");
+            if(dryRun      && patchWith == null)                 throw error("Cannot dry-run without a patch-with.");
+            if(dryRun      && (patchTo != null || inPlace))      throw error("Cannot dry-run and patch at the same time.");
         }
     }
 
@@ -48,25 +136,97 @@ public class CLIArgs {
         final String baseFile          = getAndRemoveArgOrNull(args, "-f", "--base-file");
         final String compareWith       = getAndRemoveArgOrNull(args, "-c", "--compare-with");
               String generatePatch     = getAndRemoveArgOrNull(args, "-g", "--generate-patch");
+        final boolean exact            = getAndRemoveArgOrFalse(args, "-e", "--exact");
+        final int shards               = shardsOf(getAndRemoveArgOrNull(args, "-k", "--shards"));
+        final boolean dictionary       = getAndRemoveArgOrFalse(args, "-D", "--dictionary");
+        final boolean classDelta       = getAndRemoveArgOrFalse(args, "-C", "--class-delta");
+        final boolean similar          = getAndRemoveArgOrFalse(args, "-S", "--similar");
+        final boolean solid            = getAndRemoveArgOrFalse(args, "-G", "--solid");
+        final boolean merkleTree       = getAndRemoveArgOrFalse(args, "-m", "--merkle-tree");
+        final boolean plan             = getAndRemoveArgOrFalse(args, "-P", "--plan");
+        final String maxRatioArg       = getAndRemoveArgOrNull(args, "-R", "--max-ratio");
+        final double maxRatio          = ratioOf(maxRatioArg);
+        final List<String> includes    = getAndRemoveArgs(args, "-I", "--include");
+        final List<String> excludes    = getAndRemoveArgs(args, "-X", "--exclude");
+        final DiffFormat format        = formatOf(getAndRemoveArgOrNull(args, "-F", "--format"));
         final String patchWith         = getAndRemoveArgOrNull(args, "-p", "--patch-with");
               String patchTo           = getAndRemoveArgOrNull(args, "-t", "--patch-to");
+        final String fetchFrom         = getAndRemoveArgOrNull(args, "-u", "--fetch-from");
+        final boolean inPlace          = getAndRemoveArgOrFalse(args, "-d", "--in-place");
+        final boolean dryRun           = getAndRemoveArgOrFalse(args, "-n", "--dry-run");
+        final boolean verify           = getAndRemoveArgOrFalse(args, "-V", "--verify");
+              String exportIndex       = getAndRemoveArgOrNull(args, "-x", "--export-index");
+        final String store             = getAndRemoveArgOrNull(args, "-b", "--store");
+        final String ingest            = getAndRemoveArgOrNull(args, "-a", "--ingest");
+        final String retire            = getAndRemoveArgOrNull(args, "-y", "--retire");
         final boolean ignoreValidation = getAndRemoveArgOrFalse(args, "-i", "--ignore-validation");
         final boolean verbose          = getAndRemoveArgOrFalse(args, "-v", "--verbose");
+        final int serve                = portOf(getAndRemoveArgOrNull(args, "-s", "--serve"));
+        final int server               = portOf(getAndRemoveArgOrNull(args, "-r", "--server"));
         final boolean help             = argsIn.isEmpty()
                                      || argsIn.contains("?")
                                      || getAndRemoveArgOrFalse(args, "-?", "-h", "-help");
 
         if(!argsIn.isEmpty() && !help) {
             if(!args.isEmpty()) throw error("Unexpected arguments:", String.join(", ", args));
+            if(maxRatioArg != null && !plan) throw error("Cannot use a max ratio without a plan.");
 
-            if(baseFile != null && patchWith != null && patchTo == null) {
+            if(baseFile != null && (patchWith != null || fetchFrom != null) && patchTo == null && !inPlace && !dryRun) {
                 patchTo = replaceExt(baseFile, ext -> "-new" + ext);
             }
             if(generatePatch != null && !hasExt(generatePatch)) {
                 generatePatch += ".zpatch";
             }
+            if(exportIndex != null && !hasExt(exportIndex)) {
+                exportIndex += IndexManifest.EXT;
+            }
+        }
+        final EntryFilter filter;
+        try {
+            filter = new EntryFilter(includes, excludes);
+        } catch(final PatternSyntaxException e) {
+            throw error("Invalid pattern:", e.getPattern());
         }
-        return new CLIArgs(baseFile, compareWith, generatePatch, patchWith, patchTo, ignoreValidation, verbose, help);
+        return new CLIArgs(baseFile, compareWith, generatePatch, exact, shards, dictionary, classDelta, similar, solid, merkleTree, plan, maxRatio, filter, format, patchWith, patchTo, fetchFrom, inPlace, dryRun, exportIndex, store, ingest, retire, verify, ignoreValidation, verbose, help, serve, server);
+    }
+
+    /** Arguments of the command (so without serve or server) where paths are absolute, to run the command elsewhere */
+    public List<String> toCommandArgs() {
+        final List<String> args = new ArrayList<>();
+        if(help) args.add("--help");
+        addPathArg(args, "--base-file",      baseFile);
+        addPathArg(args, "--compare-with",   compareWith);
+        addPathArg(args, "--generate-patch", generatePatch);
+        addPathArg(args, "--patch-with",     patchWith);
+        addPathArg(args, "--patch-to",       patchTo);
+        if(fetchFrom != null) { args.add("--fetch-from"); args.add(RangeSource.isUrl(fetchFrom) ? fetchFrom : new File(fetchFrom).getAbsolutePath()); }
+        addPathArg(args, "--export-index",   exportIndex);
+        addPathArg(args, "--store",          store);
+        if(ingest != null) { args.add("--ingest"); args.add(ingest); }
+        if(retire != null) { args.add("--retire"); args.add(retire); }
+        filter.getIncludes().forEach(pattern -> { args.add("--include"); args.add(pattern); });
+        filter.getExcludes().forEach(pattern -> { args.add("--exclude"); args.add(pattern); });
+        if(shards > 1)     { args.add("--shards"); args.add(String.valueOf(shards)); }
+        if(format != DiffFormat.TEXT) { args.add("--format"); args.add(format.getName()); }
+        if(exact)            args.add("--exact");
+        if(dictionary)       args.add("--dictionary");
+        if(classDelta)       args.add("--class-delta");
+        if(similar)          args.add("--similar");
+        if(solid)            args.add("--solid");
+        if(merkleTree)       args.add("--merkle-tree");
+        if(plan)             args.add("--plan");
+        if(maxRatio != new PatchOptions().getMaxPatchRatio()) { args.add("--max-ratio"); args.add(String.valueOf(maxRatio)); }
+        if(inPlace)          args.add("--in-place");
+        if(dryRun)           args.add("--dry-run");
+        if(verify)           args.add("--verify");
+        if(ignoreValidation) args.add("--ignore-validation");
+        if(verbose)          args.add("--verbose");
+        return args;
+    }
+    private static void addPathArg(List<String> args, String name, String path) {
+        if(path == null) return;
+        args.add(name);
+        args.add(new File(path).getAbsolutePath());
     }
 
     private static RuntimeException error(String... msg) {
@@ -84,6 +244,48 @@ public class CLIArgs {
         }
         return null;
     }
+    /** For options that can be given multiple times */
+    private static List<String> getAndRemoveArgs(List<String> args, String... names) {
+        final List<String> values = new ArrayList<>();
+        for(String value; (value = getAndRemoveArgOrNull(args, names)) != null; ) values.add(value);
+        return values;
+    }
+    private static int portOf(String value) {
+        if(value == null) return 0;
+        try {
+            final int port = Integer.parseInt(value);
+            if(port > 0 && port <= 0xFFFF) return port;
+        } catch(final NumberFormatException e) {
+            // handled below
+        }
+        throw error("Invalid port:", value);
+    }
+    private static int shardsOf(String value) {
+        if(value == null) return 1;
+        try {
+            final int count = Integer.parseInt(value);
+            if(count > 0) return count;
+        } catch(final NumberFormatException e) {
+            // handled below
+        }
+        throw error("Invalid shard count:", value);
+    }
+    private static double ratioOf(String value) {
+        if(value == null) return new PatchOptions().getMaxPatchRatio();
+        try {
+            final double ratio = Double.parseDouble(value);
+            if(ratio > 0) return ratio;
+        } catch(final NumberFormatException e) {
+            // handled below
+        }
+        throw error("Invalid ratio:", value);
+    }
+    private static DiffFormat formatOf(String value) {
+        if(value == null) return DiffFormat.TEXT;
+        final DiffFormat format = DiffFormat.of(value);
+        if(format == null) throw error("Invalid format:", value);
+        return format;
+    }
     private static boolean getAndRemoveArgOrFalse(List<String> args, String... names) {
         final Set<String> found = new HashSet<>();
         for(final String name : names) {
@@ -0,0 +1,440 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Delta of a .class file against its base version. A small source change shifts constant pool indices
+  * throughout a class, which defeats generic deltas, so:
+  * <ul>
+  * <li>The constant pool entries are matched on their resolved content. The new pool is encoded as a
+  *     copy of an old entry (with its references remapped) or a literal entry, for each entry.</li>
+  * <li>The old class body (everything after the constant pool) is remapped to the new pool indices,
+  *     which predicts most of the new body. The new body is encoded as copies from that prediction
+  *     and inserted bytes. Unknown attributes are not remapped, which only makes the delta larger.</li>
+  * </ul>
+  * The delta is deflated with the start of the base as preset dictionary. Encoding checks that
+  * decoding reproduces the class exactly, so a delta is either exact or not created at all.
+  */
+class ClassDelta {
+    private ClassDelta() { /*singleton*/ }
+    private static final int MAGIC = 0x5A434431; // ZCD1
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int HEADER_SIZE = 10; // magic, minor, major, pool count
+    private static final int MIN_MATCH = 8;
+    private static final int OP_COPY = 0;
+    private static final int OP_LITERAL = 1;
+    private static final int OP_INSERT = 1;
+    private static final int OP_END = 2;
+
+    static boolean isClassFile(String name) {
+        return name.endsWith(".class");
+    }
+
+    /** Returns the delta that turns base into target, or null if either is not a (supported) class file */
+    static byte[] encode(byte[] base, byte[] target) {
+        try {
+            final Pool oldPool = new Pool(base);
+            final Pool newPool = new Pool(target);
+            final int[] newToOld = matchPools(oldPool, newPool);
+            final int[] oldToNew = oldToNewOf(newToOld, oldPool.count);
+            final byte[] predicted = remappedBody(base, oldPool, oldToNew);
+
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            new DataOutputStream(bout).writeInt(MAGIC);
+            try(final DataOutputStream out = new DataOutputStream(ZipUtil.deflating(bout, dictionaryOf(base)))) {
+                out.write(target, 0, HEADER_SIZE);
+                for(int i=1; i<newPool.count; i++) {
+                    if(newPool.offsets[i] < 0) continue; // second slot of a long or double
+                    if(newToOld[i] > 0) {
+                        out.writeByte(OP_COPY);
+                        out.writeShort(newToOld[i]);
+                    } else {
+                        out.writeByte(OP_LITERAL);
+                        out.write(target, newPool.offsets[i], newPool.lengthOf(i));
+                    }
+                }
+                writeBodyDelta(out, predicted, target, newPool.end);
+            }
+            final byte[] delta = bout.toByteArray();
+            return Arrays.equals(decode(base, delta), target) ? delta : null;
+        } catch(final IOException | RuntimeException e) {
+            return null; // not a class file we understand
+        }
+    }
+
+    /** Returns the target class of given delta and base */
+    static byte[] decode(byte[] base, byte[] delta) throws IOException {
+        final Pool oldPool = new Pool(base);
+        final ByteArrayInputStream deltaIn = new ByteArrayInputStream(delta);
+        if(new DataInputStream(deltaIn).readInt() != MAGIC) throw new IOException("Invalid class delta");
+
+        try(final DataInputStream in = new DataInputStream(ZipIndex.inflating(deltaIn, "class delta", dictionaryOf(base)))) {
+            final ByteArrayOutputStream target = new ByteArrayOutputStream(base.length);
+            final byte[] header = new byte[HEADER_SIZE];
+            in.readFully(header);
+            target.write(header);
+            final int count = u2(header, 8);
+
+            // first all ops, because copied entries may refer to entries later in the pool
+            final int[] newToOld = new int[count];
+            final byte[][] literals = new byte[count][];
+            for(int i=1; i<count; i++) {
+                final int op = in.readUnsignedByte();
+                final int tag;
+                if(op == OP_COPY) {
+                    newToOld[i] = in.readUnsignedShort();
+                    tag = base[oldPool.offsets[newToOld[i]]];
+                } else {
+                    tag = in.readUnsignedByte();
+                    literals[i] = readEntry(in, tag);
+                }
+                if(tag == 5 || tag == 6) i++; // long and double take two slots
+            }
+            final int[] oldToNew = oldToNewOf(newToOld, oldPool.count);
+            for(int i=1; i<count; i++) {
+                if(literals[i] != null) target.write(literals[i]);
+                else if(newToOld[i] > 0) target.write(remappedEntry(base, oldPool, newToOld[i], oldToNew));
+            }
+            readBodyDelta(in, remappedBody(base, oldPool, oldToNew), target);
+            return target.toByteArray();
+        } catch(final EOFException | RuntimeException e) {
+            throw new IOException("Invalid class delta", e);
+        }
+    }
+
+    private static byte[] dictionaryOf(byte[] base) throws IOException {
+        return PresetDictionary.dictionaryOf(new ByteArrayInputStream(base), PresetDictionary.MAX_SIZE);
+    }
+
+    /** The constant pool of a class file: offset of each entry (-1 for unused slots) and resolved keys */
+    private static class Pool {
+        final byte[] data;
+        final int count;
+        final int[] offsets;
+        final int end;
+        private final String[] keys;
+
+        Pool(byte[] data) throws IOException {
+            if(data.length < HEADER_SIZE || (int)u4(data, 0) != CLASS_MAGIC) throw new IOException("Not a class file");
+            this.data = data;
+            count = u2(data, 8);
+            offsets = new int[count];
+            keys = new String[count];
+            offsets[0] = -1;
+            int pos = HEADER_SIZE;
+            for(int i=1; i<count; i++) {
+                offsets[i] = pos;
+                pos += entryLength(data, pos);
+                if(data[offsets[i]] == 5 || data[offsets[i]] == 6) offsets[++i] = -1;
+            }
+            end = pos;
+        }
+        int lengthOf(int i) { return entryLength(data, offsets[i]); }
+        boolean isEntry(int i) { return i > 0 && i < count && offsets[i] >= 0; }
+
+        /** Content of the entry where references are replaced by the keys of what they refer to */
+        String keyOf(int i) { return keyOf(i, 0); }
+        private String keyOf(int i, int depth) {
+            if(!isEntry(i) || depth > 8) throw new IllegalStateException("Invalid constant pool reference: " + i);
+            if(keys[i] != null) return keys[i];
+            final int offset = offsets[i];
+            final int[] refs = refOffsetsOf(data[offset]);
+            final StringBuilder key = new StringBuilder();
+            int pos = offset;
+            for(final int ref : refs) {
+                key.append(new String(data, pos, offset + ref - pos, StandardCharsets.ISO_8859_1));
+                key.append('(').append(keyOf(u2(data, offset + ref), depth + 1)).append(')');
+                pos = offset + ref + 2;
+            }
+            key.append(new String(data, pos, offset + lengthOf(i) - pos, StandardCharsets.ISO_8859_1));
+            return keys[i] = key.toString();
+        }
+    }
+
+    private static int entryLength(byte[] data, int pos) {
+        switch(data[pos]) {
+            case 1:                         return 3 + u2(data, pos + 1); // utf8
+            case 7: case 8: case 16:
+            case 19: case 20:               return 3; // class, string, method type, module, package
+            case 15:                        return 4; // method handle
+            case 3: case 4: case 9: case 10:
+            case 11: case 12: case 17: case 18: return 5; // int, float, refs, name and type, (invoke) dynamic
+            case 5: case 6:                 return 9; // long, double
+            default: throw new IllegalStateException("Unknown constant pool tag: " + data[pos]);
+        }
+    }
+    /** Offsets of the constant pool references within an entry with given tag */
+    private static int[] refOffsetsOf(int tag) {
+        switch(tag) {
+            case 7: case 8: case 16: case 19: case 20: return new int[] { 1 };
+            case 9: case 10: case 11: case 12:        return new int[] { 1, 3 };
+            case 15:                                  return new int[] { 2 };
+            case 17: case 18:                         return new int[] { 3 }; // first is a bootstrap method index
+            default:                                  return new int[0];
+        }
+    }
+    private static byte[] readEntry(DataInputStream in, int tag) throws IOException {
+        final byte[] start = { (byte)tag, 0, 0 };
+        final int length;
+        if(tag == 1) {
+            in.readFully(start, 1, 2);
+            length = entryLength(start, 0);
+        } else {
+            length = entryLength(start, 0);
+        }
+        final byte[] entry = Arrays.copyOf(start, length);
+        final int known = tag == 1 ? 3 : 1;
+        in.readFully(entry, known, length - known);
+        return entry;
+    }
+
+    /** Old pool index for each new pool index, 0 for new entries that are literal. Copies are only used when
+      * the copied and remapped old entry is exactly the new entry.
+      */
+    private static int[] matchPools(Pool oldPool, Pool newPool) {
+        final Map<String,Integer> oldByKey = new HashMap<>();
+        for(int i=oldPool.count - 1; i>0; i--) if(oldPool.isEntry(i)) oldByKey.put(oldPool.keyOf(i), i);
+
+        final int[] newToOld = new int[newPool.count];
+        for(int i=1; i<newPool.count; i++) {
+            if(newPool.isEntry(i)) newToOld[i] = oldByKey.getOrDefault(newPool.keyOf(i), 0);
+        }
+        for(boolean changed = true; changed; ) { // demoting a copy to literal may change the remapping of others
+            changed = false;
+            final int[] oldToNew = oldToNewOf(newToOld, oldPool.count);
+            for(int i=1; i<newPool.count; i++) {
+                if(newToOld[i] == 0) continue;
+                final byte[] remapped = remappedEntry(oldPool.data, oldPool, newToOld[i], oldToNew);
+                final byte[] actual = Arrays.copyOfRange(newPool.data, newPool.offsets[i], newPool.offsets[i] + newPool.lengthOf(i));
+                if(!Arrays.equals(remapped, actual)) { newToOld[i] = 0; changed = true; }
+            }
+        }
+        return newToOld;
+    }
+    /** New index of each old index: the first new entry that copies it, 0 when not copied */
+    private static int[] oldToNewOf(int[] newToOld, int oldCount) {
+        final int[] oldToNew = new int[oldCount];
+        for(int i=1; i<newToOld.length; i++) {
+            final int old = newToOld[i];
+            if(old > 0 && old < oldCount && oldToNew[old] == 0) oldToNew[old] = i;
+        }
+        return oldToNew;
+    }
+    private static int remap(int oldIndex, int[] oldToNew) {
+        return oldIndex > 0 && oldIndex < oldToNew.length && oldToNew[oldIndex] > 0 ? oldToNew[oldIndex] : oldIndex;
+    }
+    private static byte[] remappedEntry(byte[] base, Pool oldPool, int oldIndex, int[] oldToNew) {
+        final int offset = oldPool.offsets[oldIndex];
+        final byte[] entry = Arrays.copyOfRange(base, offset, offset + oldPool.lengthOf(oldIndex));
+        for(final int ref : refOffsetsOf(entry[0])) put2(entry, ref, remap(u2(entry, ref), oldToNew));
+        return entry;
+    }
+
+    /** The body of the base (everything after the constant pool) with its pool references remapped to the new
+      * indices, as far as they can be found. When the body can't be parsed, the rest is left as is.
+      */
+    private static byte[] remappedBody(byte[] base, Pool oldPool, int[] oldToNew) {
+        final byte[] body = Arrays.copyOfRange(base, oldPool.end, base.length);
+        try {
+            new BodyRemapper(body, oldPool, oldToNew).remapClass();
+        } catch(final RuntimeException e) {
+            // unexpected structure: the remainder is not remapped
+        }
+        return body;
+    }
+
+    private static class BodyRemapper {
+        final byte[] body;
+        final Pool pool;
+        final int[] oldToNew;
+        int pos;
+        BodyRemapper(byte[] body, Pool pool, int[] oldToNew) { this.body = body; this.pool = pool; this.oldToNew = oldToNew; }
+
+        void remapClass() {
+            pos = 2;                       // access flags
+            ref(); ref();                  // this, super
+            for(int n = nextU2(); n > 0; n--) ref(); // interfaces
+            for(int members = 0; members < 2; members++) { // fields, methods
+                for(int n = nextU2(); n > 0; n--) {
+                    pos += 2; ref(); ref(); // access flags, name, descriptor
+                    attributes();
+                }
+            }
+            attributes();
+        }
+        void attributes() {
+            for(int n = nextU2(); n > 0; n--) {
+                final String name = utf8Of(u2(body, pos));
+                ref();
+                final int length = (int)u4(body, pos);
+                pos += 4;
+                final int end = pos + length;
+                attribute(name, end);
+                pos = end;
+            }
+        }
+        void attribute(String name, int end) {
+            switch(name) {
+                case "Code":
+                    pos += 4; // max stack, max locals
+                    final int codeLength = (int)u4(body, pos);
+                    pos += 4;
+                    code(pos, pos + codeLength);
+                    pos += codeLength;
+                    for(int n = nextU2(); n > 0; n--) { pos += 6; ref(); } // exception table
+                    attributes();
+                    break;
+                case "ConstantValue": case "SourceFile": case "Signature": case "NestHost":
+                    ref();
+                    break;
+                case "Exceptions": case "NestMembers": case "PermittedSubclasses":
+                    for(int n = nextU2(); n > 0; n--) ref();
+                    break;
+                case "InnerClasses":
+                    for(int n = nextU2(); n > 0; n--) { ref(); ref(); ref(); pos += 2; }
+                    break;
+                case "EnclosingMethod":
+                    ref(); ref();
+                    break;
+                case "LocalVariableTable": case "LocalVariableTypeTable":
+                    for(int n = nextU2(); n > 0; n--) { pos += 4; ref(); ref(); pos += 2; }
+                    break;
+                case "BootstrapMethods":
+                    for(int n = nextU2(); n > 0; n--) { ref(); for(int args = nextU2(); args > 0; args--) ref(); }
+                    break;
+                case "StackMapTable":
+                    for(int n = nextU2(); n > 0 && pos < end; n--) frame();
+                    break;
+                default: // no (known) references
+            }
+        }
+        void frame() {
+            final int type = body[pos++] & 0xFF;
+            if(type < 64) return;
+            if(type < 128) { verificationType(); return; }
+            if(type == 247) { pos += 2; verificationType(); return; }
+            if(type < 252) { pos += 2; return; }
+            if(type < 255) { pos += 2; for(int i = type - 251; i > 0; i--) verificationType(); return; }
+            pos += 2;
+            for(int n = nextU2(); n > 0; n--) verificationType();
+            for(int n = nextU2(); n > 0; n--) verificationType();
+        }
+        void verificationType() {
+            final int tag = body[pos++];
+            if(tag == 7) ref(); // object
+            else if(tag == 8) pos += 2; // uninitialized
+        }
+        void code(int start, int end) {
+            for(int pc = start; pc < end; ) {
+                final int op = body[pc] & 0xFF;
+                switch(op) {
+                    case 0x12: // ldc
+                        final int mapped = remap(body[pc + 1] & 0xFF, oldToNew);
+                        if(mapped <= 0xFF) body[pc + 1] = (byte)mapped;
+                        break;
+                    case 0x13: case 0x14: case 0xb2: case 0xb3: case 0xb4: case 0xb5: case 0xb6: case 0xb7:
+                    case 0xb8: case 0xb9: case 0xba: case 0xbb: case 0xbd: case 0xc0: case 0xc1: case 0xc5:
+                        put2(body, pc + 1, remap(u2(body, pc + 1), oldToNew));
+                        break;
+                    default:
+                }
+                pc += instructionLength(body, pc, start);
+            }
+        }
+        String utf8Of(int index) {
+            if(!pool.isEntry(index) || pool.data[pool.offsets[index]] != 1) return "";
+            final int offset = pool.offsets[index];
+            return new String(pool.data, offset + 3, u2(pool.data, offset + 1), StandardCharsets.UTF_8);
+        }
+        int nextU2() { final int value = u2(body, pos); pos += 2; return value; }
+        void ref() { put2(body, pos, remap(u2(body, pos), oldToNew)); pos += 2; }
+    }
+
+    private static int instructionLength(byte[] code, int pc, int codeStart) {
+        final int op = code[pc] & 0xFF;
+        if(op == 0xaa || op == 0xab) { // tableswitch, lookupswitch
+            final int pad = 3 - ((pc - codeStart) % 4);
+            final int base = pc + 1 + pad;
+            if(op == 0xaa) return 1 + pad + 12 + 4 * ((int)u4(code, base + 8) - (int)u4(code, base + 4) + 1);
+            return 1 + pad + 8 + 8 * (int)u4(code, base + 4);
+        }
+        if(op == 0xc4) return (code[pc + 1] & 0xFF) == 0x84 ? 6 : 4; // wide
+        if(op <= 0x0f || (op >= 0x1a && op <= 0x35) || (op >= 0x3b && op <= 0x83) || (op >= 0x85 && op <= 0x98)
+           || (op >= 0xac && op <= 0xb1) || op == 0xbe || op == 0xbf || op == 0xc2 || op == 0xc3) return 1;
+        if(op == 0x10 || op == 0x12 || (op >= 0x15 && op <= 0x19) || (op >= 0x36 && op <= 0x3a) || op == 0xa9 || op == 0xbc) return 2;
+        if(op == 0x11 || op == 0x13 || op == 0x14 || op == 0x84 || (op >= 0x99 && op <= 0xa8) || (op >= 0xb2 && op <= 0xb8)
+           || op == 0xbb || op == 0xbd || op == 0xc0 || op == 0xc1 || op == 0xc6 || op == 0xc7) return 3;
+        if(op == 0xc5) return 4;
+        if(op == 0xb9 || op == 0xba || op == 0xc8 || op == 0xc9) return 5;
+        throw new IllegalStateException("Unknown opcode: " + op);
+    }
+
+    /** Writes the target body (from bodyStart) as copies from predicted and inserted bytes */
+    private static void writeBodyDelta(DataOutputStream out, byte[] predicted, byte[] target, int bodyStart) throws IOException {
+        final Map<Long,Integer> positions = new HashMap<>();
+        for(int p = predicted.length - MIN_MATCH; p >= 0; p--) positions.put(u8(predicted, p), p);
+
+        int insertStart = bodyStart;
+        int expected = 0; // where the next copy is expected, following the previous one
+        for(int i = bodyStart; i + MIN_MATCH <= target.length; ) {
+            final int from = matchLength(predicted, expected, target, i) >= MIN_MATCH ? expected : positions.getOrDefault(u8(target, i), -1);
+            final int length = from < 0 ? 0 : matchLength(predicted, from, target, i);
+            if(length < MIN_MATCH) { i++; continue; }
+
+            writeInsert(out, target, insertStart, i);
+            out.writeByte(OP_COPY);
+            out.writeInt(from);
+            out.writeInt(length);
+            i += length;
+            insertStart = i;
+            expected = from + length;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        out.writeByte(OP_END);
+    }
+    private static void writeInsert(DataOutputStream out, byte[] target, int start, int end) throws IOException {
+        if(end <= start) return;
+        out.writeByte(OP_INSERT);
+        out.writeInt(end - start);
+        out.write(target, start, end - start);
+    }
+    private static int matchLength(byte[] predicted, int from, byte[] target, int at) {
+        int length = 0;
+        while(from + length < predicted.length && at + length < target.length && predicted[from + length] == target[at + length]) length++;
+        return length;
+    }
+    private static void readBodyDelta(DataInputStream in, byte[] predicted, OutputStream target) throws IOException {
+        for(int op; (op = in.readUnsignedByte()) != OP_END; ) {
+            if(op == OP_COPY) {
+                final int from = in.readInt();
+                target.write(predicted, from, in.readInt());
+            } else {
+                final byte[] inserted = new byte[in.readInt()];
+                in.readFully(inserted);
+                target.write(inserted);
+            }
+        }
+    }
+
+    private static int  u2(byte[] data, int pos) { return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF); }
+    private static long u4(byte[] data, int pos) { return ((long)u2(data, pos) << 16) | u2(data, pos + 2); }
+    private static long u8(byte[] data, int pos) { return (u4(data, pos) << 32) | u4(data, pos + 4); }
+    private static void put2(byte[] data, int pos, int value) { data[pos] = (byte)(value >> 8); data[pos + 1] = (byte)value; }
+
+    /** Reads all of given stream, closing it */
+    static byte[] readFully(InputStream in) throws IOException {
+        try(final InputStream toClose = in) {
+            return ZipUtil.exhaust(toClose);
+        }
+    }
+}
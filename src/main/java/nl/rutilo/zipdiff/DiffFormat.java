@@ -0,0 +1,90 @@
+package nl.rutilo.zipdiff;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.function.Consumer;
+
+/** Output format of the list of differences. TEXT is the summary for people, which is printed after
+  * the comparison. The other formats are for tools: they stream a record per change as soon as it
+  * is found (see ZipPatcher.visitChangesTo()).
+  * <pre>
+  * JSONL:  a JSON object per line with change (header, added, replaced, removed), name, oldCrc, newCrc,
+  *         oldCompressedSize, oldSize, newCompressedSize, newSize and estimatedPatchBytes
+  * BINARY: magic ZDC1 followed by a record per change: type (1 header, 2 added, 3 replaced, 4 removed),
+  *         name (int length and UTF-8 bytes) and the seven numbers as longs, in the order above.
+  *         The list ends with a type of 0. Everything is big endian.
+  * </pre>
+  * Numbers that don't apply (like the old crc of an added entry) are -1 (null in JSON).
+  */
+public enum DiffFormat {
+    TEXT, JSONL, BINARY;
+
+    static final int BINARY_MAGIC = 0x5A444331; // ZDC1
+
+    /** Returns the format of given (case insensitive) name, or null if there is no such format */
+    public static DiffFormat of(String name) {
+        for(final DiffFormat format : values()) if(format.name().equalsIgnoreCase(name)) return format;
+        return null;
+    }
+    public String getName() { return name().toLowerCase(Locale.ROOT); }
+
+    /** Returns a consumer that writes each given change to out. Call end() after the last change. */
+    public Consumer<ZipPatcher.Change> recordWriterTo(PrintStream out) {
+        switch(this) {
+            case JSONL:  return change -> out.println(toJson(change));
+            case BINARY: out.write(ByteBuffer.allocate(4).putInt(BINARY_MAGIC).array(), 0, 4);
+                         return change -> {
+                             final byte[] record = toBinary(change);
+                             out.write(record, 0, record.length);
+                         };
+            default:     throw new IllegalStateException("No records in format " + getName());
+        }
+    }
+    public void end(PrintStream out) {
+        if(this == BINARY) out.write(0);
+        out.flush();
+    }
+
+    static String toJson(ZipPatcher.Change change) {
+        return "{\"change\":\"" + change.type.name().toLowerCase(Locale.ROOT) + "\""
+            + ",\"name\":" + jsonString(change.name)
+            + ",\"oldCrc\":" + jsonNumber(change.oldCrc)
+            + ",\"newCrc\":" + jsonNumber(change.newCrc)
+            + ",\"oldCompressedSize\":" + jsonNumber(change.oldCompressedSize)
+            + ",\"oldSize\":" + jsonNumber(change.oldSize)
+            + ",\"newCompressedSize\":" + jsonNumber(change.newCompressedSize)
+            + ",\"newSize\":" + jsonNumber(change.newSize)
+            + ",\"estimatedPatchBytes\":" + change.estimatedPatchBytes()
+            + "}";
+    }
+    private static String jsonNumber(long value) {
+        return value < 0 ? "null" : String.valueOf(value);
+    }
+    private static String jsonString(String text) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for(final char c : text.toCharArray()) {
+            switch(c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n");  break;
+                case '\r': sb.append("\\r");  break;
+                case '\t': sb.append("\\t");  break;
+                default:   if(c < 0x20) sb.append(String.format("\\u%04x", (int)c)); else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    static byte[] toBinary(ZipPatcher.Change change) {
+        final byte[] name = ZipUtil.toBytes(change.name);
+        return ByteBuffer.allocate(1 + 4 + name.length + 7 * 8)
+            .put((byte)(change.type.ordinal() + 1))
+            .putInt(name.length).put(name)
+            .putLong(change.oldCrc).putLong(change.newCrc)
+            .putLong(change.oldCompressedSize).putLong(change.oldSize)
+            .putLong(change.newCompressedSize).putLong(change.newSize)
+            .putLong(change.estimatedPatchBytes())
+            .array();
+    }
+}
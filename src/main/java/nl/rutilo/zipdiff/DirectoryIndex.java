@@ -0,0 +1,110 @@
+package nl.rutilo.zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/** Index of a directory tree that looks like the index of a zip file: relative
+  * paths (with '/' separators) mapped to entries holding crc, size and time.<br>
+  * Directories themselves are not part of the index, only regular files are.<br>
+  * Files are hashed in parallel (common pool, so every core is used) and the
+  * resulting crc values are cached for as long as mtime and size of a file don't change.
+  */
+public class DirectoryIndex {
+    private DirectoryIndex() { /*singleton*/ }
+    private static final Map<Path,CachedCrc> crcCache = new ConcurrentHashMap<>();
+
+    private static class CachedCrc {
+        final long mtime;
+        final long size;
+        final long crc;
+        CachedCrc(long mtime, long size, long crc) { this.mtime = mtime; this.size = size; this.crc = crc; }
+    }
+
+    /** Returns the entries of given directory, sorted by name */
+    public static Map<String,ZipEntry> indexOf(File dir) throws IOException {
+        return indexOf(dir, EntryFilter.ALL);
+    }
+    /** Returns the entries of given directory that match the filter, sorted by name. Other files are not hashed */
+    public static Map<String,ZipEntry> indexOf(File dir, EntryFilter filter) throws IOException {
+        return indexOf(dir, filter, /*hash:*/true);
+    }
+    /** Returns all entries of given directory, sorted by name, without hashing them (so crc is -1) */
+    public static Map<String,ZipEntry> unhashedIndexOf(File dir) throws IOException {
+        return indexOf(dir, EntryFilter.ALL, /*hash:*/false);
+    }
+
+    private static Map<String,ZipEntry> indexOf(File dir, EntryFilter filter, boolean hash) throws IOException {
+        final Path root = dir.toPath();
+        final List<Path> files;
+        try(final Stream<Path> paths = Files.walk(root)) {
+            files = paths.filter(Files::isRegularFile).filter(path -> filter.matches(nameOf(root, path))).collect(Collectors.toList());
+        }
+        final List<ZipEntry> entries;
+        try {
+            entries = files.parallelStream()
+                .map(path -> entryOf(root, path, hash))
+                .sorted(Comparator.comparing(ZipEntry::getName))
+                .collect(Collectors.toList());
+        } catch(final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final Map<String,ZipEntry> nameToEntry = new LinkedHashMap<>();
+        entries.forEach(entry -> nameToEntry.put(entry.getName(), entry));
+        return nameToEntry;
+    }
+
+    public static String nameOf(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    public static void clearCache() { crcCache.clear(); }
+
+    private static ZipEntry entryOf(Path root, Path path, boolean hash) {
+        try {
+            final BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            final long mtime = attrs.lastModifiedTime().toMillis();
+            final long size  = attrs.size();
+            final ZipEntry entry = new ZipEntry(nameOf(root, path));
+            entry.setTime(mtime);
+            entry.setSize(size);
+            if(!hash) return entry;
+
+            final Path key = path.toAbsolutePath();
+            CachedCrc cached = crcCache.get(key);
+            if(cached == null || cached.mtime != mtime || cached.size != size) {
+                cached = new CachedCrc(mtime, size, crcOf(path));
+                crcCache.put(key, cached);
+            }
+            entry.setCrc(cached.crc);
+            return entry;
+        } catch(final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long crcOf(Path path) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = Pools.borrowBuffer();
+        try(final InputStream in = Files.newInputStream(path)) {
+            int n;
+            while((n = in.read(buf)) > 0) crc.update(buf, 0, n);
+        } finally {
+            Pools.release(buf);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,73 @@
+package nl.rutilo.zipdiff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/** Include and exclude patterns for entry names (paths with '/' separators). Patterns are
+  * globs, where * and ? match within a directory and ** also matches across directories,
+  * or regular expressions when prefixed with "regex:". A name matches the filter when it
+  * matches any of the includes (or there are none) and none of the excludes.
+  */
+public class EntryFilter {
+    public static final EntryFilter ALL = new EntryFilter(Collections.emptyList(), Collections.emptyList());
+    private static final String REGEX_PREFIX = "regex:";
+    private static final String GLOB_PREFIX  = "glob:";
+
+    private final List<String> includes;
+    private final List<String> excludes;
+    private final List<Pattern> includePatterns = new ArrayList<>();
+    private final List<Pattern> excludePatterns = new ArrayList<>();
+
+    public EntryFilter(List<String> includes, List<String> excludes) {
+        this.includes = Collections.unmodifiableList(new ArrayList<>(includes));
+        this.excludes = Collections.unmodifiableList(new ArrayList<>(excludes));
+        includes.forEach(pattern -> includePatterns.add(compile(pattern)));
+        excludes.forEach(pattern -> excludePatterns.add(compile(pattern)));
+    }
+
+    public List<String> getIncludes() { return includes; }
+    public List<String> getExcludes() { return excludes; }
+    public boolean isAll() { return includes.isEmpty() && excludes.isEmpty(); }
+
+    public boolean matches(String name) {
+        if(!includePatterns.isEmpty() && includePatterns.stream().noneMatch(p -> p.matcher(name).matches())) return false;
+        return excludePatterns.stream().noneMatch(p -> p.matcher(name).matches());
+    }
+
+    /** Text form, as stored in a patch: a line per pattern, starting with + for includes and - for excludes */
+    public String toText() {
+        final List<String> lines = new ArrayList<>();
+        includes.forEach(pattern -> lines.add("+" + pattern));
+        excludes.forEach(pattern -> lines.add("-" + pattern));
+        return String.join("\n", lines);
+    }
+    public static EntryFilter fromText(String text) {
+        final List<String> includes = new ArrayList<>();
+        final List<String> excludes = new ArrayList<>();
+        for(final String line : text.split("\n")) {
+            if(line.startsWith("+")) includes.add(line.substring(1));
+            if(line.startsWith("-")) excludes.add(line.substring(1));
+        }
+        return new EntryFilter(includes, excludes);
+    }
+
+    @Override public String toString() { return toText().replace("\n", " "); }
+
+    /** Throws IllegalArgumentException when the pattern is not valid */
+    static Pattern compile(String pattern) {
+        if(pattern.startsWith(REGEX_PREFIX)) return Pattern.compile(pattern.substring(REGEX_PREFIX.length()));
+        final String glob = pattern.startsWith(GLOB_PREFIX) ? pattern.substring(GLOB_PREFIX.length()) : pattern;
+        final StringBuilder regex = new StringBuilder();
+        for(int i=0; i<glob.length(); i++) {
+            final char c = glob.charAt(i);
+            if(glob.startsWith("**/", i)) { regex.append("(?:.*/)?"); i += 2; }
+            else if(glob.startsWith("**", i)) { regex.append(".*"); i++; }
+            else if(c == '*') regex.append("[^/]*");
+            else if(c == '?') regex.append("[^/]");
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
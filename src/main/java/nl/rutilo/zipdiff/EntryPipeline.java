@@ -0,0 +1,139 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/** Writes entries to a ZipWriter in a bounded pipeline, so reading, inflating and deflating an entry
+  * happens while earlier entries are being written, instead of the disk waiting on the cpu and the
+  * other way round. Up to queueDepth entries are read and compressed in memory by workers (each on
+  * its own thread, so on as many cores), while the calling thread writes them in the order they were
+  * given. Writing blocks when the queue is full. Entries that are too large to hold in memory (or of
+  * unknown size) are streamed by the calling thread itself, after the entries before them.
+  * A queue depth of 0 writes every entry on the calling thread, without any workers.
+  * The result is the same as writing the entries one by one (see ZipWriter.newEntry()).
+  */
+class EntryPipeline implements Closeable {
+    static final int DEFAULT_QUEUE_DEPTH = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+    /** Entries larger than this are not compressed in memory */
+    static final int MAX_BUFFERED_SIZE = 4 * 1024 * 1024;
+    private static final ExecutorService WORKERS = ZipUtil.newDaemonCachedThreadPool("zipdiff-pipeline");
+
+    /** Writes the uncompressed data of an entry */
+    interface Data {
+        void writeTo(OutputStream out) throws IOException;
+    }
+    /** Called on the writing thread when an entry is written, with the crc of its data */
+    interface Written {
+        void accept(ZipEntry entry, long crc) throws IOException;
+    }
+
+    private static class Compressed {
+        final long crc;
+        final long size;
+        final ByteArrayOutputStream data;
+        Compressed(long crc, long size, ByteArrayOutputStream data) { this.crc = crc; this.size = size; this.data = data; }
+    }
+    private static class Queued {
+        final ZipEntry entry;
+        final Future<Compressed> compressed;
+        final Written written;
+        Queued(ZipEntry entry, Future<Compressed> compressed, Written written) { this.entry = entry; this.compressed = compressed; this.written = written; }
+    }
+
+    private final ZipWriter out;
+    private final int queueDepth;
+    private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+
+    EntryPipeline(ZipWriter out, int queueDepth) {
+        this.out = out;
+        this.queueDepth = queueDepth;
+    }
+
+    /** Writes a new entry with given data (deflated unless the entry is STORED), after which written is called */
+    void write(ZipEntry entry, Data data, Written written) throws IOException {
+        if(queueDepth <= 0 || entry.getSize() < 0 || entry.getSize() > MAX_BUFFERED_SIZE) {
+            flush();
+            final ZipWriter.EntryOutputStream entryOut = out.newEntry(entry);
+            data.writeTo(ZipUtil.notClosing(entryOut));
+            entryOut.close();
+            if(written != null) written.accept(entry, entryOut.getCrc());
+            return;
+        }
+        queue.add(new Queued(entry, WORKERS.submit(() -> compress(entry, data)), written));
+        while(queue.size() > queueDepth) writeNext();
+    }
+
+    /** Writes all queued entries, which should be done before anything else is written to the ZipWriter */
+    void flush() throws IOException {
+        while(!queue.isEmpty()) writeNext();
+    }
+
+    /** Waits for entries that are still being compressed, without writing them (after a failure) */
+    @Override public void close() {
+        for(final Queued queued : queue) {
+            try {
+                queued.compressed.get();
+            } catch(final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(final ExecutionException e) {
+                // already failed, so no longer in use
+            }
+        }
+        queue.clear();
+    }
+
+    private void writeNext() throws IOException {
+        final Queued queued = queue.poll();
+        final Compressed compressed;
+        try {
+            compressed = queued.compressed.get();
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing " + queued.entry.getName(), e);
+        } catch(final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause().getMessage(), e.getCause());
+        }
+        out.writeCompressed(queued.entry, compressed.crc, compressed.size, compressed.data);
+        if(queued.written != null) queued.written.accept(queued.entry, compressed.crc);
+    }
+
+    /** Compresses the data like ZipWriter does, on a worker thread */
+    private static Compressed compress(ZipEntry entry, Data data) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream((int)Math.min(MAX_BUFFERED_SIZE, entry.getSize() / 2 + 64));
+        final boolean stored = entry.getMethod() == ZipEntry.STORED;
+        final CRC32 crc = new CRC32();
+        final long[] size = { 0 };
+        final Deflater deflater = Pools.borrowDeflater(Deflater.DEFAULT_COMPRESSION, /*nowrap:*/true);
+        final byte[] deflated = Pools.borrowBuffer();
+        try {
+            data.writeTo(new OutputStream() {
+                @Override public void write(int b) { write(new byte[] { (byte)b }, 0, 1); }
+                @Override public void write(byte[] buf, int off, int len) {
+                    crc.update(buf, off, len);
+                    size[0] += len;
+                    if(stored) { compressed.write(buf, off, len); return; }
+                    deflater.setInput(buf, off, len);
+                    while(!deflater.needsInput()) compressed.write(deflated, 0, deflater.deflate(deflated));
+                }
+            });
+            if(!stored) {
+                deflater.finish();
+                while(!deflater.finished()) compressed.write(deflated, 0, deflater.deflate(deflated));
+            }
+        } finally {
+            Pools.release(deflater, /*nowrap:*/true);
+            Pools.release(deflated);
+        }
+        return new Compressed(crc.getValue(), size[0], compressed);
+    }
+}
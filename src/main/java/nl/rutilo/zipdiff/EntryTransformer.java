@@ -0,0 +1,31 @@
+package nl.rutilo.zipdiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+
+/** Decides, per entry, what is written when streaming a zip (or directory) to a new zip.
+  * See ZipPatcher.transformTo(). The data stream is only opened when read from, so
+  * entries that are kept or dropped without looking at their data are never inflated.
+  */
+@FunctionalInterface
+public interface EntryTransformer {
+    void transform(ZipEntry entry, InputStream data, Output output) throws IOException;
+
+    /** What to do with the entry being transformed. When none of these is called the entry is kept.
+      * At most one of these can be called per entry.
+      */
+    interface Output {
+        /** Keeps the entry as is. Entries from a zip file are copied without inflating them */
+        void keep() throws IOException;
+        /** Leaves the entry out */
+        void drop() throws IOException;
+        /** Writes given data as the entry, which can have another name */
+        void replace(ZipEntry entry, InputStream data) throws IOException;
+        /** Returns the stream to write the new data of the entry, which can have another name, to.
+          * The entry is finished when the stream is closed, or otherwise when transform() returns.
+          */
+        OutputStream rewrite(ZipEntry entry) throws IOException;
+    }
+}
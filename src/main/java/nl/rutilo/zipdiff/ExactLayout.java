@@ -0,0 +1,302 @@
+package nl.rutilo.zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/** Byte layout of a target zip, expressed as a sequence of segments that are either literal
+  * bytes, ranges copied from the base zip, entry data from the base that is deflated again with
+  * a compression level that was found to reproduce the original bytes, or compressed data of an
+  * entry in the patch. Writing all segments in order reproduces the target zip exactly.
+  * The compressed data of deflated entries in the patch is that of the target (copied as is), as is
+  * the data of base entries that cannot be reproduced, which is added to the patch with a RAW_PREFIX.
+  */
+public class ExactLayout {
+    private ExactLayout() { /*singleton*/ }
+    private static final int MAGIC = 0x5A444C31; // ZDL1
+    private static final byte SEG_LITERAL    = 'L';
+    private static final byte SEG_BASE_RANGE = 'B';
+    private static final byte SEG_BASE_DATA  = 'b';
+    private static final byte SEG_PATCH_DATA = 'P';
+    private static final byte SEG_PATCH_RAW  = 'R';
+    private static final String RAW_PREFIX   = ".raw.zipdiff/";
+    private static final int  LEVEL_STORED   = -2; // not -1, which is Deflater.DEFAULT_COMPRESSION
+    private static final int  MAX_LITERAL    = 1024 * 1024;
+    private static final int[] LEVELS_TO_TRY = { Deflater.DEFAULT_COMPRESSION, 9, 1, 2, 3, 4, 5, 7, 8, 0 };
+
+    /** Opens the (uncompressed or raw) data of an entry by name */
+    @FunctionalInterface
+    interface DataSource {
+        InputStream open(String name) throws IOException;
+    }
+
+    /** Writes the layout of target, where data of entries with names in inPatch will be in the patch, and
+      * returns the entries of target of which the compressed data should be added to the patch (see rawNameOf).
+      * The base index is null when the base is not a zip file (but e.g. a directory).
+      */
+    static List<ZipIndex.Entry> create(ZipIndex base, DataSource baseData, ZipIndex target, Set<String> inPatch, OutputStream layoutOut) throws IOException {
+        final Map<String,ZipIndex.Entry> baseEntries = new HashMap<>();
+        if(base != null) base.entries.forEach(entry -> baseEntries.put(entry.getName(), entry));
+        final List<ZipIndex.Entry> toAddRaw = new ArrayList<>();
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(layoutOut));
+        try(final FileChannel targetChannel = FileChannel.open(target.file.toPath(), StandardOpenOption.READ);
+            final FileChannel baseChannel   = base == null ? null : FileChannel.open(base.file.toPath(), StandardOpenOption.READ)) {
+            final Segments segments = new Segments(out, targetChannel);
+
+            out.writeInt(MAGIC);
+            out.writeLong(target.fileLength);
+            for(final ZipIndex.Entry entry : target.entriesInFileOrder()) {
+                final long dataStart = ZipIndex.dataOffsetOf(targetChannel, entry);
+                final long dataEnd   = dataStart + entry.compressedSize;
+                segments.literalUpTo(dataStart);
+
+                final String name = entry.getName();
+                final ZipIndex.Entry baseEntry = baseEntries.get(name);
+                final int level;
+
+                if(inPatch.contains(name) && entry.method == ZipEntry.DEFLATED) {
+                    out.writeByte(SEG_PATCH_RAW);
+                    out.writeUTF(name);
+                } else
+                if(inPatch.contains(name) && entry.method == ZipEntry.STORED) {
+                    out.writeByte(SEG_PATCH_DATA);
+                    out.writeUTF(name);
+                    out.writeByte(LEVEL_STORED);
+                } else
+                if(!inPatch.contains(name) && baseEntry != null && baseEntry.compressedSize == entry.compressedSize
+                   && baseEntry.crc == entry.crc && baseEntry.method == entry.method
+                   && isEqual(baseChannel, ZipIndex.dataOffsetOf(baseChannel, baseEntry), targetChannel, dataStart, entry.compressedSize)) {
+                    out.writeByte(SEG_BASE_RANGE);
+                    out.writeLong(ZipIndex.dataOffsetOf(baseChannel, baseEntry));
+                    out.writeLong(entry.compressedSize);
+                } else
+                if(!inPatch.contains(name) && (level = levelReproducing(entry, baseData, targetChannel, dataStart)) != Integer.MIN_VALUE) {
+                    out.writeByte(SEG_BASE_DATA);
+                    out.writeUTF(name);
+                    out.writeByte(level);
+                } else
+                if(!inPatch.contains(name) && entry.method == ZipEntry.DEFLATED) {
+                    out.writeByte(SEG_PATCH_RAW);
+                    out.writeUTF(rawNameOf(name));
+                    toAddRaw.add(entry);
+                } else {
+                    segments.literalUpTo(dataEnd);
+                }
+                segments.skipTo(dataEnd);
+            }
+            segments.literalUpTo(target.fileLength);
+            out.writeByte(0); // end of segments
+        }
+        out.flush();
+        return toAddRaw;
+    }
+
+    /** Name in the patch of the compressed data of a target entry that cannot be reproduced from the base */
+    static String rawNameOf(String name) { return RAW_PREFIX + name; }
+    static boolean isRawName(String name) { return name.startsWith(RAW_PREFIX); }
+
+    /** Writes the target described by the layout to given stream */
+    static void write(InputStream layout, FileChannel baseChannel, DataSource baseData, DataSource patchData, DataSource patchRawData, OutputStream out) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(layout));
+        if(in.readInt() != MAGIC) throw new IOException("Invalid layout in patch");
+        in.readLong(); // target length
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            writeSegments(in, buf, baseChannel, baseData, patchData, patchRawData, out);
+        } finally {
+            Pools.release(buf);
+        }
+    }
+    private static void writeSegments(DataInputStream in, byte[] buf, FileChannel baseChannel, DataSource baseData, DataSource patchData, DataSource patchRawData,
+                                      OutputStream out) throws IOException {
+        for(int type = in.readByte(); type != 0; type = in.readByte()) {
+            switch(type) {
+                case SEG_LITERAL:
+                    for(int remaining = in.readInt(); remaining > 0; ) {
+                        final int n = in.read(buf, 0, Math.min(buf.length, remaining));
+                        if(n < 0) throw new IOException("Unexpected end of layout");
+                        out.write(buf, 0, n);
+                        remaining -= n;
+                    }
+                    break;
+                case SEG_BASE_RANGE:
+                    if(baseChannel == null) throw new IOException("Layout needs a base zip file");
+                    long pos = in.readLong();
+                    for(long remaining = in.readLong(); remaining > 0; ) {
+                        final int n = baseChannel.read(ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, remaining)), pos);
+                        if(n < 0) throw new IOException("Unexpected end of base file");
+                        out.write(buf, 0, n);
+                        pos += n;
+                        remaining -= n;
+                    }
+                    break;
+                case SEG_BASE_DATA:
+                case SEG_PATCH_DATA:
+                    final String name = in.readUTF();
+                    final int level = in.readByte();
+                    try(final InputStream data = (type == SEG_BASE_DATA ? baseData : patchData).open(name)) {
+                        if(level == LEVEL_STORED) ZipUtil.copyAndReturnCount(data, out);
+                        else deflate(data, level, out);
+                    }
+                    break;
+                case SEG_PATCH_RAW:
+                    try(final InputStream raw = patchRawData.open(in.readUTF())) {
+                        ZipUtil.copyAndReturnCount(raw, out);
+                    }
+                    break;
+                default: throw new IOException("Invalid layout in patch");
+            }
+        }
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not supported", e);
+        }
+    }
+    public static String toHex(byte[] data) {
+        final StringBuilder sb = new StringBuilder();
+        for(final byte b : data) sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+    public static String sha256Of(File file) throws IOException {
+        final MessageDigest digest = newDigest();
+        try(final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while(channel.read(buf) > 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /** Writes literal segments from the target, up to a given position */
+    private static class Segments {
+        final DataOutputStream out;
+        final FileChannel target;
+        long position;
+        Segments(DataOutputStream out, FileChannel target) { this.out = out; this.target = target; }
+
+        void literalUpTo(long end) throws IOException {
+            while(position < end) {
+                final ByteBuffer data = ZipIndex.read(target, position, (int)Math.min(MAX_LITERAL, end - position));
+                out.writeByte(SEG_LITERAL);
+                out.writeInt(data.remaining());
+                out.write(data.array(), 0, data.remaining());
+                position += data.remaining();
+            }
+        }
+        void skipTo(long end) { position = end; }
+    }
+
+    /** Returns the compression level with which the data reproduces the raw entry data, or MIN_VALUE if none does */
+    private static int levelReproducing(ZipIndex.Entry entry, DataSource source, FileChannel target, long dataStart) throws IOException {
+        if(entry.method == ZipEntry.STORED) return LEVEL_STORED;
+        if(entry.method != ZipEntry.DEFLATED) return Integer.MIN_VALUE;
+
+        for(final int level : LEVELS_TO_TRY) {
+            try(final InputStream data = source.open(entry.getName())) {
+                final ComparingOutputStream compare = new ComparingOutputStream(target, dataStart, entry.compressedSize);
+                try {
+                    deflate(data, level, compare);
+                    if(compare.isEqual()) return level;
+                } catch(final DifferenceFoundException e) {
+                    // try next level
+                }
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private static void deflate(InputStream data, int level, OutputStream out) throws IOException {
+        final Deflater deflater = Pools.borrowDeflater(level, /*nowrap:*/true);
+        final byte[] buf = Pools.borrowBuffer();
+        final byte[] deflated = Pools.borrowBuffer();
+        try {
+            int n;
+            while((n = data.read(buf)) >= 0) {
+                deflater.setInput(buf, 0, n);
+                while(!deflater.needsInput()) out.write(deflated, 0, deflater.deflate(deflated));
+            }
+            deflater.finish();
+            while(!deflater.finished()) out.write(deflated, 0, deflater.deflate(deflated));
+        } finally {
+            Pools.release(deflater, /*nowrap:*/true);
+            Pools.release(buf);
+            Pools.release(deflated);
+        }
+    }
+
+    private static boolean isEqual(FileChannel a, long posA, FileChannel b, long posB, long length) throws IOException {
+        final ComparingOutputStream compare = new ComparingOutputStream(b, posB, length);
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            for(long done = 0; done < length; ) {
+                final int n = a.read(ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, length - done)), posA + done);
+                if(n < 0) return false;
+                compare.write(buf, 0, n);
+                done += n;
+            }
+        } catch(final DifferenceFoundException e) {
+            return false;
+        } finally {
+            Pools.release(buf);
+        }
+        return compare.isEqual();
+    }
+
+    private static class DifferenceFoundException extends IOException {
+        private static final long serialVersionUID = 1L;
+        DifferenceFoundException() { super("difference found"); }
+    }
+
+    /** Compares everything written with a range of a file, throwing as soon as a difference is found */
+    private static class ComparingOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+        private byte[] buf = new byte[0];
+
+        ComparingOutputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+        boolean isEqual() { return position == end; }
+
+        @Override public void write(int b) throws IOException { write(new byte[] { (byte)b }, 0, 1); }
+        @Override public void write(byte[] data, int off, int len) throws IOException {
+            if(len == 0) return;
+            if(position + len > end) throw new DifferenceFoundException();
+            if(buf.length < len) buf = new byte[len];
+            final ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while(bb.hasRemaining()) {
+                if(channel.read(bb, position + bb.position()) < 0) throw new DifferenceFoundException();
+            }
+            for(int i=0; i<len; i++) if(buf[i] != data[off + i]) throw new DifferenceFoundException();
+            position += len;
+        }
+    }
+}
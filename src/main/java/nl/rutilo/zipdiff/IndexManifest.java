@@ -0,0 +1,80 @@
+package nl.rutilo.zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/** Portable index (.zindex) of a zip or directory: the header hash and the name, crc and size of each
+  * entry. That is all that is needed of the base to generate a patch, so a patch can be generated for
+  * a client that only sends the index of the version it holds.
+  * The file holds a magic number followed by deflated data.
+  */
+class IndexManifest {
+    static final String EXT = ".zindex";
+    private static final int MAGIC = 0x5A445831; // ZDX1
+
+    final String headerSha256;
+    final List<ZipEntry> entries;
+
+    private IndexManifest(String headerSha256, List<ZipEntry> entries) {
+        this.headerSha256 = headerSha256;
+        this.entries = entries;
+    }
+
+    static boolean isManifest(File file) {
+        return file.getName().endsWith(EXT) && file.isFile();
+    }
+
+    static void write(File file, String headerSha256, Collection<ZipEntry> entries) throws IOException {
+        try(final OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+            new DataOutputStream(fileOut).writeInt(MAGIC);
+            final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try(final DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(fileOut, deflater))) {
+                out.writeUTF(headerSha256);
+                out.writeInt(entries.size());
+                for(final ZipEntry entry : entries) {
+                    out.writeUTF(entry.getName());
+                    out.writeLong(entry.getCrc());
+                    out.writeLong(entry.getSize());
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    static IndexManifest read(File file) throws IOException {
+        try(final InputStream fileIn = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            if(new DataInputStream(fileIn).readInt() != MAGIC) throw new IOException("Not a zip index: " + file);
+            final Inflater inflater = new Inflater();
+            try(final DataInputStream in = new DataInputStream(new InflaterInputStream(fileIn, inflater))) {
+                final String headerSha256 = in.readUTF();
+                final int count = in.readInt();
+                final List<ZipEntry> entries = new ArrayList<>();
+                for(int i=0; i<count; i++) {
+                    final ZipEntry entry = new ZipEntry(in.readUTF());
+                    entry.setCrc(in.readLong());
+                    entry.setSize(in.readLong());
+                    entries.add(entry);
+                }
+                return new IndexManifest(headerSha256, entries);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+
+/** Hash tree over the entries of a zip, following the path hierarchy: the hash of an entry is a hash of
+  * its name, crc and size and the hash of a directory is a hash of the names and hashes of its children.
+  * Two trees are equal when their root hashes are, and the differences between two trees are found by
+  * only descending into the directories that have different hashes.
+  * Directories have a path ending with '/' and the root has path "".
+  */
+public class MerkleTree {
+    public static final String ROOT = "";
+    private static final int MAGIC = 0x5A444D31; // ZDM1
+    private final Map<String,byte[]> hashes = new TreeMap<>();
+    private final Map<String,List<String>> children = new HashMap<>();
+
+    private MerkleTree() {}
+
+    /** Creates the tree of given entries, which need to have a known crc and size */
+    public static MerkleTree of(Collection<ZipEntry> entries) {
+        final MerkleTree tree = new MerkleTree();
+        final Map<String,TreeSet<String>> dirs = new HashMap<>();
+        final Map<String,Boolean> explicitDirs = new HashMap<>();
+        dirs.put(ROOT, new TreeSet<>());
+
+        for(final ZipEntry entry : entries) {
+            final String name = entry.getName();
+            if(entry.isDirectory()) {
+                explicitDirs.put(name, true);
+                if(dirs.containsKey(name)) continue;
+                dirs.put(name, new TreeSet<>());
+                addToParents(dirs, name);
+                continue;
+            }
+            tree.hashes.put(name, hashOfEntry(entry));
+            addToParents(dirs, name);
+        }
+        // deepest directories first, so the hashes of all children are known
+        final List<String> dirPaths = new ArrayList<>(dirs.keySet());
+        dirPaths.sort((a, b) -> depthOf(b) - depthOf(a));
+        for(final String dir : dirPaths) {
+            final List<String> sortedChildren = new ArrayList<>(dirs.get(dir));
+            final MessageDigest digest = ExactLayout.newDigest();
+            digest.update((byte)(explicitDirs.containsKey(dir) ? 'E' : 'D'));
+            for(final String child : sortedChildren) {
+                digest.update(ZipUtil.toBytes(child));
+                digest.update((byte)0);
+                digest.update(tree.hashes.get(child));
+            }
+            tree.hashes.put(dir, digest.digest());
+            tree.children.put(dir, Collections.unmodifiableList(sortedChildren));
+        }
+        return tree;
+    }
+    private static void addToParents(Map<String,TreeSet<String>> dirs, String path) {
+        for(String child = path, parent = parentOf(path); child != null; child = parent, parent = parentOf(parent)) {
+            final boolean isNewDir = !dirs.containsKey(parent);
+            dirs.computeIfAbsent(parent, p -> new TreeSet<>()).add(child);
+            if(!isNewDir || parent.equals(ROOT)) break;
+        }
+    }
+    private static String parentOf(String path) {
+        if(path == null || path.equals(ROOT)) return null;
+        final int slash = path.lastIndexOf('/', path.length() - 2);
+        return slash < 0 ? ROOT : path.substring(0, slash + 1);
+    }
+    private static int depthOf(String path) {
+        int depth = 0;
+        for(int i=0; i<path.length(); i++) if(path.charAt(i) == '/') depth++;
+        return depth;
+    }
+    private static byte[] hashOfEntry(ZipEntry entry) {
+        final MessageDigest digest = ExactLayout.newDigest();
+        digest.update((byte)'F');
+        digest.update(ZipUtil.toBytes(entry.getName()));
+        digest.update(ByteBuffer.allocate(16).putLong(entry.getCrc()).putLong(entry.getSize()).array());
+        return digest.digest();
+    }
+
+    public byte[] getRootHash() { return hashOf(ROOT); }
+    /** Returns the hash of given entry or directory, or null if it is not in the tree */
+    public byte[] hashOf(String path) {
+        final byte[] hash = hashes.get(path);
+        return hash == null ? null : hash.clone();
+    }
+    /** Returns the paths of the entries and directories in given directory, or an empty list for an entry */
+    public List<String> childrenOf(String dirPath) {
+        return children.getOrDefault(dirPath, Collections.emptyList());
+    }
+    public boolean isEqualTo(MerkleTree other) {
+        return Arrays.equals(getRootHash(), other.getRootHash());
+    }
+
+    /** Returns the paths where this tree differs from the other: entries that differ and directories that
+      * exist in only one of the trees (so not the entries within them). Only directories with a different
+      * hash are visited. Empty when the trees are equal.
+      */
+    public List<String> differencesFrom(MerkleTree other) {
+        final List<String> differences = new ArrayList<>();
+        addDifferences(ROOT, other, differences);
+        return differences;
+    }
+    private void addDifferences(String path, MerkleTree other, List<String> differences) {
+        if(Arrays.equals(hashes.get(path), other.hashes.get(path))) return;
+        final boolean isDir = path.equals(ROOT) || path.endsWith("/");
+        if(!isDir || !hashes.containsKey(path) || !other.hashes.containsKey(path)) {
+            differences.add(path);
+            return;
+        }
+        final TreeSet<String> allChildren = new TreeSet<>(childrenOf(path));
+        allChildren.addAll(other.childrenOf(path));
+        final int count = differences.size();
+        for(final String child : allChildren) addDifferences(child, other, differences);
+        if(differences.size() == count) differences.add(path); // only the directory entry itself differs
+    }
+
+    public byte[] toBytes() throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try(final DataOutputStream out = new DataOutputStream(bout)) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes.size());
+            for(final Map.Entry<String,byte[]> node : hashes.entrySet()) {
+                out.writeUTF(node.getKey());
+                out.write(node.getValue());
+            }
+        }
+        return bout.toByteArray();
+    }
+    public static MerkleTree fromBytes(byte[] data) throws IOException {
+        final MerkleTree tree = new MerkleTree();
+        try(final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if(in.readInt() != MAGIC) throw new IOException("Invalid merkle tree");
+            final int count = in.readInt();
+            final Map<String,TreeSet<String>> dirs = new HashMap<>();
+            for(int i=0; i<count; i++) {
+                final String path = in.readUTF();
+                final byte[] hash = new byte[32];
+                in.readFully(hash);
+                tree.hashes.put(path, hash);
+                if(path.endsWith("/") || path.equals(ROOT)) dirs.computeIfAbsent(path, p -> new TreeSet<>());
+                if(!path.equals(ROOT)) dirs.computeIfAbsent(parentOf(path), p -> new TreeSet<>()).add(path);
+            }
+            dirs.forEach((dir, dirChildren) -> tree.children.put(dir, Collections.unmodifiableList(new ArrayList<>(dirChildren))));
+        }
+        return tree;
+    }
+}
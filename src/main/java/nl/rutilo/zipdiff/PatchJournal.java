@@ -0,0 +1,82 @@
+package nl.rutilo.zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/** Checkpoint of a running patchTo(), stored next to the file being generated so that
+  * an interrupted patch can continue from the last checkpoint instead of starting over.
+  * A journal only applies to the same base and patch it was created for.
+  */
+public class PatchJournal {
+    public static final String JOURNAL_EXT = ".zipdiff-journal";
+
+    final String baseId;
+    final String patchId;
+    final long zipStart;
+    int entriesCompleted;
+    long offset;
+    long crc;
+
+    PatchJournal(String baseId, String patchId, long zipStart) {
+        this.baseId = baseId;
+        this.patchId = patchId;
+        this.zipStart = zipStart;
+        this.offset = zipStart;
+    }
+
+    public static File fileFor(File generatedFile) {
+        return new File(generatedFile.getPath() + JOURNAL_EXT);
+    }
+
+    /** Returns the journal in given file if it is for given base and patch, null otherwise */
+    public static PatchJournal readIfMatching(File journalFile, String baseId, String patchId) {
+        if(!journalFile.exists()) return null;
+        final Properties props = new Properties();
+        try(final InputStream in = Files.newInputStream(journalFile.toPath())) {
+            props.load(in);
+            if(!baseId.equals(props.getProperty("base")) || !patchId.equals(props.getProperty("patch"))) return null;
+
+            final PatchJournal journal = new PatchJournal(baseId, patchId, Long.parseLong(props.getProperty("zipStart")));
+            journal.entriesCompleted = Integer.parseInt(props.getProperty("entriesCompleted"));
+            journal.offset           = Long.parseLong(props.getProperty("offset"));
+            journal.crc              = Long.parseLong(props.getProperty("crc"));
+            return journal;
+        } catch(final IOException | RuntimeException e) {
+            return null; // unreadable journal: start over
+        }
+    }
+
+    public PatchJournal update(int entriesCompleted, long offset, long crc) {
+        this.entriesCompleted = entriesCompleted;
+        this.offset = offset;
+        this.crc = crc;
+        return this;
+    }
+
+    /** Writes to a temporary file first so an interrupted write won't leave a broken journal */
+    public void writeTo(File journalFile) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty("base", baseId);
+        props.setProperty("patch", patchId);
+        props.setProperty("zipStart", String.valueOf(zipStart));
+        props.setProperty("entriesCompleted", String.valueOf(entriesCompleted));
+        props.setProperty("offset", String.valueOf(offset));
+        props.setProperty("crc", String.valueOf(crc));
+
+        final File tmp = new File(journalFile.getPath() + ".tmp");
+        try(final OutputStream out = Files.newOutputStream(tmp.toPath())) {
+            props.store(out, "ZipDiff patch checkpoint");
+        }
+        try {
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch(final AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
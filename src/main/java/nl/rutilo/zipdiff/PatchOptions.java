@@ -0,0 +1,64 @@
+package nl.rutilo.zipdiff;
+
+/** Options for generating a patch file. The defaults generate the original patch format. */
+public class PatchOptions {
+    private boolean exact;
+    private int shards = 1;
+    private int dictionarySize;
+    private boolean classDeltas;
+    private boolean merkleTree;
+    private boolean similarSources;
+    private boolean solid;
+    private double maxPatchRatio = 0.8;
+
+    /** When set, the patch also holds the layout of the target zip so patching reproduces the
+      * target byte for byte (and the result is validated by a single hash of the whole file).
+      */
+    public PatchOptions setExact(boolean exact) { this.exact = exact; return this; }
+    public boolean isExact() { return exact; }
+
+    /** When more than 1, the patched entries are spread over this number of shard files next to
+      * the patch file, which then only holds the administration and a manifest of the shards.
+      */
+    public PatchOptions setShards(int shards) { this.shards = shards; return this; }
+    public int getShards() { return shards; }
+
+    /** When more than 0, replaced entries are deflated with up to this number of bytes from the start
+      * of their base version as preset dictionary (at most PresetDictionary.MAX_SIZE are used).
+      * Small edits in text-like entries then result in a much smaller patch. Entries for which that
+      * is estimated to be larger than deflating them as is (see PatchPlan) are not encoded this way.
+      */
+    public PatchOptions setDictionarySize(int size) { this.dictionarySize = size; return this; }
+    public int getDictionarySize() { return dictionarySize; }
+
+    /** When set, replaced class files are encoded as a delta against their base version (see ClassDelta)
+      * when that is smaller than the deflated class.
+      */
+    public PatchOptions setClassDeltas(boolean classDeltas) { this.classDeltas = classDeltas; return this; }
+    public boolean hasClassDeltas() { return classDeltas; }
+
+    /** When set (and dictionaries or class deltas are used), added entries can be encoded against the most
+      * similar base entry (see SimilarityIndex), like an entry that was moved and edited.
+      */
+    public PatchOptions setSimilarSources(boolean similarSources) { this.similarSources = similarSources; return this; }
+    public boolean hasSimilarSources() { return similarSources; }
+
+    /** When set, small entries that are added or replaced as a whole are concatenated per extension into
+      * solid groups that are each deflated as a single stream (see SolidGroups), which for many small
+      * entries gives a better ratio and less overhead per entry.
+      */
+    public PatchOptions setSolid(boolean solid) { this.solid = solid; return this; }
+    public boolean isSolid() { return solid; }
+
+    /** When set, the patch also holds the merkle tree of the patched result, so it can be
+      * compared with (the tree of) a zip without having that zip.
+      */
+    public PatchOptions setMerkleTree(boolean merkleTree) { this.merkleTree = merkleTree; return this; }
+    public boolean hasMerkleTree() { return merkleTree; }
+
+    /** When a planned patch (see PatchPlan) is larger than this ratio of the target archive,
+      * shipping the archive itself is recommended instead.
+      */
+    public PatchOptions setMaxPatchRatio(double ratio) { this.maxPatchRatio = ratio; return this; }
+    public double getMaxPatchRatio() { return maxPatchRatio; }
+}
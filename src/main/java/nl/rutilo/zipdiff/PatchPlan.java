@@ -0,0 +1,222 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+import static nl.rutilo.zipdiff.ZipUtil.sizeToString;
+
+/** Estimated cost of a patch, per added or replaced entry and for the whole patch, made before the
+  * patch is written (see ZipPatcher.planPatchTo()). Of each entry the cost of the applicable encodings
+  * is estimated, of which the cheapest that is enabled by the patch options is chosen:
+  * <pre>
+  * WHOLE:       the entry deflated, with the compressed size of the central directory (or a deflated sample)
+  * DICTIONARY:  deflated with the start of the base version as dictionary, from a sample
+  * CLASS_DELTA: delta of a class file against its base version, which is small so fully encoded
+  * </pre>
+  * The base version of a replaced entry has the same name. An added entry only has one when a similar
+  * base entry was found (see SimilarityIndex), otherwise it can only be encoded as WHOLE.
+  * When the patch is larger than the max ratio of the target archive, shipping the archive is recommended.
+  */
+public class PatchPlan {
+    public enum Encoding {
+        WHOLE, DICTIONARY, CLASS_DELTA;
+        public String getName() { return name().toLowerCase(Locale.ROOT).replace('_', ' '); }
+    }
+    /** Number of bytes of an entry that are deflated to estimate the deflated size of all of it */
+    static final int SAMPLE_SIZE = 64 * 1024;
+    /** Estimate of the administration entries and end of a patch zip */
+    private static final int PATCH_OVERHEAD = 512;
+    /** Line of an encoded entry in the dictionary entries administration, apart from its name */
+    private static final int ENCODED_LINE_SIZE = 40;
+
+    public static class EntryPlan {
+        public final String name;
+        /** Name of the base entry the encodings are against, or null when there is none */
+        public final String source;
+        private final long[] costs = { -1, -1, -1 }; // per encoding, -1 when not applicable
+        private Encoding encoding = Encoding.WHOLE;
+        private byte[] classDelta; // when CLASS_DELTA is chosen, so it is not encoded again when writing
+
+        private EntryPlan(String name, String source) { this.name = name; this.source = source; }
+
+        /** Estimated patch bytes when using given encoding, or -1 when it doesn't apply to this entry */
+        public long costOf(Encoding enc) { return costs[enc.ordinal()]; }
+        public Encoding getEncoding() { return encoding; }
+        public long getCost() { return costOf(encoding); }
+        /** The delta of a CLASS_DELTA entry, which is only kept until it is written */
+        byte[] takeClassDelta() {
+            final byte[] delta = classDelta;
+            classDelta = null;
+            return delta;
+        }
+
+        private Encoding cheapestOf(Set<Encoding> allowed) {
+            Encoding cheapest = Encoding.WHOLE;
+            for(final Encoding enc : allowed) if(costOf(enc) >= 0 && costOf(enc) < costOf(cheapest)) cheapest = enc;
+            return cheapest;
+        }
+    }
+
+    private final Map<String,EntryPlan> entries = new LinkedHashMap<>();
+    private final double maxPatchRatio;
+    private long overheadBytes = PATCH_OVERHEAD;
+    private long archiveBytes;
+
+    private PatchPlan(double maxPatchRatio) { this.maxPatchRatio = maxPatchRatio; }
+
+    /** Plans the patch of given changes, where added entries can have a similar base entry in sources.
+      * Only when canEncode are encodings other than WHOLE considered
+      * (as they need the base data and are not supported by exact and sharded patches). Of those only
+      * the ones enabled in the options can be chosen and only those are estimated, unless estimateAll
+      * (see getBestPatchBytes()).
+      */
+    static PatchPlan create(ZipPatcher.Changes changes, Map<String,String> sources, Collection<ZipEntry> targetEntries, ExactLayout.DataSource baseData,
+                            ExactLayout.DataSource targetData, boolean canEncode, boolean estimateAll, PatchOptions options) throws IOException {
+        final PatchPlan plan = new PatchPlan(options.getMaxPatchRatio());
+        final Set<Encoding> allowed = EnumSet.of(Encoding.WHOLE);
+        if(canEncode && options.getDictionarySize() > 0) allowed.add(Encoding.DICTIONARY);
+        if(canEncode && options.hasClassDeltas())        allowed.add(Encoding.CLASS_DELTA);
+        final Set<Encoding> estimated = estimateAll ? EnumSet.allOf(Encoding.class) : allowed;
+        final int dictionarySize = options.getDictionarySize() > 0 ? options.getDictionarySize() : PresetDictionary.MAX_SIZE;
+
+        for(final ZipEntry entry : targetEntries) {
+            final boolean replaced = changes.replaced.contains(entry.getName());
+            if(!replaced && !changes.added.contains(entry.getName())) continue;
+
+            final String source = !canEncode ? null : replaced ? entry.getName() : sources.get(entry.getName());
+            final EntryPlan entryPlan = new EntryPlan(entry.getName(), source);
+            final long overhead = entryOverheadOf(entry.getName());
+            final long deflated = deflatedSizeOf(entry, targetData);
+            entryPlan.costs[Encoding.WHOLE.ordinal()] = deflated + overhead;
+            if(source != null) {
+                final long encodedOverhead = overhead + ZipUtil.toBytes(entry.getName()).length + ENCODED_LINE_SIZE + (replaced ? 0 : ZipUtil.toBytes(source).length);
+                if(estimated.contains(Encoding.DICTIONARY)) {
+                    entryPlan.costs[Encoding.DICTIONARY.ordinal()] = dictionaryDeflatedSizeOf(entry, deflated, source, baseData, targetData, dictionarySize) + encodedOverhead;
+                }
+                if(estimated.contains(Encoding.CLASS_DELTA) && ClassDelta.isClassFile(entry.getName()) && ClassDelta.isClassFile(source)) {
+                    entryPlan.classDelta = ClassDelta.encode(ClassDelta.readFully(baseData.open(source)), ClassDelta.readFully(targetData.open(entry.getName())));
+                    if(entryPlan.classDelta != null) entryPlan.costs[Encoding.CLASS_DELTA.ordinal()] = entryPlan.classDelta.length + encodedOverhead;
+                }
+            }
+            entryPlan.encoding = entryPlan.cheapestOf(allowed);
+            if(entryPlan.encoding != Encoding.CLASS_DELTA) entryPlan.classDelta = null;
+            plan.entries.put(entry.getName(), entryPlan);
+        }
+        for(final String removed : changes.removed) plan.overheadBytes += ZipUtil.toBytes(removed).length + 1L;
+        if(changes.hasNewHeaderData()) plan.overheadBytes += changes.newHeaderData.length;
+        return plan;
+    }
+    /** Local and central header of an entry with given name */
+    static long entryOverheadOf(String name) {
+        return ZipIndex.LOCAL_HEADER_SIZE + ZipIndex.CENTRAL_HEADER_SIZE + 2L * ZipUtil.toBytes(name).length;
+    }
+
+    PatchPlan setArchiveBytes(long bytes) { archiveBytes = bytes; return this; }
+
+    public Collection<EntryPlan> getEntries() { return Collections.unmodifiableCollection(entries.values()); }
+    /** Plan of given added or replaced entry, or null for other entries */
+    public EntryPlan getEntry(String name) { return entries.get(name); }
+    /** Chosen encoding of given added or replaced entry */
+    public Encoding encodingOf(String name) {
+        final EntryPlan entryPlan = entries.get(name);
+        return entryPlan == null ? Encoding.WHOLE : entryPlan.encoding;
+    }
+    /** Estimated size of the patch with the chosen encodings */
+    public long getPatchBytes() {
+        return overheadBytes + entries.values().stream().mapToLong(EntryPlan::getCost).sum();
+    }
+    /** Estimated size of the patch if the cheapest of all estimated encodings would be chosen */
+    public long getBestPatchBytes() {
+        return overheadBytes + entries.values().stream().mapToLong(e -> e.costOf(e.cheapestOf(EnumSet.allOf(Encoding.class)))).sum();
+    }
+    /** Size of the target archive (estimated when the target is a directory) */
+    public long getArchiveBytes() { return archiveBytes; }
+    public double getMaxPatchRatio() { return maxPatchRatio; }
+    /** True when the patch is more than the max ratio of the archive, so the archive itself can better be shipped */
+    public boolean recommendsFullArchive() {
+        return getPatchBytes() > maxPatchRatio * archiveBytes;
+    }
+
+    /** Summary of the plan, optionally with a line per entry */
+    public String toText(boolean perEntry) {
+        final StringBuilder sb = new StringBuilder();
+        if(perEntry) {
+            for(final EntryPlan entryPlan : entries.values()) {
+                sb.append(" - ").append(entryPlan.name);
+                if(entryPlan.source != null && !entryPlan.source.equals(entryPlan.name)) sb.append(" (similar to ").append(entryPlan.source).append(')');
+                sb.append(':');
+                for(final Encoding enc : Encoding.values()) {
+                    if(entryPlan.costOf(enc) >= 0) sb.append(' ').append(enc.getName()).append(' ').append(sizeToString(entryPlan.costOf(enc))).append(',');
+                }
+                sb.setLength(sb.length() - 1);
+                sb.append(" -> ").append(entryPlan.encoding.getName()).append('\n');
+            }
+        }
+        for(final Encoding enc : Encoding.values()) {
+            final long count = entries.values().stream().filter(e -> e.encoding == enc).count();
+            final long bytes = entries.values().stream().filter(e -> e.encoding == enc).mapToLong(EntryPlan::getCost).sum();
+            if(count > 0) sb.append(enc.getName().substring(0, 1).toUpperCase(Locale.ROOT)).append(enc.getName().substring(1))
+                            .append(": ").append(count).append(" entries (").append(sizeToString(bytes)).append(")\n");
+        }
+        if(getBestPatchBytes() < getPatchBytes()) {
+            sb.append("Using all encodings (--dictionary and --class-delta) the patch would be ").append(sizeToString(getBestPatchBytes())).append('\n');
+        }
+        sb.append("Estimated patch size is ").append(sizeToString(getPatchBytes()))
+          .append(" of ").append(sizeToString(archiveBytes)).append(" for the full archive (")
+          .append(archiveBytes == 0 ? 100 : Math.round(100.0 * getPatchBytes() / archiveBytes)).append("%): ")
+          .append(recommendsFullArchive()
+              ? "more than " + Math.round(maxPatchRatio * 100) + "%, so better ship the full archive"
+              : "generate the patch");
+        return sb.toString();
+    }
+
+    /** Deflated size of the entry, from the central directory or else estimated by deflating a sample */
+    private static long deflatedSizeOf(ZipEntry entry, ExactLayout.DataSource data) throws IOException {
+        if(entry.getCompressedSize() >= 0 && entry.getMethod() == ZipEntry.DEFLATED) return entry.getCompressedSize();
+        try(final InputStream in = data.open(entry.getName())) {
+            final byte[] sample = sampleOf(in);
+            return extrapolated(deflatedSizeOf(sample, new byte[0]), sample.length, entry.getSize());
+        }
+    }
+    /** A dictionary only helps the start of the data, so the rest is estimated as deflated without it */
+    private static long dictionaryDeflatedSizeOf(ZipEntry entry, long deflatedSize, String source, ExactLayout.DataSource baseData,
+                                                 ExactLayout.DataSource targetData, int dictionarySize) throws IOException {
+        final byte[] dictionary;
+        try(final InputStream baseIn = baseData.open(source)) {
+            dictionary = PresetDictionary.dictionaryOf(baseIn, dictionarySize);
+        }
+        final byte[] sample;
+        try(final InputStream in = targetData.open(entry.getName())) {
+            sample = sampleOf(in);
+        }
+        final long rest = entry.getSize() - sample.length;
+        return deflatedSizeOf(sample, dictionary) + (rest <= 0 ? 0 : (long)((double)deflatedSize * rest / entry.getSize()));
+    }
+    private static byte[] sampleOf(InputStream in) throws IOException {
+        final byte[] buf = new byte[SAMPLE_SIZE];
+        int len = 0;
+        for(int n; len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0; ) len += n;
+        return len == buf.length ? buf : Arrays.copyOf(buf, len);
+    }
+    private static long deflatedSizeOf(byte[] data, byte[] dictionary) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(data.length / 2 + 64);
+        try(final OutputStream out = ZipUtil.deflating(bout, dictionary)) {
+            out.write(data);
+        }
+        return bout.size();
+    }
+    private static long extrapolated(long part, long partSize, long size) {
+        return partSize <= 0 || size <= partSize ? part : (long)((double)part * size / partSize);
+    }
+}
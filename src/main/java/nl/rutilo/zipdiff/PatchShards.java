@@ -0,0 +1,124 @@
+package nl.rutilo.zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static nl.rutilo.zipdiff.ZipUtil.asString;
+import static nl.rutilo.zipdiff.ZipUtil.copyOf;
+import static nl.rutilo.zipdiff.ZipUtil.openZipForWriting;
+
+/** The entries of a sharded patch are spread over a number of independently compressed zip files
+  * (shards) next to the patch file, balanced by size. The patch file itself holds the administration
+  * and a manifest with the name, size and SHA-256 of each shard, one shard per line, so a shard can
+  * be transferred, verified and (when corrupt) fetched again on its own.
+  */
+class PatchShards {
+    private PatchShards() { /*singleton*/ }
+
+    /** Shard files are named after the patch file with the shard number appended */
+    static File shardFile(File patchFile, int number) {
+        return new File(patchFile.getPath() + "." + number);
+    }
+
+    /** Writes the shards (concurrently) and returns the manifest text */
+    static String write(List<ZipEntry> entries, ExactLayout.DataSource data, File patchFile, int count) throws IOException {
+        final List<List<ZipEntry>> shards = balance(entries, count);
+        final String[] lines = new String[count];
+        try {
+            IntStream.range(0, count).parallel().forEach(i -> {
+                try {
+                    final File file = shardFile(patchFile, i + 1);
+                    writeShard(file, shards.get(i), data);
+                    lines[i] = file.getName() + "\t" + file.length() + "\t" + ExactLayout.sha256Of(file);
+                } catch(final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch(final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return String.join("\n", lines);
+    }
+
+    /** Spreads the entries over count shards, each next largest entry going to the smallest shard so far.
+      * Within a shard the entries keep their original order.
+      */
+    static List<List<ZipEntry>> balance(List<ZipEntry> entries, int count) {
+        final List<Integer> bySize = IntStream.range(0, entries.size()).boxed()
+            .sorted(Comparator.comparingLong((Integer i) -> Math.max(0, entries.get(i).getSize())).reversed())
+            .collect(Collectors.toList());
+        final List<List<Integer>> shards = new ArrayList<>();
+        final long[] shardSizes = new long[count];
+        for(int i=0; i<count; i++) shards.add(new ArrayList<>());
+
+        for(final int entryIndex : bySize) {
+            int smallest = 0;
+            for(int i=1; i<count; i++) if(shardSizes[i] < shardSizes[smallest]) smallest = i;
+            shards.get(smallest).add(entryIndex);
+            shardSizes[smallest] += Math.max(0, entries.get(entryIndex).getSize());
+        }
+        final List<List<ZipEntry>> result = new ArrayList<>();
+        for(final List<Integer> shard : shards) {
+            Collections.sort(shard);
+            result.add(shard.stream().map(entries::get).collect(Collectors.toList()));
+        }
+        return result;
+    }
+
+    private static void writeShard(File file, List<ZipEntry> entries, ExactLayout.DataSource data) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        try(final ZipOutputStream out = openZipForWriting(file, null)) {
+            for(final ZipEntry entry : entries) {
+                out.putNextEntry(copyOf(entry));
+                try(final InputStream in = data.open(entry.getName())) {
+                    ZipUtil.copyAndReturnCount(in, out);
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    /** Returns the indexes of the shards in the manifest (empty for a patch that is not sharded), after
+      * verifying all shards concurrently. Each shard is checked against its hash and each of its entries
+      * is inflated and checked against its crc. When any shard fails, the exception names all failed
+      * shards so only those have to be fetched again.
+      */
+    static List<ZipIndex> readVerified(File patchFile, byte[] manifest) throws IOException {
+        final String text = asString(manifest).trim();
+        if(text.isEmpty()) return Collections.emptyList();
+        final String[] lines = text.split("\n");
+        final ZipIndex[] shards = new ZipIndex[lines.length];
+        final String[] problems = new String[lines.length];
+
+        IntStream.range(0, lines.length).parallel().forEach(i -> {
+            final String[] parts = lines[i].split("\t");
+            final File file = new File(patchFile.getAbsoluteFile().getParentFile(), parts[0]);
+            try {
+                if(parts.length != 3 || !file.isFile()) { problems[i] = parts[0] + " (missing)"; return; }
+                if(file.length() != Long.parseLong(parts[1]) || !ExactLayout.sha256Of(file).equals(parts[2])) { problems[i] = parts[0] + " (corrupt)"; return; }
+                shards[i] = ZipIndex.of(file);
+                if(!ZipVerifier.corruptEntriesOf(shards[i], name -> true, /*threads:*/1).isEmpty()) problems[i] = parts[0] + " (corrupt)";
+            } catch(final IOException | RuntimeException e) {
+                problems[i] = parts[0] + " (" + e.getMessage() + ")";
+            }
+        });
+        final List<String> failed = new ArrayList<>();
+        for(final String problem : problems) if(problem != null) failed.add(problem);
+        if(!failed.isEmpty()) throw new IOException("Patch shards need to be fetched again: " + String.join(", ", failed));
+
+        final List<ZipIndex> result = new ArrayList<>();
+        Collections.addAll(result, shards);
+        return result;
+    }
+}
@@ -0,0 +1,128 @@
+package nl.rutilo.zipdiff;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Per thread pools of inflaters, deflaters and copy buffers, so hot loops don't allocate a native
+  * (de)compressor or buffer for each entry. What is borrowed should be released exactly once, after
+  * which it should no longer be used. Something released on another thread than it was borrowed on
+  * simply ends up in the pool of that thread.
+  * Buffers are pooled in power of two sizes from COPY_BUFFER_SIZE up to MAX_POOLED_BUFFER_SIZE.
+  * The JDK zip streams (ZipInputStream, ZipOutputStream) own their (de)compressor, so they can't use these pools.
+  */
+public class Pools {
+    private Pools() { /*singleton*/ }
+    private static final int MAX_POOLED_PER_THREAD = 8;
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+    private static final int BUFFER_SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_POOLED_BUFFER_SIZE / ZipUtil.COPY_BUFFER_SIZE) + 1;
+
+    private static final ThreadLocal<Local> LOCAL = ThreadLocal.withInitial(Local::new);
+    private static final LongAdder inflaterHits   = new LongAdder();
+    private static final LongAdder inflaterMisses = new LongAdder();
+    private static final LongAdder deflaterHits   = new LongAdder();
+    private static final LongAdder deflaterMisses = new LongAdder();
+    private static final LongAdder bufferHits     = new LongAdder();
+    private static final LongAdder bufferMisses   = new LongAdder();
+
+    private static class Local {
+        final ArrayDeque<Inflater> inflaters       = new ArrayDeque<>();
+        final ArrayDeque<Inflater> nowrapInflaters = new ArrayDeque<>();
+        final ArrayDeque<Deflater> deflaters       = new ArrayDeque<>();
+        final ArrayDeque<Deflater> nowrapDeflaters = new ArrayDeque<>();
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ArrayDeque<byte[]>[] buffers = new ArrayDeque[BUFFER_SIZE_CLASSES];
+        Local() { for(int i=0; i<buffers.length; i++) buffers[i] = new ArrayDeque<>(); }
+    }
+
+    /** Hit and miss counters of the pools since the start (or the last reset) */
+    public static class Stats {
+        public final long inflaterHits;
+        public final long inflaterMisses;
+        public final long deflaterHits;
+        public final long deflaterMisses;
+        public final long bufferHits;
+        public final long bufferMisses;
+
+        Stats() {
+            inflaterHits   = Pools.inflaterHits.sum();
+            inflaterMisses = Pools.inflaterMisses.sum();
+            deflaterHits   = Pools.deflaterHits.sum();
+            deflaterMisses = Pools.deflaterMisses.sum();
+            bufferHits     = Pools.bufferHits.sum();
+            bufferMisses   = Pools.bufferMisses.sum();
+        }
+        @Override public String toString() {
+            return "inflaters " + inflaterHits + "/" + (inflaterHits + inflaterMisses)
+                + ", deflaters " + deflaterHits + "/" + (deflaterHits + deflaterMisses)
+                + ", buffers " + bufferHits + "/" + (bufferHits + bufferMisses) + " (hits/total)";
+        }
+    }
+    public static Stats getStats() { return new Stats(); }
+    public static void resetStats() {
+        for(final LongAdder counter : new LongAdder[] { inflaterHits, inflaterMisses, deflaterHits, deflaterMisses, bufferHits, bufferMisses }) counter.reset();
+    }
+
+    public static Inflater borrowInflater(boolean nowrap) {
+        final Inflater inflater = inflatersOf(LOCAL.get(), nowrap).pollLast();
+        if(inflater != null) { inflaterHits.increment(); return inflater; }
+        inflaterMisses.increment();
+        return new Inflater(nowrap);
+    }
+    public static void release(Inflater inflater, boolean nowrap) {
+        final ArrayDeque<Inflater> pool = inflatersOf(LOCAL.get(), nowrap);
+        if(pool.size() >= MAX_POOLED_PER_THREAD) { inflater.end(); return; }
+        inflater.reset();
+        pool.addLast(inflater);
+    }
+    private static ArrayDeque<Inflater> inflatersOf(Local local, boolean nowrap) {
+        return nowrap ? local.nowrapInflaters : local.inflaters;
+    }
+
+    public static Deflater borrowDeflater(int level, boolean nowrap) {
+        final Deflater pooled = deflatersOf(LOCAL.get(), nowrap).pollLast();
+        if(pooled == null) {
+            deflaterMisses.increment();
+            return new Deflater(level, nowrap);
+        }
+        deflaterHits.increment();
+        pooled.setLevel(level);
+        return pooled;
+    }
+    public static void release(Deflater deflater, boolean nowrap) {
+        final ArrayDeque<Deflater> pool = deflatersOf(LOCAL.get(), nowrap);
+        if(pool.size() >= MAX_POOLED_PER_THREAD) { deflater.end(); return; }
+        deflater.reset();
+        pool.addLast(deflater);
+    }
+    private static ArrayDeque<Deflater> deflatersOf(Local local, boolean nowrap) {
+        return nowrap ? local.nowrapDeflaters : local.deflaters;
+    }
+
+    /** Returns a buffer of COPY_BUFFER_SIZE */
+    public static byte[] borrowBuffer() {
+        return borrowBuffer(ZipUtil.COPY_BUFFER_SIZE);
+    }
+    /** Returns a buffer of at least given size (rounded up to a power of two) */
+    public static byte[] borrowBuffer(int minSize) {
+        if(minSize > MAX_POOLED_BUFFER_SIZE) { bufferMisses.increment(); return new byte[minSize]; }
+        final int size = Math.max(ZipUtil.COPY_BUFFER_SIZE, Integer.highestOneBit(Math.max(1, minSize - 1)) << 1);
+        final int sizeClass = sizeClassOf(size);
+        final byte[] pooled = sizeClass < 0 ? null : LOCAL.get().buffers[sizeClass].pollLast();
+        if(pooled != null) { bufferHits.increment(); return pooled; }
+        bufferMisses.increment();
+        return new byte[size];
+    }
+    public static void release(byte[] buffer) {
+        final int sizeClass = sizeClassOf(buffer.length);
+        if(sizeClass < 0) return;
+        final ArrayDeque<byte[]> pool = LOCAL.get().buffers[sizeClass];
+        if(pool.size() < MAX_POOLED_PER_THREAD) pool.addLast(buffer);
+    }
+    /** Index of the pool for buffers of given size, or -1 for a size that is not pooled */
+    private static int sizeClassOf(int size) {
+        if(Integer.bitCount(size) != 1 || size < ZipUtil.COPY_BUFFER_SIZE || size > MAX_POOLED_BUFFER_SIZE) return -1;
+        return Integer.numberOfTrailingZeros(size / ZipUtil.COPY_BUFFER_SIZE);
+    }
+}
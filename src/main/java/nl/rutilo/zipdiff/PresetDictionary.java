@@ -0,0 +1,103 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/** Replaced entries in a patch can be deflated with the start of their base version as preset
+  * dictionary, so unchanged parts compress to references into the base. Such an entry is stored
+  * (not deflated again) in the patch, where its real crc and size are kept in the patch administration,
+  * one entry per line: name, crc, size and dictionary size, separated by tabs. Class files that are
+  * encoded as a ClassDelta against their base version are listed there too, with "class" added.
+  * An added entry can be encoded against a similar base entry with another name (see SimilarityIndex),
+  * in which case "class" or "dictionary" is followed by the name of that base entry.
+  */
+class PresetDictionary {
+    private PresetDictionary() { /*singleton*/ }
+    /** The deflate window minus the lookahead zlib keeps, so the whole dictionary can be referred to */
+    static final int MAX_SIZE = 32 * 1024 - 262;
+
+    /** Opens the base version of an encoded entry */
+    @FunctionalInterface
+    interface BaseOpener {
+        InputStream open() throws IOException;
+    }
+
+    /** Original crc and size of an entry that is encoded with a preset dictionary or as class delta */
+    static class Encoded {
+        final long crc;
+        final long size;
+        final int dictionarySize;
+        final boolean isClassDelta;
+        /** Name of the base entry that is the source of the encoding, or null when that has the same name */
+        final String sourceName;
+        Encoded(long crc, long size, int dictionarySize) { this(crc, size, dictionarySize, false); }
+        Encoded(long crc, long size, int dictionarySize, boolean isClassDelta) { this(crc, size, dictionarySize, isClassDelta, null); }
+        Encoded(long crc, long size, int dictionarySize, boolean isClassDelta, String sourceName) {
+            this.crc = crc;
+            this.size = size;
+            this.dictionarySize = dictionarySize;
+            this.isClassDelta = isClassDelta;
+            this.sourceName = sourceName;
+        }
+
+        /** Name of the base entry to decode the entry of given name with */
+        String sourceOf(String name) { return sourceName == null ? name : sourceName; }
+
+        /** The entry as it should be in the patched result */
+        ZipEntry decodedEntry(ZipEntry patchEntry) {
+            final ZipEntry entry = new ZipEntry(patchEntry.getName());
+            if(patchEntry.getTime() != -1) entry.setTime(patchEntry.getTime());
+            entry.setCrc(crc);
+            entry.setSize(size);
+            return entry;
+        }
+
+        /** Returns the decoded data of the encoded patch data, which is closed when the result is closed */
+        InputStream decode(InputStream patchData, BaseOpener base) throws IOException {
+            if(isClassDelta) {
+                final byte[] baseData = ClassDelta.readFully(base.open());
+                return new ByteArrayInputStream(ClassDelta.decode(baseData, ClassDelta.readFully(patchData)));
+            }
+            final byte[] dictionary;
+            try(final InputStream baseIn = base.open()) {
+                dictionary = dictionaryOf(baseIn, dictionarySize);
+            }
+            return ZipIndex.inflating(patchData, "encoded entry", dictionary);
+        }
+    }
+
+    /** Returns up to size bytes from the start of given data */
+    static byte[] dictionaryOf(InputStream data, int size) throws IOException {
+        final byte[] buf = new byte[Math.min(size, MAX_SIZE)];
+        int len = 0;
+        for(int n; len < buf.length && (n = data.read(buf, len, buf.length - len)) > 0; ) len += n;
+        final byte[] dictionary = new byte[len];
+        System.arraycopy(buf, 0, dictionary, 0, len);
+        return dictionary;
+    }
+
+    static String toText(Map<String,Encoded> encoded) {
+        final StringBuilder sb = new StringBuilder();
+        encoded.forEach((name, enc) -> {
+            sb.append(name).append('\t').append(enc.crc).append('\t').append(enc.size).append('\t').append(enc.dictionarySize);
+            if(enc.sourceName != null) sb.append(enc.isClassDelta ? "\tclass\t" : "\tdictionary\t").append(enc.sourceName);
+            else if(enc.isClassDelta)  sb.append("\tclass");
+            sb.append('\n');
+        });
+        return sb.toString();
+    }
+    static Map<String,Encoded> fromText(String text) {
+        final Map<String,Encoded> encoded = new LinkedHashMap<>();
+        for(final String line : text.split("\n")) {
+            if(line.isEmpty()) continue;
+            final String[] parts = line.split("\t");
+            encoded.put(parts[0], new Encoded(Long.parseLong(parts[1]), Long.parseLong(parts[2]), Integer.parseInt(parts[3]),
+                parts.length > 4 && "class".equals(parts[4]), parts.length > 5 ? parts[5] : null));
+        }
+        return encoded;
+    }
+}
@@ -0,0 +1,71 @@
+package nl.rutilo.zipdiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Fetches the regions of zip entries from a RangeSource in as few range requests as possible.
+  * Regions that are at most maxGap bytes apart are merged into a single request: fetching the
+  * gap as well is cheaper than another round trip. The fetched bytes are written at their own
+  * offsets in a (sparse) spill file, so the entries can be copied from it as if it was the zip.
+  */
+class RangeFetcher {
+    static final int DEFAULT_MAX_GAP = 16 * 1024;
+
+    private final long maxGap;
+    private int  requests;
+    private long bytes;
+
+    static class Range {
+        final long start;
+        final long end;
+        Range(long start, long end) { this.start = start; this.end = end; }
+        long length() { return end - start; }
+    }
+
+    RangeFetcher(long maxGap) { this.maxGap = maxGap; }
+
+    int  getRequestCount() { return requests; }
+    long getFetchedBytes() { return bytes; }
+
+    /** Regions of given entries (in file order), where regions less than maxGap apart are merged */
+    List<Range> mergedRangesOf(List<ZipIndex.Entry> entries) {
+        final List<Range> ranges = new ArrayList<>();
+        long start = -1;
+        long end   = -1;
+        for(final ZipIndex.Entry entry : entries) {
+            if(start >= 0 && entry.localHeaderOffset - end <= maxGap) {
+                end = Math.max(end, entry.getRegionEnd());
+                continue;
+            }
+            if(start >= 0) ranges.add(new Range(start, end));
+            start = entry.localHeaderOffset;
+            end   = entry.getRegionEnd();
+        }
+        if(start >= 0) ranges.add(new Range(start, end));
+        return ranges;
+    }
+
+    /** Fetches the merged regions of given entries (in file order) into spill, at the same offsets */
+    void fetch(RangeSource source, List<ZipIndex.Entry> entries, FileChannel spill) throws IOException {
+        for(final Range range : mergedRangesOf(entries)) fetch(source, range.start, range.length(), spill);
+    }
+    void fetch(RangeSource source, long start, long length, FileChannel spill) throws IOException {
+        final byte[] buffer = Pools.borrowBuffer();
+        try(final InputStream in = source.openRange(start, length)) {
+            requests++;
+            long pos = start;
+            for(int n; (n = in.read(buffer)) > 0; pos += n) {
+                final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                for(long p = pos; bb.hasRemaining(); ) p += spill.write(bb, p);
+            }
+            if(pos != start + length) throw new IOException("Unexpected end of range " + start + "-" + (start + length) + " of " + source);
+            bytes += length;
+        } finally {
+            Pools.release(buffer);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package nl.rutilo.zipdiff;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/** Random access to the bytes of a (remote) file, as with HTTP range requests. This is all that is
+  * needed of a target zip to patch a local base to it: the central directory is read from the end
+  * and then only the ranges of the added and replaced entries (see ZipPatcher.patchFromRanges()).
+  */
+public interface RangeSource extends Closeable {
+    long length() throws IOException;
+
+    /** Opens a stream of given number of bytes at given offset */
+    InputStream openRange(long offset, long length) throws IOException;
+
+    /** Reads given number of bytes at given offset */
+    default byte[] read(long offset, int length) throws IOException {
+        try(final InputStream in = openRange(offset, length)) {
+            final byte[] data = new byte[length];
+            for(int pos = 0, n; pos < length; pos += n) {
+                n = in.read(data, pos, length - pos);
+                if(n < 0) throw new IOException("Unexpected end of range at " + (offset + pos));
+            }
+            return data;
+        }
+    }
+
+    @Override default void close() throws IOException { /*nothing to close*/ }
+
+    /** Source of given http(s) url or else of given local file */
+    static RangeSource of(String fileOrUrl) throws IOException {
+        return isUrl(fileOrUrl) ? of(new URL(fileOrUrl)) : of(new File(fileOrUrl));
+    }
+    static boolean isUrl(String fileOrUrl) {
+        return fileOrUrl.matches("(?i)^https?://.*");
+    }
+
+    /** Source of a local file, mostly for testing */
+    static RangeSource of(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ); // NOSONAR: closed by returned source
+        return new RangeSource() {
+            @Override public long length() throws IOException { return channel.size(); }
+            @Override public InputStream openRange(long offset, long length) {
+                return new ZipIndex.BoundedInputStream(new ZipIndex.ChannelInputStream(channel, offset, /*closeChannel:*/false), length);
+            }
+            @Override public void close() throws IOException { channel.close(); }
+            @Override public String toString() { return file.getPath(); }
+        };
+    }
+
+    /** Source of a file on an http(s) server, which should support range requests. Each range is a request. */
+    static RangeSource of(URL url) {
+        return new RangeSource() {
+            private long length = -1;
+
+            @Override public synchronized long length() throws IOException {
+                if(length < 0) {
+                    final HttpURLConnection connection = openRangeConnection(0, 1);
+                    try {
+                        final String range = connection.getHeaderField("Content-Range"); // bytes 0-0/length
+                        final int slash = range == null ? -1 : range.lastIndexOf('/');
+                        if(slash < 0 || range.endsWith("*")) throw new IOException("No length in range response of " + url);
+                        length = Long.parseLong(range.substring(slash + 1).trim());
+                    } finally {
+                        connection.disconnect();
+                    }
+                }
+                return length;
+            }
+            @Override public InputStream openRange(long offset, long length) throws IOException {
+                return new ZipIndex.BoundedInputStream(openRangeConnection(offset, length).getInputStream(), length);
+            }
+            private HttpURLConnection openRangeConnection(long offset, long length) throws IOException {
+                final HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+                connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+                connection.setRequestProperty("Accept-Encoding", "identity");
+                final int status = connection.getResponseCode();
+                if(status != HttpURLConnection.HTTP_PARTIAL) {
+                    connection.disconnect();
+                    throw new IOException(status == HttpURLConnection.HTTP_OK
+                        ? "Server does not support range requests: " + url
+                        : "Unable to read range of " + url + " (HTTP " + status + ")");
+                }
+                return connection;
+            }
+            @Override public String toString() { return url.toString(); }
+        };
+    }
+}
@@ -0,0 +1,159 @@
+package nl.rutilo.zipdiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/** MinHash sketches of the content of base entries, to find the base entry that is most similar to an
+  * added entry (like one that was moved and edited), so that can be the source of a delta or dictionary.
+  * <p>
+  * A sketch holds per bin the minimum hash of the 8 byte shingles that fall in that bin (one permutation
+  * hashing, where empty bins take the value of the next bin), so the fraction of equal bins of two sketches
+  * estimates the resemblance of their contents. Candidates are found by locality sensitive hashing: bands
+  * of bins are hashed into buckets and only entries that share a bucket are compared.
+  * Sketches are built in parallel (common pool, so every core is used).
+  */
+class SimilarityIndex {
+    static final int SKETCH_SIZE  = 64;
+    static final int SHINGLE_SIZE = 8;
+    private static final int ROWS_PER_BAND = 4;
+    /** Resemblance below which a base entry is not considered a source */
+    static final double MIN_SIMILARITY = 0.3;
+    /** Entries smaller than this have too few shingles to be compared by sketch */
+    static final int MIN_SIZE = 64;
+    private static final long ROLL_BASE = 0x100000001B3L;
+    private static final long ROLL_OUT; // ROLL_BASE ^ SHINGLE_SIZE, to remove the byte leaving the shingle
+    static {
+        long pow = 1;
+        for(int i=0; i<SHINGLE_SIZE; i++) pow *= ROLL_BASE;
+        ROLL_OUT = pow;
+    }
+
+    private final Map<String,int[]> sketches = new LinkedHashMap<>();
+    private final Map<String,Long> sizes = new HashMap<>();
+    private final Map<Long,List<String>> buckets = new HashMap<>();
+
+    /** Sketches the data of given entries, which are skipped when too small */
+    static SimilarityIndex of(Collection<ZipEntry> entries, ExactLayout.DataSource data) throws IOException {
+        final List<ZipEntry> toSketch = new ArrayList<>();
+        for(final ZipEntry entry : entries) if(entry.getSize() >= MIN_SIZE && !entry.isDirectory()) toSketch.add(entry);
+        final int[][] sketches;
+        try {
+            sketches = toSketch.parallelStream().map(entry -> {
+                try(final InputStream in = data.open(entry.getName())) {
+                    return sketchOf(in);
+                } catch(final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).toArray(int[][]::new);
+        } catch(final UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final SimilarityIndex index = new SimilarityIndex();
+        for(int i=0; i<sketches.length; i++) index.add(toSketch.get(i).getName(), toSketch.get(i).getSize(), sketches[i]);
+        return index;
+    }
+    private void add(String name, long size, int[] sketch) {
+        sketches.put(name, sketch);
+        sizes.put(name, size);
+        for(final long bucket : bucketsOf(sketch)) buckets.computeIfAbsent(bucket, b -> new ArrayList<>()).add(name);
+    }
+
+    int size() { return sketches.size(); }
+
+    /** Returns the name of the indexed entry most similar to given data (of given size), or null when none is similar enough */
+    String mostSimilarTo(InputStream data, long size) throws IOException {
+        if(size < MIN_SIZE || sketches.isEmpty()) return null;
+        final int[] sketch = sketchOf(data);
+        final Set<String> candidates = new HashSet<>();
+        for(final long bucket : bucketsOf(sketch)) candidates.addAll(buckets.getOrDefault(bucket, Collections.emptyList()));
+
+        String best = null;
+        double bestSimilarity = MIN_SIMILARITY;
+        for(final String candidate : candidates) {
+            final long candidateSize = sizes.get(candidate);
+            if(Math.min(size, candidateSize) < Math.max(size, candidateSize) * MIN_SIMILARITY) continue; // can't be similar enough
+            final double similarity = similarityOf(sketch, sketches.get(candidate));
+            if(similarity > bestSimilarity || (similarity == bestSimilarity && best != null && candidate.compareTo(best) < 0)) {
+                best = candidate;
+                bestSimilarity = similarity;
+            }
+        }
+        return best;
+    }
+
+    /** Estimated resemblance (0..1) of the contents of the two sketches */
+    static double similarityOf(int[] a, int[] b) {
+        int equal = 0;
+        for(int i=0; i<SKETCH_SIZE; i++) if(a[i] == b[i]) equal++;
+        return (double)equal / SKETCH_SIZE;
+    }
+
+    static int[] sketchOf(InputStream in) throws IOException {
+        final int[] sketch = new int[SKETCH_SIZE];
+        final boolean[] filled = new boolean[SKETCH_SIZE];
+        final byte[] window = new byte[SHINGLE_SIZE];
+        final byte[] buffer = Pools.borrowBuffer();
+        try {
+            long rolling = 0;
+            long count = 0;
+            for(int n; (n = in.read(buffer)) > 0; ) {
+                for(int i=0; i<n; i++, count++) {
+                    final int slot = (int)(count % SHINGLE_SIZE);
+                    rolling = rolling * ROLL_BASE + (buffer[i] & 0xFF) - (window[slot] & 0xFF) * ROLL_OUT;
+                    window[slot] = buffer[i];
+                    if(count + 1 < SHINGLE_SIZE) continue;
+
+                    final long hash = mix(rolling);
+                    final int bin = (int)((hash >>> 32) % SKETCH_SIZE);
+                    final int value = (int)hash & 0x7FFFFFFF;
+                    if(!filled[bin] || value < sketch[bin]) { sketch[bin] = value; filled[bin] = true; }
+                }
+            }
+        } finally {
+            Pools.release(buffer);
+        }
+        densify(sketch, filled);
+        return sketch;
+    }
+    /** Empty bins take the value of the next filled bin, so sketches of small contents remain comparable */
+    private static void densify(int[] sketch, boolean[] filled) {
+        int anyFilled = -1;
+        for(int i=0; i<SKETCH_SIZE && anyFilled < 0; i++) if(filled[i]) anyFilled = i;
+        if(anyFilled < 0) return;
+        for(int i=0; i<SKETCH_SIZE; i++) {
+            if(filled[i]) continue;
+            int next = (i + 1) % SKETCH_SIZE;
+            while(!filled[next]) next = (next + 1) % SKETCH_SIZE;
+            sketch[i] = sketch[next] ^ (i * 0x9E3779B9 & 0x7FFFFFFF); // differs per bin, but equal for equal sketches
+        }
+    }
+    private static long[] bucketsOf(int[] sketch) {
+        final long[] bucketsOfSketch = new long[SKETCH_SIZE / ROWS_PER_BAND];
+        for(int band=0; band<bucketsOfSketch.length; band++) {
+            long hash = band;
+            for(int row=0; row<ROWS_PER_BAND; row++) hash = hash * 31 + sketch[band * ROWS_PER_BAND + row];
+            bucketsOfSketch[band] = mix(hash);
+        }
+        return bucketsOfSketch;
+    }
+    /** Finalizer of murmur3, to spread the bits of a rolling hash */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
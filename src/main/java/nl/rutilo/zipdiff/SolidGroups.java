@@ -0,0 +1,112 @@
+package nl.rutilo.zipdiff;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/** Small entries of a patch can be kept in solid groups: entries with the same extension (so likely
+  * with similar content) are concatenated into a single administration entry that is deflated as one
+  * stream. The deflate window then spans entries and there are no headers per entry, which for many
+  * small entries results in a much smaller patch. Groups are split at MAX_GROUP_SIZE, so they are still
+  * compressed in parallel (see EntryPipeline).
+  * The members of the groups are kept in the patch administration, one per line: name, group, offset in
+  * the group, size, crc, time and method, separated by tabs. Members are listed in the order of their
+  * data in the group, so patching decodes each group in a single pass.
+  */
+class SolidGroups {
+    private SolidGroups() { /*singleton*/ }
+    /** Entries larger than this are not put in a group, as they compress fine by themselves */
+    static final int MAX_ENTRY_SIZE = 64 * 1024;
+    static final int MAX_GROUP_SIZE = 1024 * 1024;
+    private static final String GROUP_PREFIX = ".solid_";
+    private static final String GROUP_SUFFIX = ".zipdiff";
+
+    /** Entry in a solid group */
+    static class Member {
+        final String name;
+        final String group;
+        final long offset;
+        final long size;
+        final long crc;
+        final long time;
+        final int method;
+        Member(String name, String group, long offset, long size, long crc, long time, int method) { // NOSONAR -- simple value holder
+            this.name = name;
+            this.group = group;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+            this.time = time;
+            this.method = method;
+        }
+
+        /** The entry as it should be in the patched result */
+        ZipEntry entry() {
+            final ZipEntry entry = new ZipEntry(name);
+            if(time != -1) entry.setTime(time);
+            entry.setMethod(method);
+            entry.setCrc(crc);
+            entry.setSize(size);
+            return entry;
+        }
+    }
+
+    static boolean canBeMember(ZipEntry entry) {
+        return !entry.isDirectory() && entry.getSize() >= 0 && entry.getSize() <= MAX_ENTRY_SIZE && entry.getCrc() != -1;
+    }
+    static boolean isGroup(String name) {
+        return name.startsWith(GROUP_PREFIX) && name.endsWith(GROUP_SUFFIX) && name.indexOf('/') < 0;
+    }
+
+    /** Members of given entries (that can be members) per group, in group order */
+    static Map<String,List<Member>> groupsOf(List<ZipEntry> entries) {
+        final Map<String,List<ZipEntry>> byExtension = new LinkedHashMap<>();
+        for(final ZipEntry entry : entries) byExtension.computeIfAbsent(extensionOf(entry.getName()), ext -> new ArrayList<>()).add(entry);
+
+        final Map<String,List<Member>> groups = new LinkedHashMap<>();
+        for(final List<ZipEntry> sameExtension : byExtension.values()) {
+            List<Member> group = null;
+            String groupName = null;
+            long offset = 0;
+            for(final ZipEntry entry : sameExtension) {
+                if(group == null || offset + entry.getSize() > MAX_GROUP_SIZE) {
+                    groupName = GROUP_PREFIX + (groups.size() + 1) + GROUP_SUFFIX;
+                    group = new ArrayList<>();
+                    groups.put(groupName, group);
+                    offset = 0;
+                }
+                group.add(new Member(entry.getName(), groupName, offset, entry.getSize(), entry.getCrc(), entry.getTime(),
+                                     entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED));
+                offset += entry.getSize();
+            }
+        }
+        return groups;
+    }
+    /** Lower case extension of the file name, or empty when it has none */
+    static String extensionOf(String name) {
+        final String fileName = name.substring(name.lastIndexOf('/') + 1);
+        final int dot = fileName.lastIndexOf('.');
+        return dot <= 0 ? "" : fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    static String toText(Map<String,List<Member>> groups) {
+        final StringBuilder sb = new StringBuilder();
+        groups.values().forEach(group -> group.forEach(member -> sb
+            .append(member.name).append('\t').append(member.group).append('\t').append(member.offset).append('\t').append(member.size)
+            .append('\t').append(member.crc).append('\t').append(member.time).append('\t').append(member.method).append('\n')));
+        return sb.toString();
+    }
+    static Map<String,List<Member>> fromText(String text) {
+        final Map<String,List<Member>> groups = new LinkedHashMap<>();
+        for(final String line : text.split("\n")) {
+            if(line.isEmpty()) continue;
+            final String[] parts = line.split("\t");
+            groups.computeIfAbsent(parts[1], group -> new ArrayList<>()).add(new Member(parts[0], parts[1], Long.parseLong(parts[2]),
+                Long.parseLong(parts[3]), Long.parseLong(parts[4]), Long.parseLong(parts[5]), Integer.parseInt(parts[6])));
+        }
+        return groups;
+    }
+}
@@ -2,7 +2,9 @@ package nl.rutilo.zipdiff;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.Collection;
+import java.util.List;
 
 import static nl.rutilo.zipdiff.ZipUtil.asString;
 import static nl.rutilo.zipdiff.ZipUtil.exhaust;
@@ -11,29 +13,86 @@ import static nl.rutilo.zipdiff.ZipUtil.sorted;
 
 public class ZipDiff {
     private ZipDiff() { /*singleton*/ }
+    // Output is per thread, so commands can run concurrently (in server mode)
+    private static final ThreadLocal<PrintStream> OUT = ThreadLocal.withInitial(() -> System.out);
+    private static final ThreadLocal<PrintStream> ERR = ThreadLocal.withInitial(() -> System.err);
 
     public static void main(String... argsIn) {
+        run(System.out, System.err, /*onServer:*/false, argsIn);
+    }
+
+    /** Runs the command of given arguments with output to given streams. On a server no other server can be started or used. */
+    public static void run(PrintStream outStream, PrintStream errStream, boolean onServer, String... argsIn) {
+        OUT.set(outStream);
+        ERR.set(errStream);
         try {
             final CLIArgs args = CLIArgs.createFor(argsIn);
 
+            if(onServer && (args.serve > 0 || args.server > 0)) {
+                throw new IllegalArgumentException("Cannot serve or use a server on the server.");
+            } else
+            if(args.serve > 0) {
+                serve(args.serve);
+            } else
+            if(args.server > 0) {
+                ZipDiffServer.runOnServer(args.server, args.toCommandArgs(), outStream, errStream);
+            } else
             if (args.help) {
                 printHelp();
             } else {
+                // add the base file to a blob store and/or retire a version from it
+                if(args.store != null) updateStore(args.store, args.baseFile, args.ingest, args.retire, args.verbose);
+                else
+
+                // export the portable index of a zip, to generate patches for it elsewhere
+                if(args.exportIndex != null) exportIndex(args.baseFile, args.exportIndex, args.verbose);
+                else
+
+                // check the integrity of all entries of a zip
+                if(args.verify) verifyZip(args.baseFile, args.verbose);
+                else
+
+                // check if a patch matches the base, without patching
+                if(args.dryRun) verifyPatch(args.baseFile, args.patchWith);
+                else
+
+                // patch an extracted zip (directory) in place
+                if(args.inPlace) patchInPlace(args.baseFile, args.patchWith, args.ignoreValidation, args.verbose);
+                else
+
+                // patch an existing zip to a remote zip, fetching only the changed entries
+                if(args.fetchFrom != null) patchFromRanges(args.baseFile, args.fetchFrom, args.patchTo, args.ignoreValidation, args.verbose);
+                else
+
                 // patch an existing zip to a new zip
                 if(args.patchTo != null) patch(args.baseFile, args.patchWith, args.patchTo, args.ignoreValidation, args.verbose);
                 else
 
+                // compare two files and print the estimated cost of the patch, without generating it
+                if(args.plan) planPatch(args.baseFile, args.compareWith, args.filter, patchOptionsOf(args), args.verbose);
+                else
+
                 // compare two files and generate a patch file
-                if(args.generatePatch != null) generatePatch(args.baseFile, args.compareWith, args.generatePatch, args.verbose);
+                if(args.generatePatch != null) generatePatch(args.baseFile, args.compareWith, args.generatePatch, args.filter, patchOptionsOf(args), args.verbose);
                 else
 
                 // compare two files and list the differences
-                    listDiff(args.baseFile, args.compareWith, args.verbose);
+                    listDiff(args.baseFile, args.compareWith, args.filter, args.format, args.verbose);
             }
         } catch(final IOException e) {
             err("ERROR: " + e.getMessage());
         } catch(final IllegalArgumentException e) {
             err("Command ERROR: " + e.getMessage());
+        } finally {
+            OUT.remove();
+            ERR.remove();
+        }
+    }
+
+    public static void serve(int port) throws IOException {
+        try(final ZipDiffServer server = new ZipDiffServer(port)) {
+            out("Serving on localhost:" + server.getPort() + " for clients that can read " + server.getTokenFile());
+            server.serve();
         }
     }
 
@@ -46,8 +105,24 @@ public class ZipDiff {
     }
 
     public static void listDiff(String fileA, String fileB, boolean verbose) throws IOException {
-        final ZipPatcher zipA = new ZipPatcher(new File(fileA));
-        final ZipPatcher zipB = new ZipPatcher(new File(fileB));
+        listDiff(fileA, fileB, EntryFilter.ALL, verbose);
+    }
+    public static void listDiff(String fileA, String fileB, EntryFilter filter, boolean verbose) throws IOException {
+        listDiff(fileA, fileB, filter, DiffFormat.TEXT, verbose);
+    }
+    public static void listDiff(String fileA, String fileB, EntryFilter filter, DiffFormat format, boolean verbose) throws IOException {
+        final ZipPatcher zipA = new ZipPatcher(new File(fileA), filter);
+        final ZipPatcher zipB = new ZipPatcher(new File(fileB), filter);
+        if(format != DiffFormat.TEXT) {
+            final PrintStream out = OUT.get();
+            zipA.visitChangesTo(zipB, format.recordWriterTo(out));
+            format.end(out);
+            return;
+        }
+        if(zipA.hasSameContentAs(zipB)) {
+            out("No changes from " + fileA + " to " + fileB);
+            return;
+        }
         final ZipPatcher.Changes changes = zipA.getChangesTo(zipB);
 
         final int added    = changes.added   .size();
@@ -64,13 +139,35 @@ public class ZipDiff {
             out("No changes from " + fileA + " to " + fileB);
         }
     }
+    private static PatchOptions patchOptionsOf(CLIArgs args) {
+        return new PatchOptions()
+            .setExact(args.exact)
+            .setShards(args.shards)
+            .setDictionarySize(args.dictionary ? PresetDictionary.MAX_SIZE : 0)
+            .setClassDeltas(args.classDelta)
+            .setSimilarSources(args.similar)
+            .setSolid(args.solid)
+            .setMerkleTree(args.merkleTree)
+            .setMaxPatchRatio(args.maxRatio);
+    }
     public static void generatePatch(String fileA, String fileB, String patchName, boolean verbose) throws IOException {
-        final ZipPatcher zipA = new ZipPatcher(new File(fileA));
-        final ZipPatcher zipB = new ZipPatcher(new File(fileB));
+        generatePatch(fileA, fileB, patchName, EntryFilter.ALL, new PatchOptions(), verbose);
+    }
+    public static void generatePatch(String fileA, String fileB, String patchName, EntryFilter filter, PatchOptions options, boolean verbose) throws IOException {
+        final ZipPatcher zipA = new ZipPatcher(new File(fileA), filter);
+        final ZipPatcher zipB = new ZipPatcher(new File(fileB), filter);
         final File patchFile = new File(patchName);
 
-        zipA.generatePatchFileTo(zipB, patchFile);
-        if(verbose) out("Created patch file \"" + patchName + "\" of " + sizeToString(patchFile.length()));
+        zipA.generatePatchFileTo(zipB, zipA.getChangesTo(zipB), patchFile, options);
+        if(verbose) out("Created patch file \"" + patchName + "\" of " + sizeToString(patchFile.length())
+                        + (options.getShards() > 1 ? " with " + options.getShards() + " shards" : ""));
+    }
+    public static void planPatch(String fileA, String fileB, EntryFilter filter, PatchOptions options, boolean verbose) throws IOException {
+        final ZipPatcher zipA = new ZipPatcher(new File(fileA), filter);
+        final ZipPatcher zipB = new ZipPatcher(new File(fileB), filter);
+
+        final PatchPlan plan = zipA.planPatchTo(zipB, zipA.getChangesTo(zipB), options);
+        out("Plan of patch from " + fileA + " to " + fileB + ":\n" + plan.toText(verbose));
     }
     public static void patch(String fileBase, String patchName, String patchTarget, boolean ignoreValidation, boolean verbose) throws IOException {
         final ZipPatcher zipBase  = new ZipPatcher(new File(fileBase));
@@ -78,9 +175,63 @@ public class ZipDiff {
         zipBase.patchTo(new File(patchName), new File(patchTarget), ignoreValidation);
         if(verbose) out("Patched " + fileBase + " to " + patchTarget);
     }
+    public static void patchFromRanges(String fileBase, String fetchFrom, String patchTarget, boolean ignoreValidation, boolean verbose) throws IOException {
+        final ZipPatcher zipBase = new ZipPatcher(new File(fileBase));
+
+        final ZipPatcher.Fetched fetched;
+        try(final RangeSource target = RangeSource.of(fetchFrom)) {
+            fetched = zipBase.patchFromRanges(target, new File(patchTarget), ignoreValidation);
+        }
+        if(verbose) out("Patched " + fileBase + " to " + patchTarget + ", fetching " + fetched.entries + " entries ("
+                        + sizeToString(fetched.bytes) + ") from " + fetchFrom + " in " + fetched.requests + " range requests");
+    }
+
+    public static void exportIndex(String fileName, String indexName, boolean verbose) throws IOException {
+        final File indexFile = new File(indexName);
+        new ZipPatcher(new File(fileName)).exportIndexTo(indexFile);
+        if(verbose) out("Exported index \"" + indexName + "\" of " + sizeToString(indexFile.length()));
+    }
+
+    /** Ingests the file as given version (when not null) and retires given version (when not null) from the store */
+    public static void updateStore(String storeDir, String fileName, String ingestAs, String retire, boolean verbose) throws IOException {
+        final BlobStore store = new BlobStore(new File(storeDir));
+        if(ingestAs != null) {
+            final long bytesBefore = verbose ? store.getBlobBytes() : 0;
+            store.ingest(ingestAs, new File(fileName));
+            if(verbose) out("Ingested " + fileName + " as " + store.versionFileOf(ingestAs).getPath() + " (" + sizeToString(store.getBlobBytes() - bytesBefore) + " of new data)");
+        }
+        if(retire != null) {
+            if(!store.retire(retire)) throw new IOException("No version " + retire + " in store " + storeDir);
+            final BlobStore.Collected collected = store.collectGarbage();
+            if(verbose) out("Retired " + retire + ", deleting " + collected.blobs + " unused blobs (" + sizeToString(collected.bytes) + ")");
+        }
+    }
+
+    public static void verifyZip(String fileName, boolean verbose) throws IOException {
+        final File file = new File(fileName);
+        if(file.isDirectory()) throw new IOException("Cannot verify a directory: " + fileName);
+
+        final List<String> corrupt = ZipVerifier.corruptEntriesOf(file);
+        if(!corrupt.isEmpty()) {
+            if(verbose) out("Corrupt entries:\n" + listItems(corrupt));
+            throw new IOException(fileName + " has " + corrupt.size() + " corrupt entries" + (verbose ? "" : ": " + String.join(", ", corrupt)));
+        }
+        out(fileName + " is valid" + (verbose ? " (" + ZipIndex.of(file).entries.size() + " entries)" : ""));
+    }
+
+    public static void verifyPatch(String fileBase, String patchName) throws IOException {
+        final ZipPatcher zipBase = new ZipPatcher(new File(fileBase));
+
+        if(!zipBase.verifyPatch(new File(patchName))) throw new IOException("CRC is incorrect. Patch " + patchName + " does not match " + fileBase);
+        out("Patch " + patchName + " matches " + fileBase);
+    }
+    public static void patchInPlace(String dirBase, String patchName, boolean ignoreValidation, boolean verbose) throws IOException {
+        ZipPatcher.patchInPlace(new File(patchName), new File(dirBase), ignoreValidation);
+        if(verbose) out("Patched " + dirBase + " in place");
+    }
 
-    private static void err(String txt) { System.err.println(txt); } // NOSONAR -- app too simple to add logger
-    private static void out(String txt) { System.out.println(txt); } // NOSONAR -- app too simple to add logger
+    private static void err(String txt) { ERR.get().println(txt); } // NOSONAR -- app too simple to add logger
+    private static void out(String txt) { OUT.get().println(txt); } // NOSONAR -- app too simple to add logger
     private static String listItems(Collection<String> items) {
         return items.isEmpty() ? "" : " - " + String.join("\n - ", items);
     }
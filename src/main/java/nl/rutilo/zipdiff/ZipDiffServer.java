@@ -0,0 +1,183 @@
+package nl.rutilo.zipdiff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/** Keeps a (warm) JVM running that handles ZipDiff commands of clients, which are ZipDiff
+  * instances started with --server. Commands run concurrently and their output is streamed back
+  * to the client while running. Zip indexes of recently used files are cached between commands.
+  * The server only listens on the loopback address, so only local clients can connect. Of those only
+  * clients of the same user are served: on start the server writes a random token to a file that only
+  * its owner can read (see tokenFileOf()), which clients should send before their command.
+  */
+public class ZipDiffServer implements Closeable {
+    public static final int INDEX_CACHE_SIZE = 64;
+    private static final int MAX_ARGS = 64;
+    private static final byte FRAME_OUT = 'O';
+    private static final byte FRAME_ERR = 'E';
+    private static final byte FRAME_END = 'X';
+    private static final int TOKEN_BYTES = 32;
+    private static final int TOKEN_TIMEOUT_MS = 10_000;
+
+    private final ServerSocket serverSocket;
+    private final String token;
+    private final File tokenFile;
+    private final ExecutorService executor = ZipUtil.newDaemonCachedThreadPool("zipdiff-command");
+
+    /** Port 0 means any free port, see getPort() */
+    public ZipDiffServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, /*backlog:*/50, InetAddress.getLoopbackAddress());
+        final byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        token = ExactLayout.toHex(random);
+        tokenFile = tokenFileOf(getPort());
+        try {
+            writeOwnerOnly(tokenFile, token);
+        } catch(final IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        ZipIndex.setCacheSize(INDEX_CACHE_SIZE);
+    }
+
+    public int getPort() { return serverSocket.getLocalPort(); }
+    public File getTokenFile() { return tokenFile; }
+
+    /** File holding the token of the server at given port, in the home directory of the user */
+    public static File tokenFileOf(int port) {
+        return new File(new File(System.getProperty("user.home"), ".zipdiff"), "server-" + port + ".token");
+    }
+    private static void writeOwnerOnly(File file, String text) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.deleteIfExists(file.toPath()); // left by a server that was killed
+        if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file.toPath());
+            if(!(file.setReadable(false, false) && file.setReadable(true, true) && file.setWritable(false, false) && file.setWritable(true, true))) {
+                Files.delete(file.toPath());
+                throw new IOException("Unable to make " + file + " only accessible by its owner");
+            }
+        }
+        Files.write(file.toPath(), ZipUtil.toBytes(text));
+    }
+
+    /** Handles connections until this server is closed */
+    public void serve() throws IOException {
+        while(!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch(final SocketException e) {
+                if(serverSocket.isClosed()) break;
+                throw e;
+            }
+            executor.execute(() -> handle(socket));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdown();
+        ZipIndex.setCacheSize(0);
+        Files.deleteIfExists(tokenFile.toPath());
+    }
+
+    /** Runs the command on the server at given port, with output copied to given streams.
+      * Paths in the arguments should be absolute because the server may have another working directory.
+      */
+    public static void runOnServer(int port, List<String> args, PrintStream outStream, PrintStream errStream) throws IOException {
+        final File tokenFile = tokenFileOf(port);
+        if(!tokenFile.isFile()) throw new IOException("No token of a server at port " + port + " in " + tokenFile);
+        final String token = ZipUtil.asString(Files.readAllBytes(tokenFile.toPath()));
+        try(final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            out.writeUTF(token);
+            out.writeInt(args.size());
+            for(final String arg : args) out.writeUTF(arg);
+            out.flush();
+
+            final int first = in.read();
+            if(first < 0) throw new IOException("Server at port " + port + " refused the command (stale token?)");
+            for(byte type = (byte)first; type != FRAME_END; type = in.readByte()) {
+                final byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                final PrintStream target = type == FRAME_ERR ? errStream : outStream;
+                target.write(data);
+                target.flush();
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try(final Socket s = socket;
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            s.setSoTimeout(TOKEN_TIMEOUT_MS);
+            if(!MessageDigest.isEqual(ZipUtil.toBytes(token), ZipUtil.toBytes(in.readUTF()))) return; // closed without a word
+            s.setSoTimeout(0);
+            final int count = in.readInt();
+            if(count < 0 || count > MAX_ARGS) return;
+            final String[] args = new String[count];
+            for(int i=0; i<count; i++) args[i] = in.readUTF();
+
+            final PrintStream outStream = new PrintStream(new FrameOutputStream(out, FRAME_OUT), /*autoFlush:*/true, ZipUtil.TEXT_CHARSET.name());
+            final PrintStream errStream = new PrintStream(new FrameOutputStream(out, FRAME_ERR), /*autoFlush:*/true, ZipUtil.TEXT_CHARSET.name());
+            try {
+                ZipDiff.run(outStream, errStream, /*onServer:*/true, args);
+            } catch(final RuntimeException e) {
+                errStream.println("ERROR: " + e);
+            }
+            outStream.flush();
+            errStream.flush();
+            synchronized(out) {
+                out.writeByte(FRAME_END);
+                out.flush();
+            }
+        } catch(final IOException e) {
+            // client is gone, so there is no one to report to
+        }
+    }
+
+    /** Sends everything written as a frame of given type when flushed */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte type;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        FrameOutputStream(DataOutputStream out, byte type) { this.out = out; this.type = type; }
+
+        @Override public void write(int b) { buffer.write(b); }
+        @Override public void write(byte[] data, int off, int len) { buffer.write(data, off, len); }
+        @Override public void flush() throws IOException {
+            if(buffer.size() == 0) return;
+            synchronized(out) {
+                out.writeByte(type);
+                out.writeInt(buffer.size());
+                buffer.writeTo(out);
+                out.flush();
+            }
+            buffer.reset();
+        }
+    }
+}
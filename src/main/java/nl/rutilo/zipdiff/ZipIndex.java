@@ -0,0 +1,557 @@
+package nl.rutilo.zipdiff;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/** Index of a zip file as read from its central directory, so without reading
+  * (let alone inflating) any entry data. Offsets are absolute file positions,
+  * so they include the length of any header data before the start of the zip.
+  * Zip64 is supported, so entries and zips can be larger than 4GB and there can
+  * be more than 65535 entries.
+  */
+public class ZipIndex {
+    static final int SIG_LOCAL_HEADER   = 0x04034b50;
+    static final int SIG_CENTRAL_HEADER = 0x02014b50;
+    static final int SIG_END_OF_CENTRAL = 0x06054b50;
+    static final int LOCAL_HEADER_SIZE   = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_SIZE = 22;
+    static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    static final int SIG_ZIP64_END_OF_CENTRAL = 0x06064b50;
+    static final int SIG_ZIP64_LOCATOR        = 0x07064b50;
+    static final int ZIP64_END_OF_CENTRAL_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE        = 20;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final int REMOTE_TAIL_SIZE = 1 << 20; // last range read of a RangeSource, typically including the central directory
+    /** Value of a 16 or 32 bit field when the actual value is in a zip64 record or field */
+    static final long ZIP64_MAGIC       = 0xFFFFFFFFL;
+    static final int  ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    public final File file;
+    public final long fileLength;
+    /** Position of the first byte of the zip. Everything before it is header data */
+    public final long zipStart;
+    public final long centralDirectoryOffset;
+    public final long centralDirectorySize;
+    public final byte[] comment;
+    public final List<Entry> entries;
+
+    /** Indexes of recently used files, by canonical file. See cachedOf() */
+    private static final Map<File,CachedIndex> cache = new LinkedHashMap<File,CachedIndex>(16, 0.75f, /*accessOrder:*/true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<File,CachedIndex> eldest) { return size() > cacheSize; }
+    };
+    private static int cacheSize;
+    private static class CachedIndex {
+        final ZipIndex index;
+        final long lastModified;
+        CachedIndex(ZipIndex index, long lastModified) { this.index = index; this.lastModified = lastModified; }
+    }
+
+    /** Central directory information of a single entry */
+    public static class Entry {
+        public final ZipEntry zipEntry;
+        public final int flags;
+        public final int method;
+        public final long crc;
+        public final long compressedSize;
+        public final long size;
+        /** Absolute position of the local header of this entry */
+        public final long localHeaderOffset;
+        /** The central directory record of this entry as found in the zip */
+        final byte[] centralHeader;
+        private long regionEnd;
+
+        Entry(ZipEntry zipEntry, int flags, int method, long localHeaderOffset, byte[] centralHeader) {
+            this.zipEntry = zipEntry;
+            this.flags = flags;
+            this.method = method;
+            this.crc = zipEntry.getCrc();
+            this.compressedSize = zipEntry.getCompressedSize();
+            this.size = zipEntry.getSize();
+            this.localHeaderOffset = localHeaderOffset;
+            this.centralHeader = centralHeader;
+        }
+        public String getName() { return zipEntry.getName(); }
+        public boolean hasDataDescriptor() { return (flags & FLAG_DATA_DESCRIPTOR) != 0; }
+        /** Absolute position after the local header, data and data descriptor of this entry,
+          * which is the position of the next local header or the central directory.
+          */
+        public long getRegionEnd() { return regionEnd; }
+        public long getRegionLength() { return regionEnd - localHeaderOffset; }
+    }
+
+    private ZipIndex(File file, long fileLength, long zipStart, long cdOffset, long cdSize, byte[] comment, List<Entry> entries) { // NOSONAR -- only called from of()
+        this.file = file;
+        this.fileLength = fileLength;
+        this.zipStart = zipStart;
+        this.centralDirectoryOffset = cdOffset;
+        this.centralDirectorySize = cdSize;
+        this.comment = comment;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /** Reads given number of bytes at given position (little endian) */
+    @FunctionalInterface
+    private interface PositionalReader {
+        ByteBuffer read(long position, int size) throws IOException;
+    }
+
+    public static ZipIndex of(File file) throws IOException {
+        try(final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final FileChannel channel = raf.getChannel();
+            return of(file, file.toString(), channel.size(), (position, size) -> read(channel, position, size));
+        }
+    }
+    /** Index of a zip that is read through given source, so it has no file. The tail is read in a single
+      * range that is large enough to typically hold the central directory as well.
+      */
+    public static ZipIndex of(RangeSource source) throws IOException {
+        final long length = source.length();
+        final int tailSize = (int)Math.min(length, REMOTE_TAIL_SIZE);
+        final long tailStart = length - tailSize;
+        final byte[] tail = source.read(tailStart, tailSize);
+        return of(null, source.toString(), length, (position, size) -> {
+            if(position >= tailStart && position + size <= length) {
+                return ByteBuffer.wrap(tail, (int)(position - tailStart), size).slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return ByteBuffer.wrap(source.read(position, size)).order(ByteOrder.LITTLE_ENDIAN);
+        });
+    }
+    private static ZipIndex of(File file, String name, long length, PositionalReader reader) throws IOException {
+        final int tailSize = (int)Math.min(length, END_OF_CENTRAL_SIZE + 0xFFFF);
+        final ByteBuffer tail = reader.read(length - tailSize, tailSize);
+        int eocd = tailSize - END_OF_CENTRAL_SIZE;
+        while(eocd >= 0 && !(tail.getInt(eocd) == SIG_END_OF_CENTRAL && eocd + END_OF_CENTRAL_SIZE + u16(tail, eocd + 20) <= tailSize)) eocd--;
+        if(eocd < 0) throw new IOException("Not a ZIP file: " + name);
+
+        final byte[] comment  = bytes(tail, eocd + END_OF_CENTRAL_SIZE, u16(tail, eocd + 20));
+        long entryCount = u16(tail, eocd + 10);
+        long cdSize     = u32(tail, eocd + 12);
+        long cdRelative = u32(tail, eocd + 16);
+        long cdEnd      = length - tailSize + eocd;
+        final long zip64End = zip64EndOfCentralOffset(reader, cdEnd);
+        if(zip64End >= 0) {
+            final ByteBuffer end64 = reader.read(zip64End, ZIP64_END_OF_CENTRAL_SIZE);
+            entryCount = end64.getLong(32);
+            cdSize     = end64.getLong(40);
+            cdRelative = end64.getLong(48);
+            cdEnd      = zip64End;
+        }
+        final long cdOffset   = cdEnd - cdSize;
+        final long zipStart   = cdOffset - cdRelative;
+        if(cdOffset < 0 || zipStart < 0 || cdSize > Integer.MAX_VALUE || entryCount > Integer.MAX_VALUE) throw new IOException("Invalid central directory in " + name);
+
+        final ByteBuffer cd = reader.read(cdOffset, (int)cdSize);
+        final List<Entry> entries = new ArrayList<>((int)Math.min(entryCount, cdSize / CENTRAL_HEADER_SIZE));
+        for(int pos = 0; pos + CENTRAL_HEADER_SIZE <= cdSize && cd.getInt(pos) == SIG_CENTRAL_HEADER; ) {
+            final int nameLen    = u16(cd, pos + 28);
+            final int extraLen   = u16(cd, pos + 30);
+            final int commentLen = u16(cd, pos + 32);
+            final ZipEntry zipEntry = new ZipEntry(ZipUtil.asString(bytes(cd, pos + CENTRAL_HEADER_SIZE, nameLen)));
+            final int method = u16(cd, pos + 10);
+            if(method == ZipEntry.STORED || method == ZipEntry.DEFLATED) zipEntry.setMethod(method);
+            zipEntry.setTime(dosToJavaTime(u32(cd, pos + 12)));
+            zipEntry.setCrc(u32(cd, pos + 16));
+            final long[] sizesAndOffset = withZip64Values(cd, pos + CENTRAL_HEADER_SIZE + nameLen, extraLen, zipEntry.getName(),
+                u32(cd, pos + 24), u32(cd, pos + 20), u32(cd, pos + 42));
+            zipEntry.setSize(sizesAndOffset[0]);
+            zipEntry.setCompressedSize(sizesAndOffset[1]);
+            if(commentLen > 0) zipEntry.setComment(ZipUtil.asString(bytes(cd, pos + CENTRAL_HEADER_SIZE + nameLen + extraLen, commentLen)));
+
+            final int recordLen = CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+            entries.add(new Entry(zipEntry, u16(cd, pos + 8), method, zipStart + sizesAndOffset[2], bytes(cd, pos, recordLen)));
+            pos += recordLen;
+        }
+        if(entries.size() != entryCount) throw new IOException("Invalid central directory in " + name);
+
+        final List<Entry> inFileOrder = new ArrayList<>(entries);
+        inFileOrder.sort(Comparator.comparingLong(e -> e.localHeaderOffset));
+        for(int i=0; i<inFileOrder.size(); i++) {
+            inFileOrder.get(i).regionEnd = i + 1 < inFileOrder.size() ? inFileOrder.get(i + 1).localHeaderOffset : cdOffset;
+        }
+        return new ZipIndex(file, length, zipStart, cdOffset, cdSize, comment, entries);
+    }
+
+    /** Sets the number of most recently used indexes kept by cachedOf(). 0, the default, disables caching */
+    public static void setCacheSize(int size) {
+        synchronized(cache) {
+            cacheSize = size;
+            final Iterator<File> it = cache.keySet().iterator();
+            while(cache.size() > size) { it.next(); it.remove(); }
+        }
+    }
+
+    /** Like of(), but returns an index from the cache when the file did not change since it was indexed */
+    public static ZipIndex cachedOf(File file) throws IOException {
+        final boolean caching;
+        synchronized(cache) {
+            caching = cacheSize > 0;
+        }
+        if(!caching) return of(file);
+        final File key = file.getCanonicalFile();
+        final long lastModified = key.lastModified(); // before indexing, so a change while indexing invalidates it
+        synchronized(cache) {
+            final CachedIndex cached = cache.get(key);
+            if(cached != null && cached.lastModified == lastModified && cached.index.fileLength == key.length()) return cached.index;
+        }
+        final ZipIndex index = of(key);
+        synchronized(cache) {
+            cache.put(key, new CachedIndex(index, lastModified));
+        }
+        return index;
+    }
+
+    /** Returns the position of the zip64 end of central directory record if the end of central
+      * directory record at given position is preceded by a zip64 locator, or -1 otherwise.
+      * The record is expected directly before the locator, but when it isn't the offset in the
+      * locator is used (which for zips with header data may be either absolute or relative).
+      */
+    private static long zip64EndOfCentralOffset(PositionalReader reader, long eocdOffset) throws IOException {
+        if(eocdOffset < ZIP64_LOCATOR_SIZE + ZIP64_END_OF_CENTRAL_SIZE) return -1;
+        final long locatorOffset = eocdOffset - ZIP64_LOCATOR_SIZE;
+        final ByteBuffer locator = reader.read(locatorOffset, ZIP64_LOCATOR_SIZE);
+        if(locator.getInt(0) != SIG_ZIP64_LOCATOR) return -1;
+
+        final long directlyBefore = locatorOffset - ZIP64_END_OF_CENTRAL_SIZE;
+        if(reader.read(directlyBefore, 4).getInt(0) == SIG_ZIP64_END_OF_CENTRAL) return directlyBefore;
+        final long fromLocator = locator.getLong(8);
+        if(fromLocator >= 0 && fromLocator <= directlyBefore
+           && reader.read(fromLocator, 4).getInt(0) == SIG_ZIP64_END_OF_CENTRAL) return fromLocator;
+        throw new IOException("Invalid zip64 end of central directory");
+    }
+
+    /** Returns given values (in the order of the zip64 extra field: size, compressed size, local header
+      * offset) where each one that is ZIP64_MAGIC is replaced by the next value in the zip64 extra field
+      * that is in the extra data at given position.
+      */
+    static long[] withZip64Values(ByteBuffer buf, int extraPos, int extraLen, String name, long... values) throws IOException {
+        ByteBuffer zip64 = null;
+        for(int pos = extraPos; pos + 4 <= extraPos + extraLen; pos += 4 + u16(buf, pos + 2)) {
+            if(u16(buf, pos) == ZIP64_EXTRA_ID) {
+                zip64 = ByteBuffer.wrap(bytes(buf, pos + 4, Math.min(u16(buf, pos + 2), extraPos + extraLen - pos - 4))).order(ByteOrder.LITTLE_ENDIAN);
+                break;
+            }
+        }
+        for(int i=0; i<values.length; i++) {
+            if(values[i] != ZIP64_MAGIC) continue;
+            if(zip64 == null || zip64.remaining() < 8) throw new IOException("Invalid zip64 extra field for " + name);
+            values[i] = zip64.getLong();
+        }
+        return values;
+    }
+
+    /** Returns the given extra data without any zip64 extra field */
+    static byte[] withoutZip64Extra(byte[] extra) {
+        final ByteBuffer in = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        final ByteBuffer out = ByteBuffer.allocate(extra.length);
+        int pos = 0;
+        while(pos + 4 <= extra.length) {
+            final int len = Math.min(u16(in, pos + 2), extra.length - pos - 4);
+            if(u16(in, pos) != ZIP64_EXTRA_ID) out.put(extra, pos, 4 + len);
+            pos += 4 + len;
+        }
+        if(pos < extra.length) out.put(extra, pos, extra.length - pos);
+        return out.position() == extra.length ? extra : bytes(out, 0, out.position());
+    }
+
+    /** Entries sorted on the position of their local header */
+    public List<Entry> entriesInFileOrder() {
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparingLong(e -> e.localHeaderOffset));
+        return sorted;
+    }
+
+    /** Reads the bytes before the start of the zip */
+    public byte[] readHeaderData() throws IOException {
+        try(final RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return bytes(read(raf.getChannel(), 0, (int)zipStart), 0, (int)zipStart);
+        }
+    }
+
+    /** Absolute position of the (compressed) data of given entry, read from its local header */
+    public static long dataOffsetOf(FileChannel channel, Entry entry) throws IOException {
+        final ByteBuffer lh = read(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if(lh.getInt(0) != SIG_LOCAL_HEADER) throw new IOException("Invalid local header for " + entry.getName());
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + u16(lh, 26) + u16(lh, 28);
+    }
+    static long dataOffsetOf(AsynchronousFileChannel channel, Entry entry) throws IOException {
+        final ByteBuffer lh = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(lh.hasRemaining()) {
+            if(ZipUtil.await(channel.read(lh, entry.localHeaderOffset + lh.position())) < 0) throw new IOException("Unexpected end of file");
+        }
+        if(lh.getInt(0) != SIG_LOCAL_HEADER) throw new IOException("Invalid local header for " + entry.getName());
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE + u16(lh, 26) + u16(lh, 28);
+    }
+
+    /** Opens a stream of the uncompressed data of given entry */
+    public InputStream openEntry(Entry entry) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r"); // NOSONAR: closed when returned stream is closed
+        try {
+            return openEntry(raf.getChannel(), entry, /*closeChannel:*/true);
+        } catch(final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Opens a stream of the compressed data of given entry, as it is in the zip */
+    public InputStream openRaw(Entry entry) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r"); // NOSONAR: closed when returned stream is closed
+        try {
+            return new BoundedInputStream(new ChannelInputStream(raf.getChannel(), dataOffsetOf(raf.getChannel(), entry), /*closeChannel:*/true), entry.compressedSize);
+        } catch(final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Opens a stream of the uncompressed data of given entry. Reading is positional,
+      * so multiple streams (from multiple threads) can read from the same channel.
+      */
+    public static InputStream openEntry(FileChannel channel, Entry entry, boolean closeChannel) throws IOException {
+        return inflating(new BoundedInputStream(new ChannelInputStream(channel, dataOffsetOf(channel, entry), closeChannel), entry.compressedSize), entry);
+    }
+
+    /** Like openEntry(FileChannel, ...), but the compressed data is read ahead by up to given number of
+      * asynchronous reads, so the latency of the storage is hidden while the data is being inflated.
+      */
+    static InputStream openEntry(AsynchronousFileChannel channel, Entry entry, int readAhead, boolean closeChannel) throws IOException {
+        return inflating(new ReadAheadInputStream(channel, dataOffsetOf(channel, entry), entry.compressedSize, readAhead, closeChannel), entry);
+    }
+
+    private static InputStream inflating(InputStream raw, Entry entry) throws IOException {
+        if(entry.method == ZipEntry.STORED) return raw;
+        if(entry.method != ZipEntry.DEFLATED) {
+            raw.close();
+            throw new IOException("Unsupported compression method " + entry.method + " for " + entry.getName());
+        }
+        return inflating(raw, entry.getName());
+    }
+    /** Inflates the raw deflated data (of the entry or blob with given name) */
+    static InputStream inflating(InputStream raw, String name) { return inflating(raw, name, null); }
+    /** Inflates the raw data that was deflated with given preset dictionary (when not null or empty),
+      * using a pooled inflater and buffer that are released when the stream is closed, which also closes raw.
+      */
+    static InputStream inflating(InputStream raw, String name, byte[] dictionary) {
+        final Inflater inflater = Pools.borrowInflater(/*nowrap:*/true);
+        if(dictionary != null && dictionary.length > 0) inflater.setDictionary(dictionary);
+        return new InflaterInputStream(raw, inflater, 1) {
+            { buf = Pools.borrowBuffer(); } // instead of the buffer allocated by the constructor
+            private boolean closed;
+            private boolean eof;
+            @Override protected void fill() throws IOException {
+                if(eof) throw new EOFException("Unexpected end of entry " + name);
+                len = in.read(buf, 0, buf.length);
+                if(len < 0) { // the inflater may need a dummy byte at the end of raw deflated data
+                    buf[0] = 0;
+                    len = 1;
+                    eof = true;
+                }
+                inf.setInput(buf, 0, len);
+            }
+            @Override public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    Pools.release(inflater, /*nowrap:*/true);
+                    Pools.release(buf);
+                }
+            }
+            @Override public int available() throws IOException { return inf.finished() ? 0 : super.available(); }
+        };
+    }
+
+    static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while(buf.hasRemaining()) {
+            if(channel.read(buf, position + buf.position()) < 0) throw new IOException("Unexpected end of file");
+        }
+        buf.flip();
+        return buf;
+    }
+    static int  u16(ByteBuffer buf, int pos) { return buf.getShort(pos) & 0xFFFF; }
+    static long u32(ByteBuffer buf, int pos) { return buf.getInt(pos) & 0xFFFFFFFFL; }
+    static byte[] bytes(ByteBuffer buf, int pos, int len) {
+        final byte[] data = new byte[len];
+        for(int i=0; i<len; i++) data[i] = buf.get(pos + i);
+        return data;
+    }
+
+    private static long dosToJavaTime(long dtime) {
+        final Calendar cal = Calendar.getInstance();
+        cal.clear();
+        cal.set((int)(((dtime >> 25) & 0x7f) + 1980),
+                (int)(((dtime >> 21) & 0x0f) - 1),
+                (int)((dtime >> 16) & 0x1f),
+                (int)((dtime >> 11) & 0x1f),
+                (int)((dtime >> 5) & 0x3f),
+                (int)((dtime << 1) & 0x3e));
+        return cal.getTimeInMillis();
+    }
+
+    /** Stream that reads from a channel starting at a given position, without changing the channel position */
+    static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final boolean closeChannel;
+        private long position;
+        ChannelInputStream(FileChannel channel, long position, boolean closeChannel) {
+            this.channel = channel;
+            this.position = position;
+            this.closeChannel = closeChannel;
+        }
+
+        @Override public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            final int n = channel.read(ByteBuffer.wrap(buf, off, len), position);
+            if(n > 0) position += n;
+            return n;
+        }
+        @Override public long skip(long n) throws IOException {
+            final long skipped = Math.max(0, Math.min(n, channel.size() - position));
+            position += skipped;
+            return skipped;
+        }
+        @Override public void close() throws IOException {
+            if(closeChannel) channel.close();
+        }
+    }
+
+    /** Stream of a region of an asynchronous channel that keeps up to readAhead reads of the next
+      * bytes outstanding, so on storage where latency rather than bandwidth is the limit (like a
+      * network volume) the data is already there when it is needed. Reading is positional, so
+      * multiple streams can read from the same channel.
+      */
+    static class ReadAheadInputStream extends InputStream {
+        static final int CHUNK_SIZE = 64 * 1024;
+        static final int DEFAULT_READ_AHEAD = 4;
+        private final AsynchronousFileChannel channel;
+        private final boolean closeChannel;
+        private final long end;
+        private final int readAhead;
+        private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+        private long nextPosition; // of the next read to start
+        private ByteBuffer current;
+        private boolean closed;
+
+        private static class Pending {
+            final ByteBuffer buffer;
+            final long position;
+            final Future<Integer> read;
+            Pending(ByteBuffer buffer, long position, Future<Integer> read) { this.buffer = buffer; this.position = position; this.read = read; }
+        }
+
+        ReadAheadInputStream(AsynchronousFileChannel channel, long position, long length, int readAhead, boolean closeChannel) {
+            this.channel = channel;
+            this.closeChannel = closeChannel;
+            this.nextPosition = position;
+            this.end = position + length;
+            this.readAhead = Math.max(1, readAhead);
+            startReads();
+        }
+
+        @Override public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) <= 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            if(closed) throw new IOException("Stream closed");
+            if(len == 0) return 0;
+            if((current == null || !current.hasRemaining()) && !nextBuffer()) return -1;
+            final int n = Math.min(len, current.remaining());
+            current.get(buf, off, n);
+            return n;
+        }
+        @Override public int available() { return current == null ? 0 : current.remaining(); }
+
+        private boolean nextBuffer() throws IOException {
+            final Pending next = pending.poll();
+            if(next == null) return false;
+            // a read can return less than asked for, in which case the rest is read here
+            for(int n = ZipUtil.await(next.read); next.buffer.hasRemaining(); n = ZipUtil.await(channel.read(next.buffer, next.position + next.buffer.position()))) {
+                if(n < 0) throw new EOFException("Unexpected end of file at " + (next.position + next.buffer.position()));
+            }
+            next.buffer.flip();
+            current = next.buffer;
+            startReads();
+            return true;
+        }
+        private void startReads() {
+            while(pending.size() < readAhead && nextPosition < end) {
+                final ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(CHUNK_SIZE, end - nextPosition));
+                pending.add(new Pending(buffer, nextPosition, channel.read(buffer, nextPosition)));
+                nextPosition += buffer.capacity();
+            }
+        }
+        /** Waits for the outstanding reads, so nothing is read into their buffers (or from the channel) afterwards */
+        @Override public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            try {
+                for(final Pending read : pending) awaitQuietly(read.read);
+                pending.clear();
+            } finally {
+                if(closeChannel) channel.close();
+            }
+        }
+        private static void awaitQuietly(Future<Integer> read) {
+            try {
+                ZipUtil.await(read);
+            } catch(final IOException e) {
+                // the data is no longer needed
+            }
+        }
+    }
+
+    /** Stream that reads at most a given number of bytes from another stream */
+    static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+        BoundedInputStream(InputStream in, long size) { super(in); remaining = size; }
+
+        @Override public int read() throws IOException {
+            if(remaining <= 0) return -1;
+            final int b = in.read();
+            if(b >= 0) remaining--;
+            return b;
+        }
+        @Override public int read(byte[] buf, int off, int len) throws IOException {
+            if(remaining <= 0) return -1;
+            final int n = in.read(buf, off, (int)Math.min(len, remaining));
+            if(n > 0) remaining -= n;
+            return n;
+        }
+        @Override public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+        @Override public int available() throws IOException { return (int)Math.min(in.available(), remaining); }
+        @Override public boolean markSupported() { return false; }
+    }
+}
@@ -1,14 +1,42 @@
 package nl.rutilo.zipdiff;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -25,10 +53,29 @@ import static nl.rutilo.zipdiff.ZipUtil.toBytes;
 public class ZipPatcher {
     public static final String REMOVALS_FILENAME = ".removed_files.zipdiff";
     public static final String EXPECTED_CRC_FILENAME = ".expected_crc.zipdiff";
+    public static final String LAYOUT_FILENAME = ".layout.zipdiff";
+    public static final String EXPECTED_SHA256_FILENAME = ".expected_sha256.zipdiff";
+    public static final String FILTER_FILENAME = ".filter.zipdiff";
+    public static final String SHARDS_FILENAME = ".shards.zipdiff";
+    public static final String DICTIONARY_ENTRIES_FILENAME = ".dictionary_entries.zipdiff";
+    public static final String MERKLE_TREE_FILENAME = ".merkle_tree.zipdiff";
+    public static final String SOLID_ENTRIES_FILENAME = ".solid_entries.zipdiff";
     protected static final byte[] CODE_HEADER_NOCHANGE = toBytes("@ZipDiff:NOCHANGE@");
     private final File zipFile;
+    private final ZipIndex index; // null for directories
+    private final String indexHeaderSha256; // only for a portable index, which holds no data
+    private final BlobStore.Version storeVersion; // only for a version in a blob store
+    private final EntryFilter filter;
     private byte[] headerData;
-    private final Map<String, ZipEntry> nameToEntry = new HashMap<>();
+    private final Map<String, ZipEntry> nameToEntry = new LinkedHashMap<>();
+    private final Map<String, ZipIndex.Entry> nameToIndexEntry = new HashMap<>();
+    private int checkpointEntries = 1000;
+    private long checkpointBytes = 64L * 1024 * 1024;
+    private ObjIntConsumer<String> progressListener;
+    private MerkleTree merkleTree;
+    private long rangeMergeGap = RangeFetcher.DEFAULT_MAX_GAP;
+    private int queueDepth = EntryPipeline.DEFAULT_QUEUE_DEPTH;
+    private int readAhead = ZipIndex.ReadAheadInputStream.DEFAULT_READ_AHEAD;
     public static class Changes {
         final byte[] newHeaderData;
         final Set<String> added    = new HashSet<>();
@@ -38,157 +85,1106 @@ public class ZipPatcher {
         public boolean hasNewHeaderData() { return !ZipUtil.isEqual(CODE_HEADER_NOCHANGE, newHeaderData); }
     }
 
+    /** A single difference, as found by visitChangesTo(). Values that don't apply (like the old crc of
+      * an added entry) are -1. A header change has an empty name, no crc and the header lengths as sizes.
+      */
+    public static class Change {
+        public enum Type { HEADER, ADDED, REPLACED, REMOVED }
+        public final Type type;
+        public final String name;
+        public final long oldCrc;
+        public final long newCrc;
+        public final long oldCompressedSize;
+        public final long oldSize;
+        public final long newCompressedSize;
+        public final long newSize;
+
+        private Change(Type type, ZipEntry oldEntry, ZipEntry newEntry) {
+            this.type = type;
+            name              = (newEntry == null ? oldEntry : newEntry).getName();
+            oldCrc            = oldEntry == null ? -1 : oldEntry.getCrc();
+            oldCompressedSize = oldEntry == null ? -1 : oldEntry.getCompressedSize();
+            oldSize           = oldEntry == null ? -1 : oldEntry.getSize();
+            newCrc            = newEntry == null ? -1 : newEntry.getCrc();
+            newCompressedSize = newEntry == null ? -1 : newEntry.getCompressedSize();
+            newSize           = newEntry == null ? -1 : newEntry.getSize();
+        }
+        private Change(int oldHeaderSize, int newHeaderSize) {
+            type = Type.HEADER;
+            name = "";
+            oldCrc = newCrc = oldCompressedSize = newCompressedSize = -1;
+            oldSize = oldHeaderSize;
+            newSize = newHeaderSize;
+        }
+
+        /** Estimate of what this change adds to a (non exact) patch: the new entry with its headers (as
+          * deflated in the compare-with, or its size when that is unknown), a line in the removals or the new header.
+          */
+        public long estimatedPatchBytes() {
+            final int nameLength = ZipUtil.toBytes(name).length;
+            switch(type) {
+                case HEADER:  return newSize;
+                case REMOVED: return nameLength + 1L;
+                default:      return (newCompressedSize >= 0 ? newCompressedSize : newSize)
+                                     + ZipIndex.LOCAL_HEADER_SIZE + ZipIndex.CENTRAL_HEADER_SIZE + 2L * nameLength;
+            }
+        }
+    }
+
+    /** An entry with its (uncompressed) data, from either a zip file or a directory */
+    @FunctionalInterface
+    protected interface EntryVisitor {
+        void visit(ZipEntry entry, InputStream data) throws IOException;
+    }
+
+    /** Source of entry data while patching */
+    private interface EntrySource extends Closeable {
+        InputStream open(ZipEntry entry) throws IOException;
+    }
+
+    /** Given file can be a zip file, a directory holding the (extracted) zip contents, a version in a
+      * blob store (.zversion, see BlobStore) or a portable index (.zindex, see exportIndexTo()). An index
+      * holds no data, so it can only be the base to generate a patch (that is not exact and uses no
+      * dictionaries) or to verify a patch.
+      */
     public ZipPatcher(File file) throws IOException {
+        this(file, EntryFilter.ALL);
+    }
+    /** Only entries that match the filter are compared, so other entries are never read (or hashed).
+      * When patching, the base entries that don't match the filter of the patch are kept as is.
+      */
+    public ZipPatcher(File file, EntryFilter filter) throws IOException {
         zipFile = file;
-        final byte[][] hdr = { new byte[0] };
-        try(final ZipInputStream zipIn = openZipForReading(file, h -> hdr[0] = (h == null ? new byte[0] : h))) {
-            for(final ZipEntry entryIn : entryIterableOf(zipIn)) {
-                nameToEntry.put(entryIn.getName(), entryIn);
-            }
+        this.filter = filter;
+        if(IndexManifest.isManifest(file)) {
+            final IndexManifest manifest = IndexManifest.read(file);
+            manifest.entries.forEach(entry -> { if(filter.matches(entry.getName())) nameToEntry.put(entry.getName(), entry); });
+            headerData = new byte[0];
+            indexHeaderSha256 = manifest.headerSha256;
+            storeVersion = null;
+            index = null;
+            return;
+        }
+        indexHeaderSha256 = null;
+        if(BlobStore.isVersion(file)) {
+            storeVersion = BlobStore.readVersion(file);
+            storeVersion.entries.values().forEach(entry -> { if(filter.matches(entry.getName())) nameToEntry.put(entry.getName(), entry); });
+            headerData = storeVersion.headerData;
+            index = null;
+            return;
+        }
+        storeVersion = null;
+        if(file.isDirectory()) {
+            nameToEntry.putAll(DirectoryIndex.indexOf(file, filter));
+            headerData = new byte[0];
+            index = null;
+            return;
+        }
+        index = ZipIndex.cachedOf(file);
+        for(final ZipIndex.Entry entry : index.entries) {
+            if(!filter.matches(entry.getName())) continue;
+            nameToEntry.put(entry.getName(), entry.zipEntry);
+            nameToIndexEntry.put(entry.getName(), entry);
+        }
+        headerData = index.readHeaderData();
+    }
+
+    /** What was fetched by patchFromRanges(): entries, bytes (including header and merged gaps) and range requests */
+    public static class Fetched {
+        public final int  entries;
+        public final long bytes;
+        public final int  requests;
+
+        private Fetched(int entries, long bytes, int requests) {
+            this.entries  = entries;
+            this.bytes    = bytes;
+            this.requests = requests;
         }
-        headerData = hdr[0];
     }
 
+    /** The header data, which is empty for a portable index (that only holds the hash of the header) */
     public byte[] getHeaderData() { return headerData; }
+    public EntryFilter getFilter() { return filter; }
     public ZipPatcher setHeaderData(byte[] hd) { headerData = hd == null ? new byte[0] : hd; return this; }
+    /** While patching, a checkpoint is written after given number of entries or bytes, whichever comes first */
+    public ZipPatcher setCheckpointInterval(int entries, long bytes) { checkpointEntries = entries; checkpointBytes = bytes; return this; }
+    /** Listener is called after each entry written while patching, with the name and number of entries written */
+    public ZipPatcher setProgressListener(ObjIntConsumer<String> listener) { progressListener = listener; return this; }
+    /** Entry ranges of patchFromRanges() that are at most given number of bytes apart are fetched in a single request */
+    public ZipPatcher setRangeMergeGap(long bytes) { rangeMergeGap = bytes; return this; }
+    /** Number of entries that are read and compressed ahead of writing them when generating a patch or patching
+      * (see EntryPipeline, 0 does everything on the calling thread) and number of asynchronous reads kept
+      * outstanding for each entry that is read (see ZipIndex.ReadAheadInputStream)
+      */
+    public ZipPatcher setQueueDepths(int entries, int reads) { queueDepth = entries; readAhead = reads; return this; }
+    /** Tree of hashes over the entries (that match the filter), created when first asked for */
+    public synchronized MerkleTree getMerkleTree() {
+        if(merkleTree == null) merkleTree = MerkleTree.of(nameToEntry.values());
+        return merkleTree;
+    }
+    /** Compares only the header hashes and the merkle tree root hashes */
+    public boolean hasSameContentAs(ZipPatcher other) {
+        return headerSha256().equals(other.headerSha256()) && getMerkleTree().isEqualTo(other.getMerkleTree());
+    }
     public Changes getChangesTo(ZipPatcher other) {
-        final byte[] changedHeaderData = ZipUtil.isEqual(headerData, other.headerData) ? CODE_HEADER_NOCHANGE : other.headerData;
+        final byte[] changedHeaderData = headerSha256().equals(other.headerSha256()) ? CODE_HEADER_NOCHANGE : other.headerData;
         final Changes changes = new Changes(changedHeaderData);
 
-        changes.removed.addAll(nameToEntry.keySet());
-        changes.removed.removeAll(other.nameToEntry.keySet());
-
+        visitEntryChangesTo(other, change -> {
+            switch(change.type) {
+                case ADDED:    changes.added   .add(change.name); break;
+                case REPLACED: changes.replaced.add(change.name); break;
+                default:       changes.removed .add(change.name); break;
+            }
+        });
+        return changes;
+    }
+    /** Streaming variant of getChangesTo(): each change is given to the visitor as soon as it is found and
+      * nothing is collected, so memory use does not grow with the number of changes. A header change comes
+      * first, followed by the added and replaced entries in the order of the other and finally the removed ones.
+      */
+    public void visitChangesTo(ZipPatcher other, Consumer<Change> visitor) {
+        if(!headerSha256().equals(other.headerSha256())) {
+            visitor.accept(new Change(isIndexOnly() ? -1 : headerData.length, other.isIndexOnly() ? -1 : other.headerData.length));
+        }
+        visitEntryChangesTo(other, visitor);
+    }
+    private void visitEntryChangesTo(ZipPatcher other, Consumer<Change> visitor) {
+        // a directory has no entries of its subdirectories, so directory entries of a zip are no changes then
+        final boolean ignoreDirectories = zipFile.isDirectory() || other.zipFile.isDirectory();
         other.nameToEntry.values().forEach(otherEntry -> {
-           final ZipEntry entry = nameToEntry.get(otherEntry.getName());
+            if(ignoreDirectories && otherEntry.isDirectory()) return;
+            final ZipEntry entry = nameToEntry.get(otherEntry.getName());
 
-           if(entry == null) changes.added.add(otherEntry.getName());
-           else if(entry.getCrc() != otherEntry.getCrc()) changes.replaced.add(entry.getName());
+            if(entry == null) visitor.accept(new Change(Change.Type.ADDED, null, otherEntry));
+            else if(entry.getCrc() != otherEntry.getCrc()) visitor.accept(new Change(Change.Type.REPLACED, entry, otherEntry));
         });
-        return changes;
+        nameToEntry.values().forEach(entry -> {
+            if(ignoreDirectories && entry.isDirectory()) return;
+            if(!other.nameToEntry.containsKey(entry.getName())) visitor.accept(new Change(Change.Type.REMOVED, entry, null));
+        });
+    }
+
+    /** Writes a portable index of this zip or directory (the entries that match the filter) to given file,
+      * so patches for this base can be generated elsewhere without it.
+      */
+    public void exportIndexTo(File indexFile) throws IOException {
+        IndexManifest.write(indexFile, headerSha256(), nameToEntry.values());
+    }
+    private String headerSha256() {
+        return indexHeaderSha256 != null ? indexHeaderSha256 : ExactLayout.toHex(ExactLayout.newDigest().digest(headerData));
     }
+    private boolean isIndexOnly() { return indexHeaderSha256 != null; }
 
     public void generatePatchFileTo(ZipPatcher other, File patchFile) throws IOException {
         generatePatchFileTo(other, getChangesTo(other), patchFile);
     }
     public void generatePatchFileTo(ZipPatcher other, Changes changes, File patchFile) throws IOException {
+        generatePatchFileTo(other, changes, patchFile, new PatchOptions());
+    }
+    public void generatePatchFileTo(ZipPatcher other, Changes changes, File patchFile, PatchOptions options) throws IOException {
+        if(!filter.isAll() && !other.filter.isAll() && !filter.toText().equals(other.filter.toText())) {
+            throw new IOException("The base and target are filtered differently, so it is unclear which entries the patch covers");
+        }
+        final EntryFilter patchFilter = filter.isAll() ? other.filter : filter;
+        if(options.isExact() && other.index == null) throw new IOException("An exact patch can only be generated to a zip file");
+        if(other.isIndexOnly()) throw new IOException("A patch cannot be generated to an index, which holds no data");
+        final boolean encodes = options.getDictionarySize() > 0 || options.hasClassDeltas();
+        if(isIndexOnly() && (options.isExact() || encodes)) {
+            throw new IOException("An exact patch or a patch using dictionaries or class deltas needs the base data, not an index");
+        }
+        if(options.isExact() && !patchFilter.isAll()) throw new IOException("An exact patch cannot be filtered");
+        if(options.isExact() && options.getShards() > 1) throw new IOException("An exact patch cannot be sharded");
+        if(encodes && (options.isExact() || options.getShards() > 1)) {
+            throw new IOException("An exact or sharded patch cannot use preset dictionaries or class deltas");
+        }
+        if(options.isSolid() && (options.isExact() || options.getShards() > 1)) throw new IOException("An exact or sharded patch cannot be solid");
         Files.deleteIfExists(patchFile.toPath());
 
         // changes.additions & changes.replacements -> put in patchFile
         // changes.removals -> put as textfile in patchFile
-        try(final ZipInputStream zipIn = openZipForReading(other.zipFile, /*already known by other*/null);
-            final ZipOutputStream patchOut = openZipForWriting(patchFile, changes.hasNewHeaderData() ? changes.newHeaderData : other.headerData)) {
+        try(final ZipWriter patchOut = new ZipWriter(patchFile, changes.hasNewHeaderData() ? changes.newHeaderData : other.headerData)) {
 
-            final byte[] removedFilesText = toBytes(String.join("\n", sorted(changes.removed)));
-            final ZipEntry removalsEntry = new ZipEntry(REMOVALS_FILENAME);
-            patchOut.putNextEntry(removalsEntry);
-            patchOut.write(removedFilesText);
-            patchOut.closeEntry();
+            writeAdministration(patchOut, REMOVALS_FILENAME, toBytes(String.join("\n", sorted(changes.removed))));
 
+            // crcs are known from the index, so only the data of added and replaced entries is read (streaming)
             long zipCrc = 0;
-            for(final ZipEntry entryIn : entryIterableOf(zipIn)) {
-                if(   changes.added   .contains(entryIn.getName())
-                   || changes.replaced.contains(entryIn.getName())) {
-                    patchOut.putNextEntry(copyOf(entryIn));
-                    ZipUtil.copyAndReturnCount(zipIn, patchOut);
-                    patchOut.closeEntry();
-                } else {
-                    ZipUtil.drain(zipIn); // needed for crc
+            final List<ZipEntry> toPatch = new ArrayList<>();
+            for(final ZipEntry entry : other.nameToEntry.values()) {
+                if(   changes.added   .contains(entry.getName())
+                   || changes.replaced.contains(entry.getName())) toPatch.add(entry);
+                zipCrc ^= entry.getCrc();
+            }
+            if(options.getShards() > 1) {
+                writeAdministration(patchOut, SHARDS_FILENAME, toBytes(PatchShards.write(toPatch, other::openEntry, patchFile, options.getShards())));
+            } else {
+                final PatchPlan plan = encodes ? planPatchTo(other, changes, options, /*estimateAll:*/false) : null; // encodings are only used where they pay off
+                final Map<String,PresetDictionary.Encoded> encodedByName = new ConcurrentHashMap<>(); // filled by the pipeline workers
+                final List<ZipEntry> solidEntries = new ArrayList<>();
+                final Map<String,List<SolidGroups.Member>> solidGroups;
+                try(final EntrySource targetSource = other.openEntrySource();
+                    final EntryPipeline pipeline = new EntryPipeline(patchOut, queueDepth)) {
+                    for(final ZipEntry entry : toPatch) {
+                        final PatchPlan.EntryPlan entryPlan = plan == null ? null : plan.getEntry(entry.getName());
+                        final PatchPlan.Encoding encoding = entryPlan == null ? PatchPlan.Encoding.WHOLE : entryPlan.getEncoding();
+                        if(encoding == PatchPlan.Encoding.WHOLE && options.isSolid() && SolidGroups.canBeMember(entry)) {
+                            solidEntries.add(entry);
+                        } else
+                        if(options.isExact() && entry.getMethod() == ZipEntry.DEFLATED && !entry.isDirectory()) {
+                            pipeline.flush(); // copied as is, so the layout can refer to the compressed data (see ExactLayout)
+                            copyRawTo(patchOut, other.index, other.nameToIndexEntry.get(entry.getName()), copyOf(entry));
+                        } else
+                        if(encoding == PatchPlan.Encoding.WHOLE && other.storeVersion != null && entry.getMethod() == ZipEntry.DEFLATED && !entry.isDirectory()) {
+                            pipeline.flush(); // blob is already deflated, so copied as is
+                            try(final InputStream deflated = other.storeVersion.openDeflated(entry.getName())) {
+                                patchOut.writeCompressed(copyOf(entry), entry.getCrc(), entry.getSize(), entry.getCompressedSize(), deflated);
+                            }
+                        } else
+                        if(encoding == PatchPlan.Encoding.WHOLE) {
+                            pipeline.write(copyOf(entry), out -> {
+                                try(final InputStream dataIn = targetSource.open(entry)) { ZipUtil.copyAndReturnCount(dataIn, out); }
+                            }, null);
+                        } else {
+                            pipeline.write(encodedEntryOf(entry), out -> encodedByName.put(entry.getName(), encoding == PatchPlan.Encoding.CLASS_DELTA
+                                ? writeAsClassDelta(entry, entryPlan, out)
+                                : writeWithDictionary(entry, entryPlan.source, targetSource, out, options.getDictionarySize())), null);
+                        }
+                    }
+                    solidGroups = SolidGroups.groupsOf(solidEntries);
+                    for(final Map.Entry<String,List<SolidGroups.Member>> group : solidGroups.entrySet()) {
+                        final ZipEntry groupEntry = new ZipEntry(group.getKey());
+                        groupEntry.setSize(group.getValue().stream().mapToLong(member -> member.size).sum());
+                        pipeline.write(groupEntry, out -> writeSolidGroup(group.getValue(), other, targetSource, out), null);
+                    }
+                    pipeline.flush();
                 }
-                zipCrc ^= entryIn.getCrc();
+                if(!solidGroups.isEmpty()) writeAdministration(patchOut, SOLID_ENTRIES_FILENAME, toBytes(SolidGroups.toText(solidGroups)));
+                final Map<String,PresetDictionary.Encoded> encoded = new LinkedHashMap<>();
+                for(final ZipEntry entry : toPatch) if(encodedByName.containsKey(entry.getName())) encoded.put(entry.getName(), encodedByName.get(entry.getName()));
+                if(!encoded.isEmpty()) writeAdministration(patchOut, DICTIONARY_ENTRIES_FILENAME, toBytes(PresetDictionary.toText(encoded)));
             }
 
-            final ZipEntry expectedCrcEntry = new ZipEntry(EXPECTED_CRC_FILENAME);
-            patchOut.putNextEntry(expectedCrcEntry);
-            patchOut.write(toBytes(String.valueOf(zipCrc)));
-            patchOut.closeEntry();
+            writeAdministration(patchOut, EXPECTED_CRC_FILENAME, toBytes(String.valueOf(zipCrc)));
+
+            if(!patchFilter.isAll()) writeAdministration(patchOut, FILTER_FILENAME, toBytes(patchFilter.toText()));
+
+            if(options.hasMerkleTree()) writeAdministration(patchOut, MERKLE_TREE_FILENAME, other.getMerkleTree().toBytes());
+
+            if(options.isExact()) {
+                final Set<String> inPatch = new HashSet<>(changes.added);
+                inPatch.addAll(changes.replaced);
+                final List<ZipIndex.Entry> toAddRaw;
+                try(final OutputStream layoutOut = patchOut.newEntry(new ZipEntry(LAYOUT_FILENAME))) {
+                    toAddRaw = ExactLayout.create(index, this::openEntry, other.index, inPatch, layoutOut);
+                }
+                for(final ZipIndex.Entry entry : toAddRaw) copyRawTo(patchOut, other.index, entry, new ZipEntry(ExactLayout.rawNameOf(entry.getName())));
+                writeAdministration(patchOut, EXPECTED_SHA256_FILENAME, toBytes(ExactLayout.sha256Of(other.zipFile)));
+            }
         }
     }
+    /** Writes the concatenated data of the members of a solid group */
+    private static void writeSolidGroup(List<SolidGroups.Member> members, ZipPatcher other, EntrySource targetSource, OutputStream out) throws IOException {
+        for(final SolidGroups.Member member : members) {
+            try(final InputStream dataIn = targetSource.open(other.nameToEntry.get(member.name))) {
+                if(ZipUtil.copyAndReturnCount(dataIn, out) != member.size) throw new IOException("Size of " + member.name + " changed while generating the patch");
+            }
+        }
+    }
+    /** Writes the compressed data of an entry of given zip as is, as patch entry */
+    private static void copyRawTo(ZipWriter out, ZipIndex zip, ZipIndex.Entry entry, ZipEntry patchEntry) throws IOException {
+        patchEntry.setMethod(entry.method);
+        try(final InputStream raw = zip.openRaw(entry)) {
+            out.writeCompressed(patchEntry, entry.crc, entry.size, entry.compressedSize, raw);
+        }
+    }
+    private static void writeAdministration(ZipWriter out, String name, byte[] data) throws IOException {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setSize(data.length);
+        out.writeEntry(entry, new ByteArrayInputStream(data));
+    }
 
-    public void patchTo(File patchFile, File generatedFile, boolean ignoreValidation) throws IOException {
-        Files.deleteIfExists(generatedFile.toPath());
+    /** Estimates the cost of the patch to other per added or replaced entry and of the whole patch,
+      * choosing the cheapest encoding of each entry of the ones enabled in the options (see PatchPlan).
+      * Sizes come from the central directories and the deflated size of samples, so nothing is written.
+      * Encodings that are not enabled are estimated as well, to tell what they would save.
+      */
+    public PatchPlan planPatchTo(ZipPatcher other, Changes changes, PatchOptions options) throws IOException {
+        return planPatchTo(other, changes, options, /*estimateAll:*/true);
+    }
+    private PatchPlan planPatchTo(ZipPatcher other, Changes changes, PatchOptions options, boolean estimateAll) throws IOException {
+        if(other.isIndexOnly()) throw new IOException("A patch cannot be planned to an index, which holds no data");
+        final boolean canEncode = !isIndexOnly() && !options.isExact() && options.getShards() <= 1;
+        final Map<String,String> sources = canEncode && options.hasSimilarSources() ? similarSourcesOf(other, changes) : Collections.emptyMap();
+        final PatchPlan plan = PatchPlan.create(changes, sources, other.nameToEntry.values(), this::openEntry, other::openEntry, canEncode, estimateAll, options);
+        if(other.index != null) return plan.setArchiveBytes(other.index.fileLength);
 
+        long archiveBytes = other.headerData.length + ZipIndex.END_OF_CENTRAL_SIZE; // directory, so estimate the zip of it
+        final boolean ignoreDirectories = zipFile.isDirectory() || other.zipFile.isDirectory(); // as in visitEntryChangesTo()
+        for(final ZipEntry entry : other.nameToEntry.values()) {
+            if(ignoreDirectories && entry.isDirectory()) continue;
+            final ZipEntry baseEntry = nameToEntry.get(entry.getName());
+            final boolean changed = changes.added.contains(entry.getName()) || changes.replaced.contains(entry.getName());
+            final long size = baseEntry != null && baseEntry.getCompressedSize() >= 0 ? baseEntry.getCompressedSize() : entry.getSize();
+            if(changed) archiveBytes += plan.getEntry(entry.getName()).costOf(PatchPlan.Encoding.WHOLE);
+            else        archiveBytes += size + PatchPlan.entryOverheadOf(entry.getName());
+        }
+        return plan.setArchiveBytes(archiveBytes);
+    }
+
+    /** Finds for each added entry of other the most similar base entry, if any (see SimilarityIndex).
+      * Replaced entries are no candidates, as patching in place may already have replaced them.
+      */
+    private Map<String,String> similarSourcesOf(ZipPatcher other, Changes changes) throws IOException {
+        final Map<String,String> sources = new HashMap<>();
+        if(changes.added.isEmpty()) return sources;
+        final List<ZipEntry> candidates = new ArrayList<>();
+        nameToEntry.values().forEach(entry -> { if(!changes.replaced.contains(entry.getName())) candidates.add(entry); });
+        final SimilarityIndex similarityIndex = SimilarityIndex.of(candidates, this::openEntry);
+        for(final String name : changes.added) {
+            try(final InputStream in = other.openEntry(name)) {
+                final String source = similarityIndex.mostSimilarTo(in, other.nameToEntry.get(name).getSize());
+                if(source != null) sources.put(name, source);
+            }
+        }
+        return sources;
+    }
+
+    /** Patch entry of an entry that is encoded against a base entry. It is STORED, as the encoded data is
+      * already deflated or small, with the size of the entry as estimate of the size of the encoded data.
+      */
+    private static ZipEntry encodedEntryOf(ZipEntry entry) {
+        final ZipEntry patchEntry = new ZipEntry(entry.getName());
+        if(entry.getTime() != -1) patchEntry.setTime(entry.getTime());
+        patchEntry.setMethod(ZipEntry.STORED);
+        patchEntry.setSize(entry.getSize());
+        return patchEntry;
+    }
+
+    /** Writes the entry of the target deflated with the start of the source base entry as dictionary */
+    private PresetDictionary.Encoded writeWithDictionary(ZipEntry entry, String source, EntrySource targetSource, OutputStream patchOut, int dictionarySize) throws IOException {
+        final byte[] dictionary;
+        try(final InputStream baseIn = openEntry(source)) {
+            dictionary = PresetDictionary.dictionaryOf(baseIn, dictionarySize);
+        }
+        try(final InputStream dataIn = targetSource.open(entry);
+            final OutputStream out = ZipUtil.deflating(patchOut, dictionary)) {
+            ZipUtil.copyAndReturnCount(dataIn, out);
+        }
+        return new PresetDictionary.Encoded(entry.getCrc(), entry.getSize(), dictionary.length, false, sourceNameOf(entry, source));
+    }
+
+    /** Writes the entry of the target as delta against the source base entry, which the plan only
+      * chooses when it is smaller than the deflated entry (see PatchPlan). The delta was already
+      * encoded for the plan, so it is written as is.
+      */
+    private static PresetDictionary.Encoded writeAsClassDelta(ZipEntry entry, PatchPlan.EntryPlan entryPlan, OutputStream patchOut) throws IOException {
+        final byte[] delta = entryPlan.takeClassDelta();
+        if(delta == null) throw new IOException("Unable to encode " + entry.getName() + " as class delta");
+        patchOut.write(delta);
+        return new PresetDictionary.Encoded(entry.getCrc(), entry.getSize(), 0, /*isClassDelta:*/true, sourceNameOf(entry, entryPlan.source));
+    }
+    /** Source name as kept in the patch, which is null when it is the name of the entry itself */
+    private static String sourceNameOf(ZipEntry entry, String source) {
+        return source.equals(entry.getName()) ? null : source;
+    }
+
+    /** Generates the patched file. While patching, checkpoints are written to a journal file next
+      * to the generated file. When patching is interrupted, the next call with the same base and patch
+      * will continue from the last checkpoint instead of starting over.
+      * The shards of a sharded patch are all verified (concurrently) before anything is written,
+      * after which their entries are copied without inflating them again.
+      */
+    public void patchTo(File patchFile, File generatedFile, boolean ignoreValidation) throws IOException {
+        if(isIndexOnly()) throw new IOException("Cannot patch an index, which holds no data");
         final ZipPatcher patchZip = new ZipPatcher(patchFile);
+        if(patchZip.nameToIndexEntry.containsKey(LAYOUT_FILENAME)) {
+            patchExactTo(patchZip, generatedFile, ignoreValidation);
+            return;
+        }
         final byte[] patchedHeaderData = ZipUtil.isEqual(CODE_HEADER_NOCHANGE, patchZip.headerData) ? headerData : patchZip.headerData;
+        final Set<String> namesToSkip = patchZip.readRemovals();
+        final long expectedCrc = patchZip.readExpectedCrc();
+        final EntryFilter patchFilter = patchZip.readFilter();
+        final List<ZipIndex> shards = PatchShards.readVerified(patchFile, patchZip.readAdministration(SHARDS_FILENAME));
+        final Map<String,PresetDictionary.Encoded> encoded = patchZip.readDictionaryEntries();
+        final Map<String,List<SolidGroups.Member>> solidGroups = patchZip.readSolidEntries();
+        namesToSkip.addAll(patchZip.nameToEntry.keySet());
+        solidGroups.values().forEach(group -> group.forEach(member -> namesToSkip.add(member.name)));
+        shards.forEach(shard -> shard.entries.forEach(entry -> namesToSkip.add(entry.getName())));
+
+        final List<ZipIndex.Entry> baseToCopy = new ArrayList<>(); // raw copied base entries, in file order
+        final List<ZipEntry> baseToWrite = new ArrayList<>(); // base entries of a directory
+        if(index != null) {
+            for(final ZipIndex.Entry entry : index.entriesInFileOrder()) {
+                if(!namesToSkip.contains(entry.getName())) baseToCopy.add(entry);
+            }
+        } else {
+            final Map<String,ZipEntry> allEntries = filter.isAll() ? nameToEntry : storeVersion != null ? storeVersion.entries : DirectoryIndex.unhashedIndexOf(zipFile);
+            for(final ZipEntry entry : allEntries.values()) {
+                if(!namesToSkip.contains(entry.getName())) baseToWrite.add(entry);
+            }
+        }
+        final List<ZipIndex.Entry> rawSequence = new ArrayList<>(baseToCopy); // raw copied entry per sequence number, null for written
+        baseToWrite.forEach(entry -> rawSequence.add(null));
+        patchZip.nameToEntry.keySet().forEach(name -> { if(!isAdministration(name)) rawSequence.add(null); });
+        solidGroups.values().forEach(group -> group.forEach(member -> rawSequence.add(null)));
+        shards.forEach(shard -> rawSequence.addAll(shard.entriesInFileOrder()));
 
-        try(final ZipOutputStream zipOut = openZipForWriting(generatedFile, patchedHeaderData)) {
-            copy(zipFile, zipOut, getNamesToSkip(patchFile));
-            copy(patchFile, zipOut, new HashSet<>(Arrays.asList(REMOVALS_FILENAME, EXPECTED_CRC_FILENAME)));
+        final File journalFile = PatchJournal.fileFor(generatedFile);
+        final String baseId  = identity();
+        final String patchId = patchZip.identity();
+        PatchJournal journal = generatedFile.exists() ? PatchJournal.readIfMatching(journalFile, baseId, patchId) : null;
+        ZipWriter zipOut = null;
+        if(journal != null) {
+            try {
+                zipOut = ZipWriter.resume(generatedFile, journal.zipStart, journal.offset, i -> i < rawSequence.size() ? rawSequence.get(i) : null);
+                if(zipOut.getEntryCount() != journal.entriesCompleted) { zipOut.close(); zipOut = null; }
+            } catch(final IOException e) {
+                zipOut = null; // start over
+            }
+        }
+        if(zipOut == null) {
+            Files.deleteIfExists(generatedFile.toPath());
+            zipOut = new ZipWriter(generatedFile, patchedHeaderData);
+            journal = new PatchJournal(baseId, patchId, zipOut.getZipStart());
+        }
+
+        final long crc;
+        try(final ZipWriter out = zipOut;
+            final EntrySource baseSource  = openEntrySource();
+            final EntrySource patchSource = patchZip.openEntrySource();
+            final EntrySource decodingSource = decodingSourceOf(patchSource, baseSource, encoded);
+            final PatchRun run = new PatchRun(out, journal, journalFile, patchFilter)) {
+
+            for(final ZipEntry entry : baseToWrite) run.write(baseSource, entry);
+            run.copyRaw(zipFile, baseToCopy);
+            for(final ZipEntry entry : patchZip.nameToEntry.values()) {
+                final PresetDictionary.Encoded enc = encoded.get(entry.getName());
+                if(enc != null) run.write(decodingSource, enc.decodedEntry(entry));
+                else
+                if(solidGroups.containsKey(entry.getName())) run.writeSolid(patchSource, entry, solidGroups.get(entry.getName()));
+                else
+                if(!isAdministration(entry.getName())) run.write(patchSource, entry);
+            }
+            for(final ZipIndex shard : shards) run.copyRaw(shard.file, shard.entriesInFileOrder()); // already verified
+            run.finish();
+            crc = run.crc;
         }
+        Files.deleteIfExists(journalFile.toPath());
+
         if(!ignoreValidation) {
-            final long targetCrc = crcOfZipFile(generatedFile);
-            final long expectedCrc = expectedCrcFromPatch(patchFile);
-            if (targetCrc != expectedCrc) {
+            final List<String> corrupt = corruptCopiesOf(generatedFile, baseToCopy);
+            if(crc != expectedCrc || !corrupt.isEmpty()) {
                 Files.delete(generatedFile.toPath());
-                throw new IOException("CRC is incorrect. Patch failed.");
+                throw new IOException("CRC is incorrect" + (corrupt.isEmpty() ? "" : " for " + String.join(", ", corrupt)) + ". Patch failed.");
             }
         }
     }
 
-    public void writeTo(File outFile, Map<String, byte[]> data) throws IOException {
-        try(final ZipOutputStream out = openZipForWriting(outFile, headerData)) {
-            for(final Map.Entry<String,ZipEntry> entry : nameToEntry.entrySet()) {
-                out.putNextEntry(copyOf(entry.getValue()));
-                out.write(data.get(entry.getKey()));
+    /** Patches this base to the target of given source without a patch file (like zsync): only the central
+      * directory, the header and the ranges of the entries that are added or replaced (or don't match the
+      * filter) are read from the source. The fetched ranges are kept in a spill file next to the generated
+      * file, at the offsets they have in the target, so they can be copied as is. Entries are written in
+      * the order of the target and all of them are validated afterwards.
+      */
+    public Fetched patchFromRanges(RangeSource target, File generatedFile, boolean ignoreValidation) throws IOException {
+        if(isIndexOnly()) throw new IOException("Cannot patch an index, which holds no data");
+        final ZipIndex targetIndex = ZipIndex.of(target);
+        final List<ZipIndex.Entry> targetEntries = targetIndex.entriesInFileOrder();
+        final Set<ZipIndex.Entry> toFetch = new HashSet<>();
+        for(final ZipIndex.Entry entry : targetEntries) {
+            final ZipEntry baseEntry = nameToEntry.get(entry.getName());
+            if(baseEntry == null || baseEntry.getCrc() != entry.crc) toFetch.add(entry);
+        }
+        final List<ZipIndex.Entry> toFetchInFileOrder = new ArrayList<>();
+        targetEntries.forEach(entry -> { if(toFetch.contains(entry)) toFetchInFileOrder.add(entry); });
+
+        final File spillFile = new File(generatedFile.getPath() + ".ranges");
+        final RangeFetcher fetcher = new RangeFetcher(rangeMergeGap);
+        try(final FileChannel spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                       StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+            final byte[] targetHeaderData = new byte[(int)targetIndex.zipStart];
+            if(targetHeaderData.length > 0) {
+                fetcher.fetch(target, 0, targetHeaderData.length, spill);
+                final ByteBuffer headerBuffer = ByteBuffer.wrap(targetHeaderData);
+                while(headerBuffer.hasRemaining()) spill.read(headerBuffer, headerBuffer.position());
+            }
+            fetcher.fetch(target, toFetchInFileOrder, spill);
+
+            Files.deleteIfExists(generatedFile.toPath());
+            try(final ZipWriter out = new ZipWriter(generatedFile, targetHeaderData);
+                final FileChannel baseChannel = index == null ? null : FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+                final EntrySource baseSource = openEntrySource()) {
+                final List<ZipIndex.Entry> run = new ArrayList<>(); // consecutive entries of runChannel
+                FileChannel runChannel = null;
+                for(final ZipIndex.Entry entry : targetEntries) {
+                    final boolean fetched = toFetch.contains(entry);
+                    final ZipIndex.Entry toCopy = fetched ? entry : nameToIndexEntry.get(entry.getName());
+                    final FileChannel channel = fetched ? spill : baseChannel;
+                    if(!run.isEmpty() && (toCopy == null || channel != runChannel || run.get(run.size() - 1).getRegionEnd() != toCopy.localHeaderOffset)) {
+                        out.copyRaw(runChannel, run);
+                        run.clear();
+                    }
+                    if(toCopy == null) { // base is a directory
+                        try(final InputStream in = baseSource.open(nameToEntry.get(entry.getName()))) { out.writeEntry(copyOf(entry.zipEntry), in); }
+                        continue;
+                    }
+                    runChannel = channel;
+                    run.add(toCopy);
+                }
+                if(!run.isEmpty()) out.copyRaw(runChannel, run);
             }
+        } finally {
+            Files.deleteIfExists(spillFile.toPath());
         }
+        if(!ignoreValidation) {
+            final List<String> corrupt = ZipVerifier.corruptEntriesOf(ZipIndex.of(generatedFile), name -> true, Runtime.getRuntime().availableProcessors());
+            if(!corrupt.isEmpty()) {
+                Files.delete(generatedFile.toPath());
+                throw new IOException("CRC is incorrect for " + String.join(", ", corrupt) + ". Patch failed.");
+            }
+        }
+        return new Fetched(toFetch.size(), fetcher.getFetchedBytes(), fetcher.getRequestCount());
     }
 
-    public Map<String,byte[]> readFully() throws IOException {
-        final LinkedHashMap<String,byte[]> map = new LinkedHashMap<>();
-        try(final ZipInputStream zipIn = openZipForReading(zipFile /*ignore header*/)) {
-            for(final ZipEntry entryIn : entryIterableOf(zipIn)) {
-                map.put(entryIn.getName(), ZipUtil.exhaust(zipIn));
+    /** Reproduces the target of an exact patch byte for byte. Validation is a hash of the whole result,
+      * calculated while writing.
+      */
+    private void patchExactTo(ZipPatcher patchZip, File generatedFile, boolean ignoreValidation) throws IOException {
+        Files.deleteIfExists(generatedFile.toPath());
+        final MessageDigest digest = ExactLayout.newDigest();
+
+        try(final InputStream layout = patchZip.openEntry(LAYOUT_FILENAME);
+            final FileChannel baseChannel = index == null ? null : FileChannel.open(zipFile.toPath(), StandardOpenOption.READ);
+            final OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(generatedFile.toPath())), digest)) {
+            ExactLayout.write(layout, baseChannel, this::openEntry, patchZip::openEntry, patchZip::openRaw, out);
+        }
+        if(!ignoreValidation && !ExactLayout.toHex(digest.digest()).equals(asString(patchZip.readAdministration(EXPECTED_SHA256_FILENAME)))) {
+            Files.delete(generatedFile.toPath());
+            throw new IOException("SHA-256 is incorrect. Patch failed.");
+        }
+    }
+
+    /** Entries copied without inflating are not inflated again to validate them: their crc is the one of the base
+      * central directory, which is already part of the expected crc (the data of a base can be checked with --verify).
+      * What is checked is that the result has them with the same central directory fields and a valid local header.
+      */
+    private static List<String> corruptCopiesOf(File generatedFile, List<ZipIndex.Entry> copied) throws IOException {
+        if(copied.isEmpty()) return Collections.emptyList();
+        final ZipIndex generated = ZipIndex.of(generatedFile);
+        final Map<String,ZipIndex.Entry> nameToGenerated = new HashMap<>();
+        generated.entries.forEach(entry -> nameToGenerated.put(entry.getName(), entry));
+
+        final List<String> corrupt = new ArrayList<>();
+        try(final FileChannel channel = FileChannel.open(generatedFile.toPath(), StandardOpenOption.READ)) {
+            for(final ZipIndex.Entry entry : copied) {
+                final ZipIndex.Entry result = nameToGenerated.get(entry.getName());
+                if(result == null
+                || result.method         != entry.method
+                || result.crc            != entry.crc
+                || result.compressedSize != entry.compressedSize
+                || result.size           != entry.size
+                || !hasValidLocalHeader(channel, result)) corrupt.add(entry.getName());
             }
         }
-        return map;
+        return corrupt;
+    }
+    private static boolean hasValidLocalHeader(FileChannel channel, ZipIndex.Entry entry) {
+        try {
+            return ZipIndex.dataOffsetOf(channel, entry) + entry.compressedSize <= channel.size();
+        } catch(final IOException e) {
+            return false;
+        }
     }
 
-    private static long crcOfZipFile(File zipFile) throws IOException {
-        try(final ZipInputStream patchIn = openZipForReading(zipFile, /*headerText:*/null)) {
+    /** Writes the entries of a patch run in sequence, skipping the ones already written before a checkpoint.
+      * Written entries go through a pipeline, so sequence counts the entries given and written the ones
+      * that are actually written (see finish()).
+      * The crc only includes the entries that match the filter of the patch, like the expected crc.
+      */
+    private class PatchRun implements Closeable {
+        final ZipWriter out;
+        final PatchJournal journal;
+        final File journalFile;
+        final EntryFilter patchFilter;
+        final EntryPipeline pipeline;
+        int sequence;
+        long crc;
 
-            long crc = 0;
-            for(final ZipEntry patchEntry : entryIterableOf(patchIn)) {
-                ZipUtil.drain(patchIn); // this sets the CRC value in the entry
-                crc ^= patchEntry.getCrc();
+        PatchRun(ZipWriter out, PatchJournal journal, File journalFile, EntryFilter patchFilter) {
+            this.out = out;
+            this.journal = journal;
+            this.journalFile = journalFile;
+            this.patchFilter = patchFilter;
+            this.pipeline = new EntryPipeline(out, queueDepth);
+            this.crc = journal.crc;
+        }
+
+        void write(EntrySource source, ZipEntry entry) throws IOException {
+            write(copyOf(entry), data -> {
+                try(final InputStream in = source.open(entry)) { ZipUtil.copyAndReturnCount(in, data); }
+            });
+        }
+        /** Writes the members of a solid group, which are read from the group in a single pass */
+        void writeSolid(EntrySource source, ZipEntry group, List<SolidGroups.Member> members) throws IOException {
+            try(final DataInputStream in = new DataInputStream(source.open(group))) {
+                long offset = 0;
+                for(final SolidGroups.Member member : members) {
+                    if(member.offset != offset) throw new IOException("Invalid offset of " + member.name + " in " + group.getName());
+                    final byte[] data = new byte[(int)member.size];
+                    in.readFully(data);
+                    offset += member.size;
+                    write(member.entry(), out -> out.write(data));
+                }
+            }
+        }
+        private void write(ZipEntry entry, EntryPipeline.Data data) throws IOException {
+            if(sequence++ < journal.entriesCompleted) return; // written before last checkpoint
+            final int written = sequence;
+            pipeline.write(entry, data, (writtenEntry, entryCrc) -> {
+                if(patchFilter.matches(entry.getName())) crc ^= entryCrc;
+                checkpointIfNeeded(written);
+                if(progressListener != null) progressListener.accept(entry.getName(), written);
+            });
+        }
+
+        /** Writes what is still in the pipeline, after which crc is complete */
+        void finish() throws IOException {
+            pipeline.flush();
+        }
+        @Override public void close() {
+            pipeline.close();
+        }
+
+        /** Copies runs of consecutive entries, each in a single transfer, up to the checkpoint interval */
+        void copyRaw(File source, List<ZipIndex.Entry> entries) throws IOException {
+            if(entries.isEmpty()) return;
+            pipeline.flush();
+            final int done = Math.max(0, Math.min(entries.size(), journal.entriesCompleted - sequence)); // copied before last checkpoint
+            sequence += done;
+
+            try(final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+                final List<ZipIndex.Entry> run = new ArrayList<>();
+                long runBytes = 0;
+                for(int i = done; i < entries.size(); i++) {
+                    final ZipIndex.Entry entry = entries.get(i);
+                    final boolean consecutive = run.isEmpty() || run.get(run.size() - 1).getRegionEnd() == entry.localHeaderOffset;
+                    if(!consecutive || run.size() >= checkpointEntries || runBytes >= checkpointBytes) {
+                        copyRun(channel, run);
+                        runBytes = 0;
+                    }
+                    run.add(entry);
+                    runBytes += entry.getRegionLength();
+                }
+                copyRun(channel, run);
+            }
+        }
+        private void copyRun(FileChannel channel, List<ZipIndex.Entry> run) throws IOException {
+            if(run.isEmpty()) return;
+            out.copyRaw(channel, run);
+            for(final ZipIndex.Entry entry : run) {
+                if(patchFilter.matches(entry.getName())) crc ^= entry.crc;
+                sequence++;
+            }
+            checkpointIfNeeded(sequence);
+            if(progressListener != null) {
+                final int first = sequence - run.size();
+                for(int i=0; i<run.size(); i++) progressListener.accept(run.get(i).getName(), first + i + 1);
+            }
+            run.clear();
+        }
+
+        /** Checkpoints when the interval has passed, given the number of entries written */
+        private void checkpointIfNeeded(int written) throws IOException {
+            if(written - journal.entriesCompleted >= checkpointEntries || out.getPosition() - journal.offset >= checkpointBytes) {
+                out.force();
+                journal.update(written, out.getPosition(), crc).writeTo(journalFile);
             }
-            return crc;
         }
     }
-    private static long expectedCrcFromPatch(File patchFile) throws IOException {
-        try(final ZipInputStream patchIn = openZipForReading(patchFile, /*headerText:*/null)) {
 
-            for(final ZipEntry patchEntry : entryIterableOf(patchIn)) {
-                if (EXPECTED_CRC_FILENAME.equals(patchEntry.getName())) {
-                    return Long.parseLong(asString(exhaust(patchIn)));
+    /** Source of the entry data, which is read ahead asynchronously. Entries can be read from multiple threads */
+    private EntrySource openEntrySource() throws IOException {
+        if(storeVersion != null) {
+            return new EntrySource() {
+                @Override public InputStream open(ZipEntry entry) throws IOException { return storeVersion.open(entry.getName()); }
+                @Override public void close() { /*nothing to close*/ }
+            };
+        }
+        if(zipFile.isDirectory()) {
+            return new EntrySource() {
+                @Override public InputStream open(ZipEntry entry) throws IOException {
+                    final AsynchronousFileChannel channel = AsynchronousFileChannel.open(new File(zipFile, entry.getName()).toPath(), StandardOpenOption.READ); // NOSONAR: closed by returned stream
+                    try {
+                        return new ZipIndex.ReadAheadInputStream(channel, 0, channel.size(), readAhead, /*closeChannel:*/true);
+                    } catch(final IOException e) {
+                        channel.close();
+                        throw e;
+                    }
                 }
+                @Override public void close() { /*nothing to close*/ }
+            };
+        }
+        final AsynchronousFileChannel channel = AsynchronousFileChannel.open(zipFile.toPath(), StandardOpenOption.READ); // NOSONAR: closed by returned source
+        return new EntrySource() {
+            @Override public InputStream open(ZipEntry entry) throws IOException { return ZipIndex.openEntry(channel, nameToIndexEntry.get(entry.getName()), readAhead, /*closeChannel:*/false); }
+            @Override public void close() throws IOException { channel.close(); }
+        };
+    }
+
+    /** Source of patch entries that were encoded against their base version (preset dictionary or class delta) */
+    private static EntrySource decodingSourceOf(EntrySource patchSource, EntrySource baseSource, Map<String,PresetDictionary.Encoded> encoded) {
+        return new EntrySource() {
+            @Override public InputStream open(ZipEntry entry) throws IOException {
+                final PresetDictionary.Encoded enc = encoded.get(entry.getName());
+                return enc.decode(patchSource.open(entry), () -> baseSource.open(new ZipEntry(enc.sourceOf(entry.getName()))));
             }
+            @Override public void close() { /*sources are closed by their owner*/ }
+        };
+    }
+
+    /** Identifies the content of this zip or directory by its entries and header */
+    private String identity() {
+        long crc = 0;
+        long size = 0;
+        for(final ZipEntry entry : nameToEntry.values()) {
+            crc ^= entry.getCrc() * 31 + entry.getName().hashCode();
+            size += entry.getSize();
         }
-        return -1;
+        return nameToEntry.size() + ":" + size + ":" + crc + ":" + headerData.length;
     }
 
-    private static Set<String> getNamesToSkip(File patchFile) throws IOException {
-        final Set<String> namesToSkip = new HashSet<>();
+    private static boolean isAdministration(String name) {
+        return REMOVALS_FILENAME.equals(name) || EXPECTED_CRC_FILENAME.equals(name)
+            || LAYOUT_FILENAME.equals(name) || EXPECTED_SHA256_FILENAME.equals(name)
+            || FILTER_FILENAME.equals(name) || SHARDS_FILENAME.equals(name)
+            || DICTIONARY_ENTRIES_FILENAME.equals(name) || MERKLE_TREE_FILENAME.equals(name)
+            || SOLID_ENTRIES_FILENAME.equals(name) || SolidGroups.isGroup(name) || ExactLayout.isRawName(name);
+    }
+    private InputStream openEntry(String name) throws IOException {
+        if(isIndexOnly()) throw new IOException("No data of " + name + " in index " + zipFile);
+        if(storeVersion != null) return storeVersion.open(name);
+        if(index == null) return Files.newInputStream(new File(zipFile, name).toPath());
+        final ZipIndex.Entry entry = nameToIndexEntry.get(name);
+        if(entry == null) throw new IOException("No entry " + name + " in " + zipFile);
+        return index.openEntry(entry);
+    }
+    private InputStream openRaw(String name) throws IOException {
+        final ZipIndex.Entry entry = index == null ? null : nameToIndexEntry.get(name);
+        if(entry == null) throw new IOException("No entry " + name + " in " + zipFile);
+        return index.openRaw(entry);
+    }
+    private byte[] readAdministration(String name) throws IOException {
+        if(!nameToIndexEntry.containsKey(name)) return new byte[0];
+        try(final InputStream in = openEntry(name)) {
+            return exhaust(in);
+        }
+    }
+    private Set<String> readRemovals() throws IOException {
+        return new HashSet<>(Arrays.asList(asString(readAdministration(REMOVALS_FILENAME)).split("\n")));
+    }
+    private EntryFilter readFilter() throws IOException {
+        return EntryFilter.fromText(asString(readAdministration(FILTER_FILENAME)));
+    }
+    private Map<String,PresetDictionary.Encoded> readDictionaryEntries() throws IOException {
+        return PresetDictionary.fromText(asString(readAdministration(DICTIONARY_ENTRIES_FILENAME)));
+    }
+    private Map<String,List<SolidGroups.Member>> readSolidEntries() throws IOException {
+        return SolidGroups.fromText(asString(readAdministration(SOLID_ENTRIES_FILENAME)));
+    }
+    /** Returns the merkle tree of the patched result as stored in given patch, or null if the patch has none */
+    public static MerkleTree readMerkleTreeOf(File patchFile) throws IOException {
+        final byte[] data = new ZipPatcher(patchFile).readAdministration(MERKLE_TREE_FILENAME);
+        return data.length == 0 ? null : MerkleTree.fromBytes(data);
+    }
+    private long readExpectedCrc() throws IOException {
+        final String crc = asString(readAdministration(EXPECTED_CRC_FILENAME));
+        return crc.isEmpty() ? -1 : Long.parseLong(crc);
+    }
 
-        try(final ZipInputStream patchIn = openZipForReading(patchFile, /*headerText:*/null)) {
+    /** Applies given patch to a directory holding the extracted base zip. Only the files
+      * in the patch are touched: removed files are deleted and added or replaced files are
+      * written to a temporary file first, which is then (atomically when possible) renamed.
+      * When validating, the crc of each written file is checked before it is renamed. Removed files
+      * that are the source of an encoded file (see SimilarityIndex) are deleted last.
+      */
+    public static void patchInPlace(File patchFile, File dir, boolean ignoreValidation) throws IOException {
+        if(!dir.isDirectory()) throw new IOException("Not a directory: " + dir);
+        final Path root = dir.toPath().toAbsolutePath().normalize();
+        final ZipPatcher patchZip = new ZipPatcher(patchFile);
+        final List<ZipIndex> shards = PatchShards.readVerified(patchFile, patchZip.readAdministration(SHARDS_FILENAME));
+        final Map<String,PresetDictionary.Encoded> encoded = patchZip.readDictionaryEntries();
+        final Map<String,List<SolidGroups.Member>> solidGroups = patchZip.readSolidEntries();
+
+        final Set<String> sources = new HashSet<>();
+        encoded.values().forEach(enc -> { if(enc.sourceName != null) sources.add(enc.sourceName); });
+        final List<String> removedSources = new ArrayList<>();
+
+        patchInPlaceFrom(patchFile, root, encoded, solidGroups, sources, removedSources, ignoreValidation);
+        for(final ZipIndex shard : shards) patchInPlaceFrom(shard.file, root, encoded, solidGroups, sources, removedSources, ignoreValidation);
+        for(final String removed : removedSources) deleteFileAndEmptyParents(root, pathIn(root, removed));
+    }
+    private static void patchInPlaceFrom(File patchFile, Path root, Map<String,PresetDictionary.Encoded> encoded, Map<String,List<SolidGroups.Member>> solidGroups,
+                                         Set<String> sources, List<String> removedSources, boolean ignoreValidation) throws IOException {
+        try(final ZipInputStream patchIn = openZipForReading(patchFile, /*headerText not needed*/null)) {
             for(final ZipEntry patchEntry : entryIterableOf(patchIn)) {
-                if (REMOVALS_FILENAME.equals(patchEntry.getName())) {
-                    namesToSkip.addAll(
-                        new HashSet<>(Arrays.asList(asString(exhaust(patchIn)).split("\n")))
-                    );
-                } else {
-                    namesToSkip.add(patchEntry.getName());
+                final String name = patchEntry.getName();
+
+                if(REMOVALS_FILENAME.equals(name)) {
+                    for(final String removed : asString(exhaust(patchIn)).split("\n")) {
+                        if(sources.contains(removed)) removedSources.add(removed);
+                        else
+                        if(!removed.isEmpty()) deleteFileAndEmptyParents(root, pathIn(root, removed));
+                    }
+                } else
+                if(encoded.containsKey(name)) {
+                    final PresetDictionary.Encoded enc = encoded.get(name);
+                    final Path source = pathIn(root, enc.sourceOf(name));
+                    try(final InputStream in = enc.decode(new NotClosingInputStream(patchIn), () -> Files.newInputStream(source))) {
+                        writeFileAtomically(pathIn(root, name), enc.decodedEntry(patchEntry), in, ignoreValidation);
+                    }
+                } else
+                if(solidGroups.containsKey(name)) {
+                    final DataInputStream groupIn = new DataInputStream(patchIn);
+                    for(final SolidGroups.Member member : solidGroups.get(name)) { // in group order, so a single pass
+                        final byte[] data = new byte[(int)member.size];
+                        groupIn.readFully(data);
+                        writeFileAtomically(pathIn(root, member.name), member.entry(), new ByteArrayInputStream(data), ignoreValidation);
+                    }
+                } else
+                if(!isAdministration(name) && !patchEntry.isDirectory()) {
+                    writeFileAtomically(pathIn(root, name), patchEntry, patchIn, ignoreValidation);
                 }
             }
         }
-        return namesToSkip;
     }
-    private static void copy(File zipFile, ZipOutputStream zipOut, Set<String> namesToSkip) throws IOException {
-        try(final ZipInputStream zipIn = openZipForReading(zipFile, /*headerText not needed*/null)) {
-            for(final ZipEntry entryIn : entryIterableOf(zipIn)) {
-                if (!namesToSkip.contains(entryIn.getName())) {
-                    zipOut.putNextEntry(copyOf(entryIn));
-                    ZipUtil.copyAndReturnCount(zipIn, zipOut);
-                    zipOut.closeEntry();
+    private static Path pathIn(Path root, String name) throws IOException {
+        final Path path = root.resolve(name).normalize();
+        if(!path.startsWith(root) || path.equals(root)) throw new IOException("Illegal path in patch: " + name);
+        return path;
+    }
+    private static void deleteFileAndEmptyParents(Path root, Path path) throws IOException {
+        Files.deleteIfExists(path);
+        for(Path dir = path.getParent(); dir != null && !dir.equals(root); dir = dir.getParent()) {
+            try(final DirectoryStream<Path> content = Files.newDirectoryStream(dir)) {
+                if(content.iterator().hasNext()) break;
+            } catch(final NoSuchFileException e) {
+                continue;
+            }
+            Files.delete(dir);
+        }
+    }
+    private static void writeFileAtomically(Path path, ZipEntry entry, InputStream dataIn, boolean ignoreValidation) throws IOException {
+        Files.createDirectories(path.getParent());
+        final Path tmp = Files.createTempFile(path.getParent(), "." + path.getFileName(), ".zipdiff-tmp");
+        try {
+            final CRC32 crc = new CRC32();
+            try(final OutputStream out = new CheckedOutputStream(Files.newOutputStream(tmp), crc)) {
+                ZipUtil.copyAndReturnCount(dataIn, out);
+            }
+            if(!ignoreValidation && entry.getCrc() != -1 && entry.getCrc() != crc.getValue()) {
+                throw new IOException("CRC is incorrect for " + entry.getName() + ". Patch failed.");
+            }
+            if(entry.getTime() != -1) Files.setLastModifiedTime(tmp, FileTime.fromMillis(entry.getTime()));
+            try {
+                Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch(final AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /** Checks, without generating the patched result, if given patch matches this base.
+      * Only the central directories and the (small) patch administration entries are read,
+      * no entry data is inflated (except to verify the shards of a sharded patch).
+      */
+    public boolean verifyPatch(File patchFile) throws IOException {
+        final ZipPatcher patchZip = new ZipPatcher(patchFile);
+        final Set<String> namesToSkip = patchZip.readRemovals();
+        final EntryFilter patchFilter = patchZip.readFilter();
+        final List<ZipEntry> patchEntries = new ArrayList<>(patchZip.nameToEntry.values());
+        for(final ZipIndex shard : PatchShards.readVerified(patchFile, patchZip.readAdministration(SHARDS_FILENAME))) {
+            shard.entries.forEach(entry -> patchEntries.add(entry.zipEntry));
+        }
+        long resultCrc = 0;
+
+        final Map<String,PresetDictionary.Encoded> encoded = patchZip.readDictionaryEntries();
+        for(final List<SolidGroups.Member> group : patchZip.readSolidEntries().values()) {
+            for(final SolidGroups.Member member : group) {
+                namesToSkip.add(member.name);
+                resultCrc ^= member.crc;
+            }
+        }
+        for(final ZipEntry patchEntry : patchEntries) {
+            if(!isAdministration(patchEntry.getName())) {
+                namesToSkip.add(patchEntry.getName());
+                resultCrc ^= encoded.containsKey(patchEntry.getName()) ? encoded.get(patchEntry.getName()).crc : patchEntry.getCrc();
+            }
+        }
+        for(final ZipEntry entry : nameToEntry.values()) {
+            if(!namesToSkip.contains(entry.getName()) && patchFilter.matches(entry.getName())) resultCrc ^= entry.getCrc();
+        }
+        return resultCrc == patchZip.readExpectedCrc();
+    }
+
+    /** Streams this zip or directory to a new zip, where the transformer decides for each entry what is
+      * written. Unlike readFully() and writeTo() no entry is held in memory. Kept entries of a zip file
+      * are copied without inflating them, runs of consecutive kept entries in a single transfer.
+      */
+    public void transformTo(File outFile, EntryTransformer transformer) throws IOException {
+        final List<ZipIndex.Entry> indexEntries = index == null ? null : index.entriesInFileOrder();
+        final List<ZipEntry> entries = new ArrayList<>();
+        if(indexEntries == null) entries.addAll(nameToEntry.values());
+        else indexEntries.forEach(entry -> entries.add(entry.zipEntry));
+        try(final ZipWriter out = new ZipWriter(outFile, headerData);
+            final EntrySource source = openEntrySource();
+            final FileChannel channel = index == null ? null : FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            final TransformRun run = new TransformRun(out, source, channel);
+
+            for(int i=0; i<entries.size(); i++) {
+                final ZipEntry entry = entries.get(i);
+                run.next(entry, indexEntries == null ? null : indexEntries.get(i));
+                try(final InputStream data = new LazyInputStream(() -> source.open(entry))) {
+                    transformer.transform(entry, data, run);
+                }
+                run.finishEntry();
+            }
+            run.copyKept();
+        }
+    }
+
+    /** Writes the result of each transformed entry, where kept entries are collected so consecutive ones can be copied at once */
+    private static class TransformRun implements EntryTransformer.Output {
+        final ZipWriter out;
+        final EntrySource source;
+        final FileChannel channel;
+        final List<ZipIndex.Entry> kept = new ArrayList<>(); // not copied yet
+        ZipEntry entry;
+        ZipIndex.Entry indexEntry;
+        boolean decided;
+        OutputStream rewriting;
+
+        TransformRun(ZipWriter out, EntrySource source, FileChannel channel) {
+            this.out = out;
+            this.source = source;
+            this.channel = channel;
+        }
+        void next(ZipEntry entry, ZipIndex.Entry indexEntry) {
+            this.entry = entry;
+            this.indexEntry = indexEntry;
+            this.decided = false;
+            this.rewriting = null;
+        }
+        void finishEntry() throws IOException {
+            if(!decided) keep();
+            if(rewriting != null) rewriting.close();
+        }
+
+        @Override public void keep() throws IOException {
+            decide();
+            if(indexEntry == null) {
+                copyKept();
+                try(final InputStream in = source.open(entry)) {
+                    out.writeEntry(copyOf(entry), in);
+                }
+                return;
+            }
+            if(!kept.isEmpty() && kept.get(kept.size() - 1).getRegionEnd() != indexEntry.localHeaderOffset) copyKept();
+            kept.add(indexEntry);
+        }
+        @Override public void drop() {
+            decide();
+        }
+        @Override public void replace(ZipEntry newEntry, InputStream data) throws IOException {
+            decide();
+            copyKept();
+            out.writeEntry(newEntry, data);
+        }
+        @Override public OutputStream rewrite(ZipEntry newEntry) throws IOException {
+            decide();
+            copyKept();
+            rewriting = out.newEntry(newEntry);
+            return rewriting;
+        }
+        void copyKept() throws IOException {
+            out.copyRaw(channel, kept);
+            kept.clear();
+        }
+        private void decide() {
+            if(decided) throw new IllegalStateException("Output of entry " + entry.getName() + " was already given");
+            decided = true;
+        }
+    }
+
+    /** Stream that leaves its source open when closed */
+    private static class NotClosingInputStream extends FilterInputStream {
+        NotClosingInputStream(InputStream in) { super(in); }
+        @Override public void close() { /*source stays open*/ }
+    }
+
+    /** Stream that only opens its source when first read from */
+    private static class LazyInputStream extends InputStream {
+        @FunctionalInterface interface Opener { InputStream open() throws IOException; }
+        private final Opener opener;
+        private InputStream in;
+        private boolean closed;
+        LazyInputStream(Opener opener) { this.opener = opener; }
+
+        private InputStream in() throws IOException {
+            if(closed) throw new IOException("Stream closed");
+            if(in == null) in = opener.open();
+            return in;
+        }
+        @Override public int read() throws IOException { return in().read(); }
+        @Override public int read(byte[] buf, int off, int len) throws IOException { return in().read(buf, off, len); }
+        @Override public long skip(long n) throws IOException { return in().skip(n); }
+        @Override public int available() throws IOException { return in == null ? 0 : in.available(); }
+        @Override public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            if(in != null) in.close();
+        }
+    }
+
+    /** Writes all entries with given data, so all data is held in memory. See transformTo() for a streaming alternative */
+    public void writeTo(File outFile, Map<String, byte[]> data) throws IOException {
+        try(final ZipOutputStream out = openZipForWriting(outFile, headerData)) {
+            for(final Map.Entry<String,ZipEntry> entry : nameToEntry.entrySet()) {
+                out.putNextEntry(copyOf(entry.getValue()));
+                out.write(data.get(entry.getKey()));
+            }
+        }
+    }
+
+    /** Reads all entries into memory. See transformTo() for a streaming alternative */
+    public Map<String,byte[]> readFully() throws IOException {
+        final LinkedHashMap<String,byte[]> map = new LinkedHashMap<>();
+        if(storeVersion != null) {
+            for(final String name : nameToEntry.keySet()) {
+                try(final InputStream in = storeVersion.open(name)) { map.put(name, exhaust(in)); }
+            }
+            return map;
+        }
+        forEachEntry(zipFile, (entryIn, dataIn) -> map.put(entryIn.getName(), ZipUtil.exhaust(dataIn)));
+        return map;
+    }
+
+    /** Calls the visitor for each entry in given zip file or directory. For a zip file the
+      * entry crc is only known after its data has been read (the crc may be in the data descriptor).
+      */
+    protected static void forEachEntry(File source, EntryVisitor visitor) throws IOException {
+        if(source.isDirectory()) {
+            for(final ZipEntry entry : DirectoryIndex.indexOf(source).values()) {
+                try(final InputStream dataIn = Files.newInputStream(new File(source, entry.getName()).toPath())) {
+                    visitor.visit(entry, dataIn);
+                }
+            }
+        } else {
+            try(final ZipInputStream zipIn = openZipForReading(source, /*headerText not needed*/null)) {
+                for(final ZipEntry entryIn : entryIterableOf(zipIn)) {
+                    visitor.visit(entryIn, zipIn);
                 }
             }
         }
@@ -7,6 +7,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,7 +24,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -31,6 +38,7 @@ import java.util.zip.ZipOutputStream;
 public class ZipUtil {
     private ZipUtil() { /*singleton*/ }
     public static final int COPY_BUFFER_SIZE = 8192;
+    public static final int MAX_IN_MEMORY_SIZE = Integer.MAX_VALUE - 8;
     public static final Charset TEXT_CHARSET = StandardCharsets.UTF_8;
 
     public static ZipInputStream openZipForReading(File file) throws IOException { return openZipForReading(file, null); }
@@ -138,26 +146,103 @@ public class ZipUtil {
         return copyAndReturnCount(new ByteArrayInputStream(source), sink);
     }
     public static long copyAndReturnCount(InputStream source, OutputStream sink) throws IOException {
-        final byte[] buf = new byte[COPY_BUFFER_SIZE];
-        int n;
-        int count = 0;
-        while ((n = source.read(buf)) > 0) {
-            sink.write(buf, 0, n);
-            count += n;
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            int n;
+            long count = 0;
+            while ((n = source.read(buf)) > 0) {
+                sink.write(buf, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            Pools.release(buf);
         }
-        return count;
     }
 
+    /** Reads all data into memory, so only for data that is known to be small. Larger data
+      * should be streamed, but this at least fails clearly instead of running out of memory.
+      */
     public static byte[] exhaust(InputStream source) throws IOException {
         final ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        copyAndReturnCount(source, bout);
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            int n;
+            while ((n = source.read(buf)) > 0) {
+                if(bout.size() > MAX_IN_MEMORY_SIZE - n) throw new IOException("Data too large to read into memory");
+                bout.write(buf, 0, n);
+            }
+        } finally {
+            Pools.release(buf);
+        }
         return bout.toByteArray();
     }
-    public static void   drain(InputStream source) throws IOException {
-        final byte[] buf = new byte[COPY_BUFFER_SIZE];
-        //noinspection StatementWithEmptyBody
-        while (source.read(buf) > 0);
+    /** Reads all data, returning the number of bytes read */
+    public static long   drain(InputStream source) throws IOException {
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            long count = 0;
+            int n;
+            while ((n = source.read(buf)) > 0) count += n;
+            return count;
+        } finally {
+            Pools.release(buf);
+        }
+    }
+    /** Returns a stream that deflates (raw) to out with given preset dictionary (when not null or empty),
+      * using a pooled deflater and buffer that are released when the stream is closed. Closing finishes
+      * the deflate but leaves out open. See ZipIndex.inflating() for the other way round.
+      */
+    static OutputStream deflating(OutputStream out, byte[] dictionary) {
+        final Deflater deflater = Pools.borrowDeflater(Deflater.DEFAULT_COMPRESSION, /*nowrap:*/true);
+        if(dictionary != null && dictionary.length > 0) deflater.setDictionary(dictionary);
+        return new DeflaterOutputStream(notClosing(out), deflater, 1) {
+            { buf = Pools.borrowBuffer(); } // instead of the buffer allocated by the constructor
+            private boolean closed;
+            @Override public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    Pools.release(deflater, /*nowrap:*/true);
+                    Pools.release(buf);
+                }
+            }
+        };
+    }
+    /** Returns a stream that writes to out, where closing only flushes and leaves out open */
+    static OutputStream notClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override public void write(byte[] buf, int off, int len) throws IOException { out.write(buf, off, len); }
+            @Override public void close() throws IOException { flush(); }
+        };
+    }
+
+    /** Returns a pool of daemon threads with given name, to be shared (kept in a static field), so the
+      * inflaters, deflaters and buffers its threads borrow (see Pools) are reused between tasks.
+      * Daemon, so idle workers never keep the jvm from exiting.
+      */
+    static ExecutorService newDaemonCachedThreadPool(String name) {
+        return Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
     }
+
+    /** Waits for an asynchronous read or write and returns its number of bytes */
+    static int await(Future<Integer> io) throws IOException {
+        try {
+            return io.get();
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for I/O", e);
+        } catch(final ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
     public static boolean isEqual(byte[] a, byte[] b) {
         if(a == null && b == null) return true;
         if((a == null) != (b == null)) return false;
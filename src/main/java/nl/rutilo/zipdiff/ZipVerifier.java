@@ -0,0 +1,90 @@
+package nl.rutilo.zipdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/** Checks the integrity of the entries of a zip by inflating them and comparing crc and size with the
+  * central directory. Entries are found by their local header offset in the central directory, so they
+  * are checked in parallel by a pool of workers that each read from their own file channel.
+  * All corrupt entries are reported, not just the first one.
+  */
+public class ZipVerifier {
+    private ZipVerifier() { /*singleton*/ }
+    private static final ExecutorService WORKERS = ZipUtil.newDaemonCachedThreadPool("zipdiff-verifier");
+
+    /** Returns a description of each corrupt entry of given zip, in file order. Empty when all are valid */
+    public static List<String> corruptEntriesOf(File zipFile) throws IOException {
+        return corruptEntriesOf(ZipIndex.of(zipFile), name -> true, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Returns a description of each corrupt entry of given zip that is accepted by the predicate, in file order */
+    static List<String> corruptEntriesOf(ZipIndex index, Predicate<String> toCheck, int threads) throws IOException {
+        final List<ZipIndex.Entry> entries = new ArrayList<>();
+        for(final ZipIndex.Entry entry : index.entriesInFileOrder()) if(toCheck.test(entry.getName())) entries.add(entry);
+        final String[] problems = new String[entries.size()];
+        final AtomicInteger next = new AtomicInteger();
+        final int workers = Math.max(1, Math.min(threads, entries.size()));
+
+        final Runnable worker = () -> {
+            try(final FileChannel channel = FileChannel.open(index.file.toPath(), StandardOpenOption.READ)) {
+                for(int i; (i = next.getAndIncrement()) < entries.size(); ) problems[i] = problemOf(channel, entries.get(i));
+            } catch(final IOException e) {
+                throw new IllegalStateException("Unable to read " + index.file + ": " + e.getMessage(), e);
+            }
+        };
+        if(workers == 1) {
+            runWorker(worker);
+        } else {
+            final List<Future<?>> futures = new ArrayList<>();
+            for(int i=0; i<workers; i++) futures.add(WORKERS.submit(worker));
+            for(final Future<?> future : futures) waitFor(future);
+        }
+        final List<String> corrupt = new ArrayList<>();
+        for(final String problem : problems) if(problem != null) corrupt.add(problem);
+        return corrupt;
+    }
+
+    /** Returns null when the entry is valid, otherwise a description of what is wrong */
+    private static String problemOf(FileChannel channel, ZipIndex.Entry entry) {
+        final CRC32 crc = new CRC32();
+        final long size;
+        try(final InputStream in = new CheckedInputStream(ZipIndex.openEntry(channel, entry, /*closeChannel:*/false), crc)) {
+            size = ZipUtil.drain(in);
+        } catch(final IOException | RuntimeException e) {
+            return entry.getName() + " (" + e.getMessage() + ")";
+        }
+        if(crc.getValue() != entry.crc) return entry.getName() + " (crc mismatch)";
+        if(size != entry.size)          return entry.getName() + " (size mismatch)";
+        return null;
+    }
+
+    private static void runWorker(Runnable worker) throws IOException {
+        try {
+            worker.run();
+        } catch(final IllegalStateException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        }
+    }
+    private static void waitFor(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch(final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while verifying", e);
+        } catch(final ExecutionException e) {
+            throw new IOException(e.getCause().getMessage(), e.getCause().getCause());
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package nl.rutilo.zipdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import static nl.rutilo.zipdiff.ZipIndex.CENTRAL_HEADER_SIZE;
+import static nl.rutilo.zipdiff.ZipIndex.END_OF_CENTRAL_SIZE;
+import static nl.rutilo.zipdiff.ZipIndex.LOCAL_HEADER_SIZE;
+import static nl.rutilo.zipdiff.ZipIndex.SIG_CENTRAL_HEADER;
+import static nl.rutilo.zipdiff.ZipIndex.SIG_END_OF_CENTRAL;
+import static nl.rutilo.zipdiff.ZipIndex.SIG_LOCAL_HEADER;
+import static nl.rutilo.zipdiff.ZipIndex.SIG_ZIP64_END_OF_CENTRAL;
+import static nl.rutilo.zipdiff.ZipIndex.SIG_ZIP64_LOCATOR;
+import static nl.rutilo.zipdiff.ZipIndex.ZIP64_END_OF_CENTRAL_SIZE;
+import static nl.rutilo.zipdiff.ZipIndex.ZIP64_EXTRA_ID;
+import static nl.rutilo.zipdiff.ZipIndex.ZIP64_LOCATOR_SIZE;
+import static nl.rutilo.zipdiff.ZipIndex.ZIP64_MAGIC;
+import static nl.rutilo.zipdiff.ZipIndex.ZIP64_MAGIC_COUNT;
+import static nl.rutilo.zipdiff.ZipIndex.bytes;
+import static nl.rutilo.zipdiff.ZipIndex.u16;
+import static nl.rutilo.zipdiff.ZipIndex.u32;
+
+/** Zip writer on a seekable file. Unlike ZipOutputStream, crc and sizes are written in
+  * the local header (which is updated after the entry data is written) so no data descriptors
+  * are needed. Because of that, the entries of a partially written file can be recovered
+  * from the local headers alone, which is what resume() does.
+  * Zip64 records and fields are written when sizes, offsets or the number of entries
+  * don't fit the original zip format.
+  * Output is double buffered: a full buffer is written asynchronously while the next is filled.
+  */
+public class ZipWriter implements Closeable {
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int LOCAL_ZIP64_EXTRA_SIZE = 20;
+    private static final int FLAG_UTF8 = 0x800;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final DoubleBufferedOutputStream out;
+    private final long zipStart;
+    private final List<Record> records = new ArrayList<>();
+    private final Deflater deflater = Pools.borrowDeflater(Deflater.DEFAULT_COMPRESSION, /*nowrap:*/true);
+    private final byte[] deflated = Pools.borrowBuffer();
+    private long position;
+    private EntryOutputStream openEntry;
+
+    /** Central directory information of a written entry */
+    private static class Record {
+        final byte[] name;
+        final byte[] extra;
+        final byte[] comment;
+        final int flags;
+        final int method;
+        final long dosTime;
+        final long offset;
+        final byte[] rawCentralHeader; // central header of a copied entry, null for new entries
+        boolean localZip64; // local header has a zip64 extra field for the sizes
+        long crc;
+        long compressedSize;
+        long size;
+
+        Record(byte[] name, byte[] extra, byte[] comment, int flags, int method, long dosTime, long offset) { // NOSONAR -- simple value holder
+            this.name = name;
+            this.extra = extra == null ? new byte[0] : extra;
+            this.comment = comment == null ? new byte[0] : comment;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.offset = offset;
+            this.rawCentralHeader = null;
+        }
+        Record(ZipIndex.Entry copied, long offset) {
+            this.name = ZipUtil.toBytes(copied.getName());
+            this.extra = new byte[0];
+            this.comment = new byte[0];
+            this.flags = copied.flags;
+            this.method = copied.method;
+            this.dosTime = 0;
+            this.offset = offset;
+            this.rawCentralHeader = copied.centralHeader;
+            this.crc = copied.crc;
+            this.compressedSize = copied.compressedSize;
+            this.size = copied.size;
+        }
+    }
+
+    public ZipWriter(File file, byte[] headerData) throws IOException {
+        this(file, openEmpty(file, headerData), headerData == null ? 0 : headerData.length);
+    }
+    private ZipWriter(File file, RandomAccessFile raf, long zipStart) throws IOException {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.position = zipStart;
+        this.zipStart = zipStart;
+        try {
+            this.out = new DoubleBufferedOutputStream(AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.WRITE), zipStart);
+        } catch(final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /** Continues writing a partially written zip file that has its first entry at zipStart and a
+      * complete last entry ending at endOffset. Anything after endOffset is removed. Only the
+      * local headers of the existing entries are read. Entries that were copied using copyRaw()
+      * may not have their sizes in the local header, so for those copiedEntryAt should return
+      * the copied entry when given their index.
+      */
+    public static ZipWriter resume(File file, long zipStart, long endOffset, IntFunction<ZipIndex.Entry> copiedEntryAt) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw"); // NOSONAR: closed by returned writer
+        try {
+            if(raf.length() < endOffset) throw new IOException("Cannot resume: file is too small: " + file);
+            raf.setLength(endOffset);
+            final ZipWriter writer = new ZipWriter(file, raf, zipStart);
+            writer.position = endOffset;
+            writer.out.position(endOffset);
+
+            for(long pos = zipStart; pos < endOffset; ) {
+                final ByteBuffer lh = ZipIndex.read(writer.channel, pos, LOCAL_HEADER_SIZE);
+                if(lh.getInt(0) != SIG_LOCAL_HEADER) throw new IOException("Cannot resume: no local header at " + pos + " in " + file);
+                final ZipIndex.Entry copied = copiedEntryAt.apply(writer.records.size());
+                if(copied != null) {
+                    writer.records.add(new Record(copied, pos));
+                    pos += copied.getRegionLength();
+                    if(pos > endOffset) throw new IOException("Cannot resume: entry crosses end offset in " + file);
+                    continue;
+                }
+                final int nameLen  = u16(lh, 26);
+                final int extraLen = u16(lh, 28);
+                final ByteBuffer nameExtra = ZipIndex.read(writer.channel, pos + LOCAL_HEADER_SIZE, nameLen + extraLen);
+                final Record record = new Record(
+                    bytes(nameExtra, 0, nameLen), ZipIndex.withoutZip64Extra(bytes(nameExtra, nameLen, extraLen)), null,
+                    u16(lh, 6), u16(lh, 8), u32(lh, 10), pos);
+                final long[] sizes = ZipIndex.withZip64Values(nameExtra, nameLen, extraLen, ZipUtil.asString(record.name), u32(lh, 22), u32(lh, 18));
+                record.crc            = u32(lh, 14);
+                record.size           = sizes[0];
+                record.compressedSize = sizes[1];
+                writer.records.add(record);
+                pos += LOCAL_HEADER_SIZE + nameLen + extraLen + record.compressedSize;
+                if(pos > endOffset) throw new IOException("Cannot resume: entry crosses end offset in " + file);
+            }
+            return writer;
+        } catch(final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    private static RandomAccessFile openEmpty(File file, byte[] headerData) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw"); // NOSONAR: closed by writer
+        try {
+            raf.setLength(0);
+            if(headerData != null) raf.write(headerData);
+            return raf;
+        } catch(final IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public long getZipStart() { return zipStart; }
+    public long getPosition() { return position; }
+    public int  getEntryCount() { return records.size(); }
+
+    /** Writes the data to a new entry (deflated unless the entry is STORED) and returns its crc */
+    public long writeEntry(ZipEntry entry, InputStream data) throws IOException {
+        final EntryOutputStream entryOut = newEntry(entry);
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            int n;
+            while((n = data.read(buf)) >= 0) entryOut.write(buf, 0, n);
+        } finally {
+            Pools.release(buf);
+        }
+        entryOut.close();
+        return entryOut.getCrc();
+    }
+
+    /** Writes a new entry of which the data is already compressed (raw deflated unless the entry is STORED),
+      * like by EntryPipeline. As crc and sizes are known, the local header is complete when written, so
+      * unlike with newEntry() the output doesn't have to be flushed to fill it in afterwards.
+      */
+    public void writeCompressed(ZipEntry entry, long crc, long size, ByteArrayOutputStream data) throws IOException {
+        checkNoOpenEntry();
+        final Record record = startEntry(entry, entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED, crc, size, data.size());
+        data.writeTo(out);
+        position += data.size();
+        record.crc = crc;
+        record.size = size;
+        record.compressedSize = data.size();
+    }
+
+    /** Like writeCompressed() above, but the compressed data (of given size) is streamed from given input,
+      * like a blob of a BlobStore, which is copied without inflating it.
+      */
+    public void writeCompressed(ZipEntry entry, long crc, long size, long compressedSize, InputStream data) throws IOException {
+        checkNoOpenEntry();
+        final Record record = startEntry(entry, entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED, crc, size, compressedSize);
+        final byte[] buf = Pools.borrowBuffer();
+        try {
+            for(long remaining = compressedSize; remaining > 0; ) {
+                final int n = data.read(buf, 0, (int)Math.min(buf.length, remaining));
+                if(n < 0) throw new IOException("Unexpected end of compressed data of " + entry.getName());
+                write(buf, 0, n);
+                remaining -= n;
+            }
+        } finally {
+            Pools.release(buf);
+        }
+        record.crc = crc;
+        record.size = size;
+        record.compressedSize = compressedSize;
+    }
+
+    /** Starts a new entry (deflated unless the entry is STORED) of which the data should be written
+      * to the returned stream. The entry is finished when the stream is closed, which should be done
+      * before anything else is written to this writer.
+      */
+    public EntryOutputStream newEntry(ZipEntry entry) throws IOException {
+        checkNoOpenEntry();
+        openEntry = new EntryOutputStream(entry);
+        return openEntry;
+    }
+
+    /** Stream of the data of a new entry, see newEntry() */
+    public class EntryOutputStream extends OutputStream {
+        private final Record record;
+        private final long dataStart;
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private boolean closed;
+
+        private EntryOutputStream(ZipEntry entry) throws IOException {
+            record = startEntry(entry, entry.getMethod() == ZipEntry.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED, 0, -1, -1);
+            dataStart = position;
+            deflater.reset();
+        }
+
+        /** The crc of the data, which is only complete after close() */
+        public long getCrc() { return crc.getValue(); }
+
+        @Override public void write(int b) throws IOException { write(new byte[] { (byte)b }, 0, 1); }
+        @Override public void write(byte[] data, int off, int len) throws IOException {
+            if(closed) throw new IOException("Entry " + ZipUtil.asString(record.name) + " is already closed");
+            if(len == 0) return;
+            crc.update(data, off, len);
+            size += len;
+            if(record.method == ZipEntry.STORED) {
+                ZipWriter.this.write(data, off, len);
+            } else {
+                deflater.setInput(data, off, len);
+                while(!deflater.needsInput()) ZipWriter.this.write(deflated, 0, deflater.deflate(deflated));
+            }
+        }
+        @Override public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            openEntry = null;
+            if(record.method == ZipEntry.DEFLATED) {
+                deflater.finish();
+                while(!deflater.finished()) ZipWriter.this.write(deflated, 0, deflater.deflate(deflated));
+            }
+            record.crc = crc.getValue();
+            record.size = size;
+            record.compressedSize = position - dataStart;
+            finishEntry(record);
+        }
+    }
+    private void checkNoOpenEntry() {
+        if(openEntry != null) throw new IllegalStateException("Entry " + ZipUtil.asString(openEntry.record.name) + " is not closed");
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+    /** Copies given entries, which should be consecutive in the source zip, as is (so without
+      * inflating or even reading them) in one transfer, which the OS may do without copying.
+      */
+    public void copyRaw(FileChannel source, List<ZipIndex.Entry> entries) throws IOException {
+        checkNoOpenEntry();
+        if(entries.isEmpty()) return;
+        final long start = entries.get(0).localHeaderOffset;
+        final long end   = entries.get(entries.size() - 1).getRegionEnd();
+        for(int i=1; i<entries.size(); i++) {
+            if(entries.get(i).localHeaderOffset != entries.get(i - 1).getRegionEnd()) throw new IllegalArgumentException("Entries to copy are not consecutive");
+        }
+        out.flush();
+        channel.position(position);
+        for(long pos = start; pos < end; ) {
+            final long n = source.transferTo(pos, end - pos, channel);
+            if(n <= 0) throw new IOException("Unexpected end of file while copying");
+            pos += n;
+        }
+        for(final ZipIndex.Entry entry : entries) records.add(new Record(entry, position + entry.localHeaderOffset - start));
+        position += end - start;
+        out.position(position);
+    }
+
+    /** Makes sure everything written so far is on disk */
+    public void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if(openEntry != null) openEntry.close();
+            final long cdStart = position;
+            for(final Record record : records) writeCentralHeader(record);
+            final long cdSize     = position - cdStart;
+            final long cdRelative = cdStart - zipStart;
+            final int  count      = records.size();
+
+            if(count >= ZIP64_MAGIC_COUNT || cdSize >= ZIP64_MAGIC || cdRelative >= ZIP64_MAGIC) {
+                final long end64Start = position;
+                final ByteBuffer end64 = buffer(ZIP64_END_OF_CENTRAL_SIZE);
+                end64.putInt(SIG_ZIP64_END_OF_CENTRAL).putLong(ZIP64_END_OF_CENTRAL_SIZE - 12L)
+                     .putShort((short)VERSION_ZIP64).putShort((short)VERSION_ZIP64).putInt(0).putInt(0)
+                     .putLong(count).putLong(count).putLong(cdSize).putLong(cdRelative);
+                write(end64.array());
+                // The offset is absolute (also when there is header data) because that is what Java's ZipFile expects
+                final ByteBuffer locator = buffer(ZIP64_LOCATOR_SIZE);
+                locator.putInt(SIG_ZIP64_LOCATOR).putInt(0).putLong(end64Start).putInt(1);
+                write(locator.array());
+            }
+            final ByteBuffer eocd = buffer(END_OF_CENTRAL_SIZE);
+            eocd.putInt(SIG_END_OF_CENTRAL).putShort((short)0).putShort((short)0)
+                .putShort((short)Math.min(count, ZIP64_MAGIC_COUNT)).putShort((short)Math.min(count, ZIP64_MAGIC_COUNT))
+                .putInt((int)Math.min(cdSize, ZIP64_MAGIC)).putInt((int)Math.min(cdRelative, ZIP64_MAGIC)).putShort((short)0);
+            write(eocd.array());
+            out.flush();
+        } finally {
+            Pools.release(deflater, /*nowrap:*/true);
+            Pools.release(deflated);
+            try {
+                out.close();
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /** Writes the local header, with given crc and sizes if known (compressedSize not negative),
+      * otherwise they are filled in by finishEntry()
+      */
+    private Record startEntry(ZipEntry entry, int method, long crc, long size, long compressedSize) throws IOException {
+        final Record record = new Record(
+            ZipUtil.toBytes(entry.getName()), entry.getExtra() == null ? null : ZipIndex.withoutZip64Extra(entry.getExtra()),
+            entry.getComment() == null ? null : ZipUtil.toBytes(entry.getComment()),
+            FLAG_UTF8, method, javaToDosTime(entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime()), position);
+        final boolean known = compressedSize >= 0;
+        record.localZip64 = known ? size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC : mayNeedZip64(entry.getSize());
+        records.add(record);
+
+        final ByteBuffer lh = buffer(LOCAL_HEADER_SIZE);
+        lh.putInt(SIG_LOCAL_HEADER).putShort((short)(record.localZip64 ? VERSION_ZIP64 : VERSION)).putShort((short)record.flags).putShort((short)method)
+          .putInt((int)record.dosTime).putInt(known ? (int)crc : 0)
+          .putInt(known ? (int)(record.localZip64 ? ZIP64_MAGIC : compressedSize) : 0)
+          .putInt(known ? (int)(record.localZip64 ? ZIP64_MAGIC : size) : 0)
+          .putShort((short)record.name.length).putShort((short)(record.extra.length + (record.localZip64 ? LOCAL_ZIP64_EXTRA_SIZE : 0)));
+        write(lh.array());
+        write(record.name);
+        if(record.localZip64) {
+            final ByteBuffer zip64 = buffer(LOCAL_ZIP64_EXTRA_SIZE);
+            zip64.putShort((short)ZIP64_EXTRA_ID).putShort((short)(LOCAL_ZIP64_EXTRA_SIZE - 4));
+            if(known) zip64.putLong(size).putLong(compressedSize);
+            write(zip64.array());
+        }
+        write(record.extra);
+        return record;
+    }
+    /** The sizes are only known after writing, so room for zip64 sizes is reserved in the local header
+      * when the size is unknown or when the entry may (also when deflated) be too large without them.
+      */
+    private static boolean mayNeedZip64(long size) {
+        return size < 0 || size + (size >> 8) + 1024 >= ZIP64_MAGIC;
+    }
+    private void finishEntry(Record record) throws IOException {
+        out.flush();
+        if(!record.localZip64 && (record.size >= ZIP64_MAGIC || record.compressedSize >= ZIP64_MAGIC)) {
+            throw new IOException("Entry " + ZipUtil.asString(record.name) + " is larger than its given size, which leaves no room for zip64 sizes");
+        }
+        final ByteBuffer sizes = buffer(12);
+        sizes.putInt((int)record.crc)
+             .putInt((int)(record.localZip64 ? ZIP64_MAGIC : record.compressedSize))
+             .putInt((int)(record.localZip64 ? ZIP64_MAGIC : record.size)).flip();
+        writeAt(sizes, record.offset + 14);
+        if(record.localZip64) {
+            final ByteBuffer zip64 = buffer(16);
+            zip64.putLong(record.size).putLong(record.compressedSize).flip();
+            writeAt(zip64, record.offset + LOCAL_HEADER_SIZE + record.name.length + 4);
+        }
+    }
+    /** Writes the central directory record, where a copied entry keeps its original record,
+      * except for the offset and any zip64 extra field, which are rewritten as needed.
+      */
+    private void writeCentralHeader(Record record) throws IOException {
+        final long relativeOffset = record.offset - zipStart;
+        final ByteBuffer ch = buffer(CENTRAL_HEADER_SIZE);
+        final byte[] name;
+        final byte[] extra;
+        final byte[] comment;
+        if(record.rawCentralHeader != null) {
+            final ByteBuffer raw = ByteBuffer.wrap(record.rawCentralHeader).order(ByteOrder.LITTLE_ENDIAN);
+            final int nameLen  = u16(raw, 28);
+            final int extraLen = u16(raw, 30);
+            ch.put(record.rawCentralHeader, 0, CENTRAL_HEADER_SIZE);
+            name    = bytes(raw, CENTRAL_HEADER_SIZE, nameLen);
+            extra   = ZipIndex.withoutZip64Extra(bytes(raw, CENTRAL_HEADER_SIZE + nameLen, extraLen));
+            comment = bytes(raw, CENTRAL_HEADER_SIZE + nameLen + extraLen, u16(raw, 32));
+        } else {
+            ch.putInt(SIG_CENTRAL_HEADER).putShort((short)VERSION).putShort((short)VERSION)
+              .putShort((short)record.flags).putShort((short)record.method).putInt((int)record.dosTime).putInt((int)record.crc);
+            name    = record.name;
+            extra   = record.extra;
+            comment = record.comment;
+        }
+        final ByteBuffer zip64 = buffer(4 + 3 * 8);
+        zip64.putShort((short)ZIP64_EXTRA_ID).putShort((short)0);
+        if(record.size           >= ZIP64_MAGIC) zip64.putLong(record.size);
+        if(record.compressedSize >= ZIP64_MAGIC) zip64.putLong(record.compressedSize);
+        if(relativeOffset        >= ZIP64_MAGIC) zip64.putLong(relativeOffset);
+        final int zip64Len = zip64.position() == 4 ? 0 : zip64.position();
+        zip64.putShort(2, (short)(zip64Len - 4));
+
+        if(zip64Len > 0 && u16(ch, 6) < VERSION_ZIP64) ch.putShort(6, (short)VERSION_ZIP64);
+        ch.putInt(20, (int)Math.min(record.compressedSize, ZIP64_MAGIC))
+          .putInt(24, (int)Math.min(record.size, ZIP64_MAGIC))
+          .putShort(28, (short)name.length)
+          .putShort(30, (short)(zip64Len + extra.length))
+          .putShort(32, (short)comment.length)
+          .putInt(42, (int)Math.min(relativeOffset, ZIP64_MAGIC));
+        write(ch.array());
+        write(name);
+        write(zip64.array(), 0, zip64Len);
+        write(extra);
+        write(comment);
+    }
+
+    private void write(byte[] data) throws IOException { write(data, 0, data.length); }
+    private void writeAt(ByteBuffer data, long pos) throws IOException {
+        while(data.hasRemaining()) channel.write(data, pos + data.position());
+    }
+    private void write(byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        position += len;
+    }
+    /** Output at a position of an asynchronous channel, which is written a buffer at a time while the next
+      * buffer is filled. Only after flush() has everything written so far reached the channel.
+      */
+    private static class DoubleBufferedOutputStream extends OutputStream {
+        private static final int BUFFER_SIZE = 256 * 1024;
+        private final AsynchronousFileChannel channel;
+        private ByteBuffer filling = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer writing = ByteBuffer.allocate(BUFFER_SIZE);
+        private Future<Integer> pendingWrite;
+        private long writingPosition;
+        private long position; // of the first byte in the filling buffer
+
+        DoubleBufferedOutputStream(AsynchronousFileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /** Continues writing at given position, which can only be done when flushed */
+        void position(long pos) {
+            if(filling.position() > 0) throw new IllegalStateException("Output is not flushed");
+            position = pos;
+        }
+
+        @Override public void write(int b) throws IOException { write(new byte[] { (byte)b }, 0, 1); }
+        @Override public void write(byte[] data, int off, int len) throws IOException {
+            while(len > 0) {
+                final int n = Math.min(len, filling.remaining());
+                filling.put(data, off, n);
+                off += n;
+                len -= n;
+                if(!filling.hasRemaining()) startWrite();
+            }
+        }
+        private void startWrite() throws IOException {
+            awaitWrite();
+            final ByteBuffer full = filling;
+            filling = writing;
+            writing = full;
+            writing.flip();
+            writingPosition = position;
+            position += writing.remaining();
+            pendingWrite = channel.write(writing, writingPosition);
+        }
+        private void awaitWrite() throws IOException {
+            if(pendingWrite == null) return;
+            ZipUtil.await(pendingWrite);
+            pendingWrite = null;
+            while(writing.hasRemaining()) ZipUtil.await(channel.write(writing, writingPosition + writing.position())); // partial write
+            writing.clear();
+        }
+        @Override public void flush() throws IOException {
+            if(filling.position() > 0) startWrite();
+            awaitWrite();
+        }
+        /** Closes the channel, without flushing as this is called when the writer is closed, also after a failure */
+        @Override public void close() throws IOException {
+            try {
+                if(pendingWrite != null) ZipUtil.await(pendingWrite);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static long javaToDosTime(long time) {
+        final Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        final int year = cal.get(Calendar.YEAR);
+        if(year < 1980) return (1 << 21) | (1 << 16);
+        return  (long)(year - 1980) << 25
+              | (cal.get(Calendar.MONTH) + 1) << 21
+              | cal.get(Calendar.DAY_OF_MONTH) << 16
+              | cal.get(Calendar.HOUR_OF_DAY) << 11
+              | cal.get(Calendar.MINUTE) << 5
+              | cal.get(Calendar.SECOND) >> 1;
+    }
+}
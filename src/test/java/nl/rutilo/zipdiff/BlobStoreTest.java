@@ -0,0 +1,192 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static nl.rutilo.zipdiff.ZipUtil.toBytes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BlobStoreTest {
+    private File fileOld;
+    private File fileNew;
+    private File storeDir;
+    private File outFile;
+
+    @Before
+    public void setup() throws IOException {
+        fileOld  = File.createTempFile("test-old", ".zip");
+        fileNew  = File.createTempFile("test-new", ".zip");
+        outFile  = File.createTempFile("test-out", ".zip");
+        storeDir = Files.createTempDirectory("test-store").toFile();
+        TestUtils.createZipFile(fileOld, toBytes("#!/bin/sh\n"), ZipPatcherTest.entriesOld);
+        TestUtils.createZipFile(fileNew, ZipPatcherTest.entriesNew);
+    }
+    @After
+    public void cleanup() throws IOException {
+        Files.deleteIfExists(fileOld.toPath());
+        Files.deleteIfExists(fileNew.toPath());
+        Files.deleteIfExists(outFile.toPath());
+        TestUtils.deleteDirectory(storeDir);
+    }
+
+    private long blobCount() throws IOException {
+        try(final Stream<Path> files = Files.walk(new File(storeDir, "blobs").toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+    private static void assertSameEntries(File expected, File actual) throws IOException {
+        final Map<String,byte[]> expectedEntries = new ZipPatcher(expected).readFully();
+        final Map<String,byte[]> actualEntries = new ZipPatcher(actual).readFully();
+        assertThat(actualEntries.keySet(), is(expectedEntries.keySet()));
+        for(final String name : expectedEntries.keySet()) assertTrue(name, Arrays.equals(actualEntries.get(name), expectedEntries.get(name)));
+    }
+
+    @Test public void testIngestAndWriteArchive() throws IOException {
+        final BlobStore store = new BlobStore(storeDir);
+        store.ingest("1.0", fileOld);
+        assertThat(blobCount(), is(ZipPatcherTest.entriesOld.size() + 1L)); // and the header
+        store.ingest("1.1", fileNew);
+        assertThat(blobCount(), is(ZipPatcherTest.entriesOld.size() + 1L + 8)); // only added and replaced entries are new
+        assertThat(store.getVersions(), is(Arrays.asList("1.0", "1.1")));
+
+        final File dir = Files.createTempDirectory("test-dir").toFile();
+        try {
+            TestUtils.createDirectory(dir, ZipPatcherTest.entriesNew);
+            store.ingest("1.1-dir", dir);
+            assertThat(blobCount(), is(ZipPatcherTest.entriesOld.size() + 1L + 8)); // same data, so nothing new
+        } finally {
+            TestUtils.deleteDirectory(dir);
+        }
+
+        store.writeArchive("1.0", outFile);
+        assertSameEntries(fileOld, outFile);
+        assertThat(new ZipPatcher(outFile).getHeaderData(), is(toBytes("#!/bin/sh\n")));
+        assertTrue(ZipVerifier.corruptEntriesOf(outFile).isEmpty());
+        store.writeArchive("1.1", outFile);
+        assertSameEntries(fileNew, outFile);
+        assertSameEntries(fileNew, store.versionFileOf("1.1-dir"));
+
+        try {
+            store.ingest("../1.2", fileNew);
+            fail("Expected IOException");
+        } catch(final IOException e) {
+            assertThat(e.getMessage(), is("Invalid version name: ../1.2"));
+        }
+    }
+
+    @Test public void testPatchBetweenVersions() throws IOException {
+        final BlobStore store = new BlobStore(storeDir);
+        store.ingest("1.0", fileOld);
+        store.ingest("1.1", fileNew);
+        final File patchFile = new File(storeDir, "1.0to1.1.zpatch");
+
+        final ZipPatcher versionOld = new ZipPatcher(store.versionFileOf("1.0"));
+        final ZipPatcher versionNew = new ZipPatcher(store.versionFileOf("1.1"));
+        versionOld.generatePatchFileTo(versionNew, patchFile);
+
+        final ZipPatcher zipOld = new ZipPatcher(fileOld);
+        assertTrue(zipOld.verifyPatch(patchFile));
+        zipOld.patchTo(patchFile, outFile, /*ignoreValidation:*/false);
+        assertSameEntries(fileNew, outFile);
+
+        versionOld.patchTo(patchFile, outFile, /*ignoreValidation:*/false); // the base can be in the store too
+        assertSameEntries(fileNew, outFile);
+    }
+
+    @Test public void testPatchFromDirectoryToVersionWithDirectoryEntries() throws IOException {
+        try(final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(fileNew))) {
+            for(final String dirName : new String[] { "dirA/", "dirA/dirAA/", "dirB/" }) zos.putNextEntry(new ZipEntry(dirName));
+            for(final TestUtils.TestEntry entry : ZipPatcherTest.entriesNew) {
+                zos.putNextEntry(new ZipEntry(entry.name));
+                zos.write(toBytes(entry.name + ":" + entry.version));
+            }
+        }
+        final BlobStore store = new BlobStore(storeDir);
+        store.ingest("1.1", fileNew);
+        final File dir = Files.createTempDirectory("test-dir").toFile();
+        final File patchFile = new File(outFile.getAbsolutePath() + ".patch");
+        try {
+            TestUtils.createDirectory(dir, ZipPatcherTest.entriesOld);
+            final ZipPatcher base = new ZipPatcher(dir);
+            final ZipPatcher version = new ZipPatcher(store.versionFileOf("1.1"));
+            final PatchOptions options = new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE);
+
+            assertTrue(base.planPatchTo(version, base.getChangesTo(version), options).getArchiveBytes() > 0);
+            base.generatePatchFileTo(version, base.getChangesTo(version), patchFile, options);
+            ZipPatcher.patchInPlace(patchFile, dir, /*ignoreValidation:*/false);
+
+            final ZipPatcher.Changes changes = new ZipPatcher(dir).getChangesTo(version);
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+        } finally {
+            TestUtils.deleteDirectory(dir);
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testRetireAndCollectGarbage() throws IOException {
+        final BlobStore store = new BlobStore(storeDir);
+        store.ingest("1.0", fileOld);
+        store.ingest("1.1", fileNew);
+        final long blobs = blobCount();
+        assertThat(store.collectGarbage().blobs, is(0));
+
+        assertTrue(store.retire("1.0"));
+        assertFalse(store.retire("1.0"));
+        assertThat(store.getVersions(), is(Arrays.asList("1.1")));
+        final BlobStore.Collected collected = store.collectGarbage();
+        assertThat(collected.blobs, is(7)); // removed and replaced entries and the header
+        assertTrue(collected.bytes > 0);
+        assertThat(blobCount(), is(blobs - 7));
+
+        store.writeArchive("1.1", outFile);
+        assertSameEntries(fileNew, outFile);
+
+        try {
+            store.retire("../../x");
+            fail("Expected IOException");
+        } catch(final IOException e) {
+            assertThat(e.getMessage(), is("Invalid version name: ../../x"));
+        }
+    }
+
+    @Test public void testIngestWhileCollectingGarbage() throws Exception {
+        final BlobStore store = new BlobStore(storeDir);
+        for(int i=0; i<10; i++) {
+            store.ingest("old", fileOld);
+            final Thread collector = new Thread(() -> {
+                try {
+                    store.retire("old");
+                    store.collectGarbage();
+                } catch(final IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            collector.start();
+            store.ingest("copy" + i, fileOld); // its blobs exist, unless collected before this ingest
+            collector.join();
+
+            store.writeArchive("copy" + i, outFile);
+            assertSameEntries(fileOld, outFile);
+            store.retire("copy" + i);
+        }
+    }
+}
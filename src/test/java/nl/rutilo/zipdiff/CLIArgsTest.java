@@ -6,6 +6,8 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
 
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
@@ -69,7 +71,29 @@ public class CLIArgsTest {
             assertThat("i="+i, args.generatePatch, is(nullValue()));
             assertThat("i="+i, args.patchWith,     is(nullValue()));
             assertThat("i="+i, args.patchTo,       is(nullValue()));
+            assertThat("i="+i, args.exact,         is(false));
         }
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--exact").exact, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab").shards, is(1));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--shards", "4").shards, is(4));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--dictionary").dictionary, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "--verify").verify, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--class-delta").classDelta, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-C").classDelta, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--merkle-tree").merkleTree, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-D", "--similar").similar, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-G").solid, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "--store", "releases", "--ingest", "1.1").ingest, is("1.1"));
+        assertThat(CLIArgs.createFor("-b", "releases", "-y", "1.0").retire, is("1.0"));
+        assertTrue(CLIArgs.createFor("-b", "releases", "-y", "1.0").toCommandArgs().containsAll(Arrays.asList("--store", "--retire", "1.0")));
+        assertTrue(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "--solid").toCommandArgs().contains("--solid"));
+        assertThat(CLIArgs.createFor("-f", AZIP, "--export-index", "a").exportIndex, is("a.zindex"));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "--plan", "-D", "-C").plan, is(true));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-P").maxRatio, is(0.8));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-P", "--max-ratio", "0.5").maxRatio, is(0.5));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP).format, is(DiffFormat.TEXT));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "--format", "JsonL").format, is(DiffFormat.JSONL));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-F", "binary").toCommandArgs().subList(4, 6), is(Arrays.asList("--format", "binary")));
     }
     @Test public void testGeneratePatch() {
         for(int i=0; i<3; i++) {
@@ -105,12 +129,76 @@ public class CLIArgsTest {
             assertThat("i="+i, args.patchTo,       is(i == 0 || i == 2 ? BZIP : "a-new.zip"));
         }
     }
+    @Test public void testFetchFrom() {
+        final CLIArgs args = CLIArgs.createFor("-f", AZIP, "--fetch-from", "https://example.com/b.zip");
+        assertThat(args.fetchFrom, is("https://example.com/b.zip"));
+        assertThat(args.patchTo, is("a-new.zip"));
+        assertThat(args.toCommandArgs().subList(4, 6), is(Arrays.asList("--fetch-from", "https://example.com/b.zip")));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-u", EXISTING_PATCH, "-t", BZIP).patchTo, is(BZIP));
+    }
+    @Test public void testPatchInPlace() {
+        final CLIArgs args = CLIArgs.createFor("-f", "a", "-p", EXISTING_PATCH, "--in-place");
+        assertTrue(args.inPlace);
+        assertThat(args.patchTo, is(nullValue()));
+        assertFalse(CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH).inPlace);
+    }
+    @Test public void testFilter() {
+        final CLIArgs args = CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-I", "a/**", "--include", "b", "-X", "regex:c.*");
+        assertThat(args.filter.getIncludes(), is(Arrays.asList("a/**", "b")));
+        assertThat(args.filter.getExcludes(), is(Collections.singletonList("regex:c.*")));
+        assertThat(CLIArgs.createFor("-f", AZIP, "-c", BZIP).filter.isAll(), is(true));
+    }
+
+    @Test public void testServe() {
+        assertThat(CLIArgs.createFor("--serve", "1234").serve, is(1234));
+        final CLIArgs args = CLIArgs.createFor("-r", "1234", "-f", AZIP, "-c", BZIP, "-v");
+        assertThat(args.server, is(1234));
+        assertThat(args.toCommandArgs(), is(Arrays.asList(
+            "--base-file", new File(AZIP).getAbsolutePath(), "--compare-with", new File(BZIP).getAbsolutePath(), "--verbose")));
+    }
+
     @Test public void testIllegalCombinations() {
         assertIllegalArgs("No base-file",          () -> CLIArgs.createFor("-c", AZIP));
         assertIllegalArgs("Nothing to do",         () -> CLIArgs.createFor("--base-file", AZIP));
         assertIllegalArgs("without a compare",     () -> CLIArgs.createFor("-f", AZIP, "-g", NONEXISTING_PATCH));
         assertIllegalArgs("compare when patching", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-p", EXISTING_PATCH));
         assertIllegalArgs("does not exist",        () -> CLIArgs.createFor("-f", AZIP, "-patch-with", NONEXISTING_PATCH));
+        assertIllegalArgs("in place without",      () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-d"));
+        assertIllegalArgs("in place and patch to", () -> CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH, "-t", BZIP, "-d"));
+        assertIllegalArgs("exact patch without",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-e"));
+        assertIllegalArgs("dry-run without",       () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-n"));
+        assertIllegalArgs("dry-run and patch",     () -> CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH, "-t", BZIP, "-n"));
+        assertIllegalArgs("filter without",        () -> CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH, "-I", "a"));
+        assertIllegalArgs("exact patch of filtered",() -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-e", "-X", "a"));
+        assertIllegalArgs("shards without",        () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-k", "4"));
+        assertIllegalArgs("exact patch in shards", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-e", "-k", "4"));
+        assertIllegalArgs("merkle tree without",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-m"));
+        assertIllegalArgs("Cannot export index",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-x", "a"));
+        assertIllegalArgs("Cannot verify and",     () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-V"));
+        assertIllegalArgs("dictionaries without", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-D"));
+        assertIllegalArgs("exact or sharded",     () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-D", "-k", "2"));
+        assertIllegalArgs("class deltas without",  () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-C"));
+        assertIllegalArgs("class deltas for an",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-C", "-e"));
+        assertIllegalArgs("Cannot fetch from a",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-u", EXISTING_PATCH));
+        assertIllegalArgs("Cannot fetch from a",   () -> CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH, "-u", EXISTING_PATCH));
+        assertIllegalArgs("Cannot fetch --",       () -> CLIArgs.createFor("-f", AZIP, "-u", NONEXISTING_PATCH));
+        assertIllegalArgs("plan a patch without",  () -> CLIArgs.createFor("-f", AZIP, "-p", EXISTING_PATCH, "-P"));
+        assertIllegalArgs("max ratio without",     () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-R", "0.5"));
+        assertIllegalArgs("Invalid ratio",         () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-P", "-R", "0"));
+        assertIllegalArgs("other than text",       () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-P", "-F", "jsonl"));
+        assertIllegalArgs("similar entries without", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-S"));
+        assertIllegalArgs("solid groups without", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "--solid"));
+        assertIllegalArgs("solid groups for", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-G", "-k", "2"));
+        assertIllegalArgs("without a store", () -> CLIArgs.createFor("-f", AZIP, "--ingest", "1.1"));
+        assertIllegalArgs("without ingest or retire", () -> CLIArgs.createFor("-f", AZIP, "--store", "releases"));
+        assertIllegalArgs("store and do something else", () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-b", "releases", "-a", "1.1"));
+        assertIllegalArgs("No base-file", () -> CLIArgs.createFor("-b", "releases", "-a", "1.1"));
+        assertIllegalArgs("Invalid shard count",   () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-k", "0"));
+        assertIllegalArgs("Invalid format",        () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-F", "xml"));
+        assertIllegalArgs("other than text",       () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-g", "ab", "-F", "jsonl"));
+        assertIllegalArgs("Invalid pattern",       () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-I", "regex:("));
+        assertIllegalArgs("serve and run",         () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, "-s", "1234"));
+        assertIllegalArgs("Invalid port",          () -> CLIArgs.createFor("-s", "port"));
         assertIllegalArgs("Unexpected arguments",  () -> CLIArgs.createFor("-foo", AZIP));
         assertIllegalArgs("Unexpected arguments",  () -> CLIArgs.createFor("-f", AZIP, "-c", BZIP, AZIP));
     }
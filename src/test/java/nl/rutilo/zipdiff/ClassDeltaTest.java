@@ -0,0 +1,76 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ClassDeltaTest {
+    static final String SOURCE_OLD =
+        "public class Sample {\n"
+      + "    private static final String GREETING = \"Hello\";\n"
+      + "    private final java.util.List<String> names = new java.util.ArrayList<>();\n"
+      + "    public void add(String name) { if(name != null) names.add(name.trim()); }\n"
+      + "    public String greet() { final StringBuilder sb = new StringBuilder(GREETING); for(String n : names) sb.append(' ').append(n); return sb.toString(); }\n"
+      + "    public int count() { return names.size(); }\n"
+      + "    public long total() { long t = 0; for(String n : names) t += n.length() * 31L; return t; }\n"
+      + "    public Object first() { return names.isEmpty() ? null : (Object)names.get(0); }\n"
+      + "}\n";
+    static final String SOURCE_NEW = SOURCE_OLD
+        .replace("public int count()", "public boolean isEmpty() { return names.isEmpty() || \"none\".equals(names.get(0)); }\n    public int count()");
+
+    /** Compiles given source of class Sample, or returns null when no compiler is available */
+    static byte[] compile(String source) throws IOException {
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if(compiler == null) return null;
+        final Path dir = Files.createTempDirectory("class-delta");
+        try {
+            final File sourceFile = dir.resolve("Sample.java").toFile();
+            Files.write(sourceFile.toPath(), ZipUtil.toBytes(source));
+            if(compiler.run(null, null, null, "-g", "-d", dir.toString(), sourceFile.getPath()) != 0) throw new IOException("Compile failed");
+            return Files.readAllBytes(dir.resolve("Sample.class"));
+        } finally {
+            TestUtils.deleteDirectory(dir.toFile());
+        }
+    }
+
+    @Test public void testRoundTrip() throws IOException {
+        final byte[] base = compile(SOURCE_OLD);
+        assumeTrue("needs a java compiler", base != null);
+        final byte[] target = compile(SOURCE_NEW);
+
+        final byte[] delta = ClassDelta.encode(base, target);
+        assertTrue(delta != null);
+        assertThat(ClassDelta.decode(base, delta), is(target));
+        assertTrue("delta " + delta.length + " should be much smaller than deflated " + deflatedSize(target),
+            delta.length * 2 < deflatedSize(target));
+
+        assertThat(ClassDelta.decode(base, ClassDelta.encode(base, base)), is(base));
+        assertThat(ClassDelta.decode(target, ClassDelta.encode(target, base)), is(base));
+    }
+
+    @Test public void testNotAClass() throws IOException {
+        assertThat(ClassDelta.encode(ZipUtil.toBytes("not a class"), ZipUtil.toBytes("neither")), is(nullValue()));
+        final byte[] base = compile(SOURCE_OLD);
+        assumeTrue("needs a java compiler", base != null);
+        assertThat(ClassDelta.encode(base, ZipUtil.toBytes("neither")), is(nullValue()));
+    }
+
+    private static int deflatedSize(byte[] data) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try(final DeflaterOutputStream out = new DeflaterOutputStream(bout)) { out.write(data); }
+        return bout.size();
+    }
+}
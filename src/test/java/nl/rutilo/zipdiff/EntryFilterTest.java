@@ -0,0 +1,40 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class EntryFilterTest {
+
+    @Test
+    public void testGlobs() {
+        final EntryFilter filter = new EntryFilter(Arrays.asList("WEB-INF/classes/**", "*.txt"), Collections.singletonList("**/*.properties"));
+        assertThat(filter.matches("WEB-INF/classes/a/B.class"), is(true));
+        assertThat(filter.matches("WEB-INF/classes/a.properties"), is(false));
+        assertThat(filter.matches("WEB-INF/lib/a.jar"), is(false));
+        assertThat(filter.matches("readme.txt"), is(true));
+        assertThat(filter.matches("dir/readme.txt"), is(false));
+        assertThat(new EntryFilter(Collections.singletonList("file?"), Collections.emptyList()).matches("fileA"), is(true));
+        assertThat(new EntryFilter(Collections.singletonList("a.b"), Collections.emptyList()).matches("axb"), is(false));
+    }
+
+    @Test
+    public void testRegex() {
+        final EntryFilter filter = new EntryFilter(Collections.emptyList(), Collections.singletonList("regex:META-INF/.*\\.(SF|RSA)"));
+        assertThat(filter.matches("META-INF/CERT.SF"), is(false));
+        assertThat(filter.matches("META-INF/MANIFEST.MF"), is(true));
+    }
+
+    @Test
+    public void testText() {
+        final EntryFilter filter = EntryFilter.fromText(new EntryFilter(Arrays.asList("a/**", "b"), Collections.singletonList("regex:c.*")).toText());
+        assertThat(filter.getIncludes(), is(Arrays.asList("a/**", "b")));
+        assertThat(filter.getExcludes(), is(Collections.singletonList("regex:c.*")));
+        assertThat(EntryFilter.fromText("").isAll(), is(true));
+        assertThat(EntryFilter.ALL.matches("anything"), is(true));
+    }
+}
@@ -0,0 +1,86 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static nl.rutilo.zipdiff.ZipUtil.toBytes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EntryPipelineTest {
+    private File sequential;
+    private File pipelined;
+
+    @Before
+    public void setup() throws IOException {
+        sequential = File.createTempFile("test-sequential", ".zip");
+        pipelined  = File.createTempFile("test-pipelined", ".zip");
+    }
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(sequential.toPath());
+        Files.deleteIfExists(pipelined.toPath());
+    }
+
+    private static byte[] dataOf(int seed, int size) {
+        final Random random = new Random(seed);
+        final byte[] data = new byte[size];
+        for(int i=0; i<size; i++) data[i] = (byte)('a' + random.nextInt(random.nextBoolean() ? 4 : 26)); // compressible
+        return data;
+    }
+    private static List<String> write(File file, int queueDepth) throws IOException {
+        final List<String> written = new ArrayList<>();
+        try(final ZipWriter out = new ZipWriter(file, toBytes("header"));
+            final EntryPipeline pipeline = new EntryPipeline(out, queueDepth)) {
+            for(int i=0; i<20; i++) {
+                final byte[] data = dataOf(i, i == 7 ? EntryPipeline.MAX_BUFFERED_SIZE + 1 : 1000 * i);
+                final ZipEntry entry = new ZipEntry("entry" + i);
+                entry.setTime(1_500_000_000_000L);
+                if(i != 3) entry.setSize(data.length); // unknown size is streamed
+                if(i == 5) entry.setMethod(ZipEntry.STORED);
+                pipeline.write(entry, dataOut -> dataOut.write(data), (writtenEntry, crc) -> written.add(writtenEntry.getName() + ":" + crc));
+            }
+            pipeline.flush();
+        }
+        return written;
+    }
+
+    @Test public void testSameAsSequential() throws IOException {
+        final List<String> writtenSequential = write(sequential, 0);
+        final List<String> writtenPipelined  = write(pipelined, 4);
+        assertThat(writtenPipelined, is(writtenSequential));
+        assertThat(Files.readAllBytes(pipelined.toPath()), is(Files.readAllBytes(sequential.toPath())));
+
+        try(final ZipFile zip = new ZipFile(pipelined)) {
+            assertThat(zip.size(), is(20));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("entry12"))), is(dataOf(12, 12000)));
+            assertThat(zip.getEntry("entry5").getMethod(), is(ZipEntry.STORED));
+        }
+        assertTrue(ZipVerifier.corruptEntriesOf(pipelined).isEmpty());
+    }
+
+    @Test public void testFailure() throws IOException {
+        try(final ZipWriter out = new ZipWriter(pipelined, null);
+            final EntryPipeline pipeline = new EntryPipeline(out, 4)) {
+            final ZipEntry entry = new ZipEntry("failing");
+            entry.setSize(10);
+            pipeline.write(entry, dataOut -> { throw new IOException("unreadable"); }, null);
+            pipeline.flush();
+            fail("Expected failure");
+        } catch(final IOException e) {
+            assertThat(e.getMessage(), is("unreadable"));
+        }
+    }
+}
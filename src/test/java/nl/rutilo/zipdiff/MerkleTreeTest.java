@@ -0,0 +1,60 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class MerkleTreeTest {
+    private static List<ZipEntry> entriesOf(Object... nameAndCrc) {
+        final List<ZipEntry> entries = new ArrayList<>();
+        for(int i=0; i<nameAndCrc.length; i+=2) {
+            final ZipEntry entry = new ZipEntry((String)nameAndCrc[i]);
+            entry.setCrc((Integer)nameAndCrc[i+1]);
+            entry.setSize(10);
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Test public void testEqualTrees() {
+        final MerkleTree a = MerkleTree.of(entriesOf("a", 1, "dir/b", 2, "dir/sub/c", 3));
+        final MerkleTree b = MerkleTree.of(entriesOf("dir/sub/c", 3, "a", 1, "dir/b", 2)); // order doesn't matter
+        assertThat(a.isEqualTo(b), is(true));
+        assertThat(a.differencesFrom(b).isEmpty(), is(true));
+        assertThat(a.childrenOf(MerkleTree.ROOT), is(Arrays.asList("a", "dir/")));
+        assertThat(a.childrenOf("dir/"), is(Arrays.asList("dir/b", "dir/sub/")));
+    }
+
+    @Test public void testDifferences() {
+        final MerkleTree a = MerkleTree.of(entriesOf("a", 1, "dir/b", 2, "dir/sub/c", 3, "old/d", 4, "same/e", 5));
+        final MerkleTree b = MerkleTree.of(entriesOf("a", 1, "dir/b", 2, "dir/sub/c", 9, "new/d", 4, "same/e", 5, "f", 6));
+        assertThat(a.isEqualTo(b), is(false));
+        assertThat(a.differencesFrom(b), is(Arrays.asList("dir/sub/c", "f", "new/", "old/")));
+        assertThat(b.differencesFrom(a), is(Arrays.asList("dir/sub/c", "f", "new/", "old/")));
+    }
+
+    @Test public void testDirectoryEntries() {
+        final List<ZipEntry> withDir = entriesOf("dir/a", 1);
+        withDir.add(new ZipEntry("dir/"));
+        withDir.add(new ZipEntry("empty/"));
+        final MerkleTree a = MerkleTree.of(withDir);
+        final MerkleTree b = MerkleTree.of(entriesOf("dir/a", 1));
+        assertThat(a.differencesFrom(b), is(Arrays.asList("dir/", "empty/")));
+    }
+
+    @Test public void testSerialization() throws IOException {
+        final MerkleTree a = MerkleTree.of(entriesOf("a", 1, "dir/b", 2, "dir/sub/c", 3));
+        final MerkleTree b = MerkleTree.fromBytes(a.toBytes());
+        assertThat(b.isEqualTo(a), is(true));
+        assertThat(b.hashOf("dir/sub/"), is(a.hashOf("dir/sub/")));
+        assertThat(b.childrenOf("dir/"), is(a.childrenOf("dir/")));
+        assertThat(b.differencesFrom(MerkleTree.of(entriesOf("a", 1, "dir/b", 3, "dir/sub/c", 3))), is(Arrays.asList("dir/b")));
+    }
+}
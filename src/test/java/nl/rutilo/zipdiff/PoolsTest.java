@@ -0,0 +1,68 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class PoolsTest {
+
+    @Test public void testReleasedIsReused() {
+        final Inflater inflater = Pools.borrowInflater(/*nowrap:*/true);
+        Pools.release(inflater, /*nowrap:*/true);
+        assertThat(Pools.borrowInflater(/*nowrap:*/false), not(sameInstance(inflater)));
+        final long hits = Pools.getStats().inflaterHits;
+        assertThat(Pools.borrowInflater(/*nowrap:*/true), sameInstance(inflater));
+        assertThat(Pools.getStats().inflaterHits, is(hits + 1));
+
+        final Deflater deflater = Pools.borrowDeflater(1, /*nowrap:*/true);
+        Pools.release(deflater, /*nowrap:*/true);
+        assertThat(Pools.borrowDeflater(9, /*nowrap:*/true), sameInstance(deflater));
+    }
+
+    @Test public void testBufferSizes() {
+        assertThat(Pools.borrowBuffer().length, is(ZipUtil.COPY_BUFFER_SIZE));
+        assertThat(Pools.borrowBuffer(1).length, is(ZipUtil.COPY_BUFFER_SIZE));
+        assertThat(Pools.borrowBuffer(ZipUtil.COPY_BUFFER_SIZE + 1).length, is(ZipUtil.COPY_BUFFER_SIZE * 2));
+        assertThat(Pools.borrowBuffer(3 * 1024 * 1024).length, is(3 * 1024 * 1024)); // too large to pool
+
+        final byte[] buf = Pools.borrowBuffer(100_000);
+        Pools.release(buf);
+        assertThat(Pools.borrowBuffer(70_000), sameInstance(buf));
+        Pools.release(new byte[1000]); // not a pooled size, ignored
+    }
+
+    @Test public void testPatchingReusesPooled() throws IOException {
+        final File fileOld     = File.createTempFile("test-old", ".zip");
+        final File fileNew     = File.createTempFile("test-new", ".zip");
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            TestUtils.createZipFile(fileOld, ZipPatcherTest.entriesOld);
+            TestUtils.createZipFile(fileNew, ZipPatcherTest.entriesNew);
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            Pools.resetStats();
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            final Pools.Stats stats = Pools.getStats();
+            assertThat(stats.toString(), stats.deflaterMisses, is(0L)); // inflaters may be borrowed on other verifier threads
+            assertTrue(stats.toString(), stats.inflaterHits > 0 && stats.deflaterHits > 0 && stats.bufferHits > 0);
+        } finally {
+            Files.deleteIfExists(fileOld.toPath());
+            Files.deleteIfExists(fileNew.toPath());
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** End to end compare, generate and patch of synthetic archives, recording throughput, peak heap and
+  * peak RSS of each phase and failing when any of them regresses beyond the stored baseline
+  * (src/test/resources/scaling-baseline.properties) by more than the tolerance. Memory may always
+  * exceed the baseline by MEMORY_SLACK_MB, so small scenarios don't fail on noise.
+  * The RSS includes what earlier tests in the same JVM left, so only its growth during a phase (where
+  * the OS can reset the peak RSS) is checked. Throughput depends on the machine, so the baseline should be
+  * measured on the machine that runs the test, which is why it is skipped unless zipdiff.scaling is set.
+  * A scenario without baseline fails, until one is recorded with zipdiff.scaling.update. System properties:
+  * <pre>
+  * zipdiff.scaling           comma separated scenarios to run (small, medium, large, huge)
+  * zipdiff.scaling.seed      seed of the generated archives (default 1)
+  * zipdiff.scaling.tolerance allowed regression as fraction of the baseline (default 0.5)
+  * zipdiff.scaling.update    true to write the measured values as new baseline
+  * </pre>
+  * Results are written to target/scaling-results.properties.
+  */
+public class ScalingTest {
+    private static final Path BASELINE_FILE = Paths.get("src/test/resources/scaling-baseline.properties");
+    private static final Path RESULTS_FILE  = Paths.get("target/scaling-results.properties");
+    private static final int MEMORY_SLACK_MB = 16;
+    private static final String[] PHASES = { "compare", "generate", "patch" };
+    private static final Map<String,SyntheticArchive> SCENARIOS = new LinkedHashMap<>();
+    static {
+        SCENARIOS.put("small",  new SyntheticArchive().setEntryCount(   2_000).setSizes(2048, 256 * 1024).setCompressibility(0.7).setHeaderStubSize(1024));
+        SCENARIOS.put("medium", new SyntheticArchive().setEntryCount( 100_000).setSizes(2048, 1024 * 1024).setCompressibility(0.95).setHeaderStubSize(64 * 1024));
+        SCENARIOS.put("large",  new SyntheticArchive().setEntryCount( 500_000).setSizes(1024, 4 * 1024 * 1024).setCompressibility(0.2).setNestedJarRatio(0.05));
+        SCENARIOS.put("huge",   new SyntheticArchive().setEntryCount(2_000_000).setSizes(256, 1024 * 1024).setCompressibility(0.5).setChangeRatio(0.01));
+    }
+
+    /** Measured values of a single phase */
+    private static class Measurement {
+        final double entriesPerSecond;
+        final double mbPerSecond;
+        final long peakHeapMb;
+        final long peakRssMb;       // -1 when unknown
+        final long rssGrowthMb;     // growth of the RSS during the phase, -1 when unknown
+        Measurement(double entriesPerSecond, double mbPerSecond, long peakHeapMb, long peakRssMb, long rssGrowthMb) {
+            this.entriesPerSecond = entriesPerSecond;
+            this.mbPerSecond = mbPerSecond;
+            this.peakHeapMb = peakHeapMb;
+            this.peakRssMb = peakRssMb;
+            this.rssGrowthMb = rssGrowthMb;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Phase {
+        void run() throws IOException;
+    }
+
+    @Test public void testScaling() throws IOException {
+        Assume.assumeTrue("Scaling is only tested when -Dzipdiff.scaling is set", System.getProperty("zipdiff.scaling") != null);
+        final long seed = Long.getLong("zipdiff.scaling.seed", 1);
+        final double tolerance = Double.parseDouble(System.getProperty("zipdiff.scaling.tolerance", "0.5"));
+        final boolean update = Boolean.getBoolean("zipdiff.scaling.update");
+        final Properties baseline = load(BASELINE_FILE);
+        final Properties results = load(RESULTS_FILE);
+        final List<String> regressions = new ArrayList<>();
+
+        for(final String name : System.getProperty("zipdiff.scaling").split(",")) {
+            final String scenario = name.trim();
+            final SyntheticArchive archive = SCENARIOS.get(scenario);
+            if(archive == null) fail("Unknown scaling scenario: " + scenario + " (expected one of " + SCENARIOS.keySet() + ")");
+            archive.setSeed(seed);
+
+            final Map<String,Measurement> measurements = run(archive);
+            measurements.forEach((phase, measurement) -> {
+                final String key = scenario + "." + phase + ".";
+                record(results,  key, measurement);
+                if(update) { record(baseline, key, measurement); return; }
+                if(baseline.getProperty(key + "entriesPerSecond") == null) { regressions.add(key + ": no baseline (record one with -Dzipdiff.scaling.update=true)"); return; }
+                checkMin(baseline, key + "entriesPerSecond", measurement.entriesPerSecond, tolerance, regressions);
+                checkMaxMb(baseline, key + "peakHeapMb",     measurement.peakHeapMb,       tolerance, regressions);
+                checkMaxMb(baseline, key + "rssGrowthMb",    measurement.rssGrowthMb,      tolerance, regressions);
+            });
+        }
+        store(results, RESULTS_FILE, "Results of the last scaling test run");
+        if(update) store(baseline, BASELINE_FILE, "Scaling test baseline (mvn test -Dtest=ScalingTest -Dzipdiff.scaling.update=true)");
+        assertTrue("Scaling regressions:\n" + String.join("\n", regressions), regressions.isEmpty());
+    }
+
+    @Test public void testArchivesAreReproducible() throws IOException {
+        final File fileA = File.createTempFile("synthetic-a", ".zip");
+        final File fileB = File.createTempFile("synthetic-b", ".zip");
+        try {
+            final SyntheticArchive archive = new SyntheticArchive().setSeed(42).setEntryCount(200).setNestedJarRatio(0.1).setHeaderStubSize(100);
+            archive.writeChanged(fileA);
+            archive.writeChanged(fileB);
+            assertTrue(Arrays.equals(Files.readAllBytes(fileA.toPath()), Files.readAllBytes(fileB.toPath())));
+
+            archive.setSeed(43).writeChanged(fileB);
+            assertFalse(Arrays.equals(Files.readAllBytes(fileA.toPath()), Files.readAllBytes(fileB.toPath())));
+        } finally {
+            Files.deleteIfExists(fileA.toPath());
+            Files.deleteIfExists(fileB.toPath());
+        }
+    }
+
+    private static Map<String,Measurement> run(SyntheticArchive archive) throws IOException {
+        final File fileOld     = File.createTempFile("scaling-old", ".zip");
+        final File fileNew     = File.createTempFile("scaling-new", ".zip");
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final Map<String,Measurement> measurements = new LinkedHashMap<>();
+        try {
+            archive.writeBase(fileOld);
+            archive.writeChanged(fileNew);
+            final long totalSize = fileOld.length() + fileNew.length();
+            final ZipPatcher[] zips = new ZipPatcher[2];
+            final ZipPatcher.Changes[] changes = new ZipPatcher.Changes[1];
+
+            final Phase compare = () -> {
+                zips[0] = new ZipPatcher(fileOld);
+                zips[1] = new ZipPatcher(fileNew);
+                changes[0] = zips[0].getChangesTo(zips[1]);
+            };
+            final Phase generate = () -> zips[0].generatePatchFileTo(zips[1], changes[0], patchFile);
+            final Phase patch    = () -> zips[0].patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            measurements.put(PHASES[0], measure(compare,  archive.getEntryCount(), totalSize));
+            measurements.put(PHASES[1], measure(generate, archive.getEntryCount(), totalSize));
+            measurements.put(PHASES[2], measure(patch,    archive.getEntryCount(), fileOld.length() + patchFile.length()));
+
+            assertFalse("patched archive differs", new ZipPatcher(patchedFile).getChangesTo(zips[1]).hasNewHeaderData());
+            assertTrue("patched archive differs", new ZipPatcher(patchedFile).hasSameContentAs(zips[1]));
+        } finally {
+            Files.deleteIfExists(fileOld.toPath());
+            Files.deleteIfExists(fileNew.toPath());
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+        return measurements;
+    }
+
+    private static Measurement measure(Phase phase, int entryCount, long bytes) throws IOException {
+        System.gc();
+        final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for(final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() != MemoryType.HEAP) continue;
+            pool.resetPeakUsage();
+            heapPools.add(pool);
+        }
+        final long rssAtStart = resetPeakRss() ? statusMb("VmRSS:") : -1;
+
+        final long start = System.nanoTime();
+        phase.run();
+        final double seconds = Math.max(1e-6, (System.nanoTime() - start) / 1e9);
+
+        final long peakRss = statusMb("VmHWM:");
+        long peakHeap = 0;
+        for(final MemoryPoolMXBean pool : heapPools) peakHeap += pool.getPeakUsage().getUsed();
+        return new Measurement(entryCount / seconds, bytes / seconds / (1024 * 1024), peakHeap / (1024 * 1024), peakRss,
+            rssAtStart < 0 || peakRss < 0 ? -1 : Math.max(0, peakRss - rssAtStart));
+    }
+
+    /** Resets the peak RSS of this process, which is only possible on Linux (and not in every container).
+      * Returns false when the peak RSS is still that of the process so far.
+      */
+    private static boolean resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+        } catch(final IOException | UnsupportedOperationException | SecurityException ignored) {
+            return false;
+        }
+        final long peak = statusMb("VmHWM:");
+        return peak >= 0 && peak <= statusMb("VmRSS:") + 1;
+    }
+    /** Value of given field of /proc/self/status in MB, or -1 when unknown (this is Linux only) */
+    private static long statusMb(String field) {
+        try {
+            for(final String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if(line.startsWith(field)) return Long.parseLong(line.replaceAll("\\D", "")) / 1024;
+            }
+        } catch(final IOException | NumberFormatException ignored) {
+            // unknown
+        }
+        return -1;
+    }
+
+    private static void record(Properties props, String key, Measurement measurement) {
+        props.setProperty(key + "entriesPerSecond", String.valueOf(Math.round(measurement.entriesPerSecond)));
+        props.setProperty(key + "mbPerSecond",      String.format("%.1f", measurement.mbPerSecond));
+        props.setProperty(key + "peakHeapMb",       String.valueOf(measurement.peakHeapMb));
+        if(measurement.peakRssMb   >= 0) props.setProperty(key + "peakRssMb",   String.valueOf(measurement.peakRssMb));
+        if(measurement.rssGrowthMb >= 0) props.setProperty(key + "rssGrowthMb", String.valueOf(measurement.rssGrowthMb));
+    }
+    private static void checkMin(Properties baseline, String key, double value, double tolerance, List<String> regressions) {
+        final String base = baseline.getProperty(key);
+        if(base == null) return;
+        final double min = Double.parseDouble(base) * (1 - tolerance);
+        if(value < min) regressions.add(String.format("%s: %.0f is below %.0f (baseline %s)", key, value, min, base));
+    }
+    private static void checkMaxMb(Properties baseline, String key, double value, double tolerance, List<String> regressions) {
+        final String base = baseline.getProperty(key);
+        if(base == null || value < 0) return;
+        final double max = Math.max(Double.parseDouble(base) * (1 + tolerance), Double.parseDouble(base) + MEMORY_SLACK_MB);
+        if(value > max) regressions.add(String.format("%s: %.0f is above %.0f (baseline %s)", key, value, max, base));
+    }
+
+    private static Properties load(Path file) throws IOException {
+        final Properties props = new Properties();
+        if(Files.exists(file)) try(final InputStream in = Files.newInputStream(file)) { props.load(in); }
+        return props;
+    }
+    /** Stores sorted and without timestamp, so changes of the baseline are easy to review */
+    private static void store(Properties props, Path file, String comment) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        lines.add("# " + comment);
+        new TreeMap<>(props).forEach((key, value) -> lines.add(key + "=" + value));
+        if(file.getParent() != null) Files.createDirectories(file.getParent());
+        Files.write(file, lines, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,58 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+
+import static nl.rutilo.zipdiff.ZipUtil.toBytes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class SimilarityIndexTest {
+    private static String textOf(int seed, int lines) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder();
+        for(int i=0; i<lines; i++) sb.append("line ").append(random.nextInt()).append(' ').append(Long.toHexString(random.nextLong())).append('\n');
+        return sb.toString();
+    }
+    private static int[] sketchOf(String text) throws IOException {
+        return SimilarityIndex.sketchOf(new ByteArrayInputStream(toBytes(text)));
+    }
+
+    @Test public void testSimilarity() throws IOException {
+        final String text = textOf(1, 400);
+        final String edited = text.replace("line 1", "line -1") + "appended line\n";
+        assertThat(SimilarityIndex.similarityOf(sketchOf(text), sketchOf(text)), is(1.0));
+        assertTrue(SimilarityIndex.similarityOf(sketchOf(text), sketchOf(edited)) > 0.7);
+        assertTrue(SimilarityIndex.similarityOf(sketchOf(text), sketchOf(textOf(2, 400))) < 0.2);
+    }
+
+    @Test public void testMostSimilar() throws IOException {
+        final Map<String,byte[]> data = new HashMap<>();
+        data.put("a.txt", toBytes(textOf(1, 400)));
+        data.put("b.txt", toBytes(textOf(2, 400)));
+        data.put("c.txt", toBytes(textOf(3, 100)));
+        data.put("tiny",  toBytes("tiny"));
+        final ZipEntry[] entries = data.keySet().stream().map(name -> {
+            final ZipEntry entry = new ZipEntry(name);
+            entry.setSize(data.get(name).length);
+            return entry;
+        }).toArray(ZipEntry[]::new);
+        final SimilarityIndex index = SimilarityIndex.of(Arrays.asList(entries), name -> new ByteArrayInputStream(data.get(name)));
+        assertThat(index.size(), is(3));
+
+        final byte[] moved = toBytes(textOf(2, 400).replace("line 2", "line +2"));
+        assertThat(index.mostSimilarTo(new ByteArrayInputStream(moved), moved.length), is("b.txt"));
+        final byte[] other = toBytes(textOf(4, 400));
+        assertThat(index.mostSimilarTo(new ByteArrayInputStream(other), other.length), is(nullValue()));
+        assertThat(index.mostSimilarTo(new ByteArrayInputStream(toBytes("tiny")), 4), is(nullValue()));
+    }
+}
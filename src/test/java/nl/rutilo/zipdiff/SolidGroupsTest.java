@@ -0,0 +1,64 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SolidGroupsTest {
+    private static ZipEntry entryOf(String name, long size) {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setSize(size);
+        entry.setCrc(size * 31);
+        entry.setTime(1_500_000_000_000L);
+        return entry;
+    }
+
+    @Test public void testExtension() {
+        assertThat(SolidGroups.extensionOf("a/b/c.TXT"), is("txt"));
+        assertThat(SolidGroups.extensionOf("a.b/c"), is(""));
+        assertThat(SolidGroups.extensionOf("a/.hidden"), is(""));
+        assertThat(SolidGroups.extensionOf("archive.tar.gz"), is("gz"));
+    }
+
+    @Test public void testCanBeMember() {
+        assertTrue(SolidGroups.canBeMember(entryOf("a.txt", 100)));
+        assertFalse(SolidGroups.canBeMember(entryOf("a.bin", SolidGroups.MAX_ENTRY_SIZE + 1L)));
+        assertFalse(SolidGroups.canBeMember(new ZipEntry("a.txt"))); // unknown size and crc
+        assertFalse(SolidGroups.canBeMember(new ZipEntry("dir/")));
+        assertTrue(SolidGroups.isGroup(".solid_1.zipdiff"));
+        assertFalse(SolidGroups.isGroup("dir/.solid_1.zipdiff"));
+    }
+
+    @Test public void testGroups() {
+        final List<ZipEntry> entries = new ArrayList<>();
+        for(int i=0; i<40; i++) entries.add(entryOf("dir/text" + i + ".txt", 40_000));
+        entries.add(entryOf("a.xml", 10));
+        entries.add(entryOf("b.XML", 20));
+
+        final Map<String,List<SolidGroups.Member>> groups = SolidGroups.groupsOf(entries);
+        assertThat(groups.size(), is(3)); // txt split at the max group size
+        assertThat(groups.get(".solid_1.zipdiff").size(), is(SolidGroups.MAX_GROUP_SIZE / 40_000));
+        assertThat(groups.get(".solid_3.zipdiff").size(), is(2));
+        assertThat(groups.get(".solid_3.zipdiff").get(1).offset, is(10L));
+        for(final List<SolidGroups.Member> group : groups.values()) {
+            assertTrue(group.stream().mapToLong(member -> member.size).sum() <= SolidGroups.MAX_GROUP_SIZE);
+        }
+
+        final Map<String,List<SolidGroups.Member>> read = SolidGroups.fromText(SolidGroups.toText(groups));
+        assertThat(read.keySet(), is(groups.keySet()));
+        final SolidGroups.Member member = read.get(".solid_3.zipdiff").get(1);
+        assertThat(Arrays.asList(member.name, member.group, member.offset, member.size, member.crc, member.time),
+                   is(Arrays.<Object>asList("b.XML", ".solid_3.zipdiff", 10L, 20L, 620L, 1_500_000_000_000L)));
+        assertThat(member.entry().getCrc(), is(620L));
+        assertTrue(SolidGroups.fromText("").isEmpty());
+    }
+}
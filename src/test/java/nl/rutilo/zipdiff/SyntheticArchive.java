@@ -0,0 +1,121 @@
+package nl.rutilo.zipdiff;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Generator of reproducible archives for scaling tests. The same seed and settings always give the same
+  * archives, while the data of each entry is generated on the fly so archives of millions of entries
+  * don't need to be kept in memory.
+  * Entry sizes follow a log-normal distribution around the median size (capped at the max size),
+  * compressibility is the fraction of each entry that is repetitive text instead of random bytes and
+  * a fraction of the entries are nested jars. The changed version of the archive has a fraction of
+  * the entries replaced and some added and removed (each half the change ratio).
+  * Archives are written with the zip support of the JDK, so the code under test doesn't produce its own input.
+  */
+public class SyntheticArchive {
+    private static final long ENTRY_TIME = 1_577_836_800_000L; // 2020-01-01, not the current time, so archives are reproducible
+    private static final String[] WORDS = { "zip", "diff", "patch", "entry", "central", "directory", "header", "deflate", "crc", "version" };
+    private long seed = 1;
+    private int entryCount = 1000;
+    private int medianSize = 2048;
+    private int maxSize = 1024 * 1024;
+    private double compressibility = 0.7;
+    private double nestedJarRatio = 0.02;
+    private int headerStubSize = 0;
+    private double changeRatio = 0.05;
+
+    public SyntheticArchive setSeed(long seed) { this.seed = seed; return this; }
+    public SyntheticArchive setEntryCount(int count) { entryCount = count; return this; }
+    public SyntheticArchive setSizes(int median, int max) { medianSize = median; maxSize = max; return this; }
+    public SyntheticArchive setCompressibility(double ratio) { compressibility = ratio; return this; }
+    public SyntheticArchive setNestedJarRatio(double ratio) { nestedJarRatio = ratio; return this; }
+    public SyntheticArchive setHeaderStubSize(int size) { headerStubSize = size; return this; }
+    public SyntheticArchive setChangeRatio(double ratio) { changeRatio = ratio; return this; }
+
+    public int getEntryCount() { return entryCount; }
+
+    public void writeBase(File file) throws IOException { write(file, /*changed:*/false); }
+    public void writeChanged(File file) throws IOException { write(file, /*changed:*/true); }
+
+    private void write(File file, boolean changed) throws IOException {
+        Files.deleteIfExists(file.toPath());
+        try(final FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(headerStubOf(changed));
+        }
+        try(final ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file, /*append:*/true)))) {
+            for(int i=0; i<entryCount; i++) {
+                final double change = randomOf(i, -1).nextDouble();
+                final boolean isRemoved  = change < changeRatio / 2;
+                final boolean isAdded    = change >= changeRatio / 2 && change < changeRatio;
+                final boolean isReplaced = change >= changeRatio && change < changeRatio * 2;
+                if(changed ? isRemoved : isAdded) continue;
+                final int version = changed && isReplaced ? 2 : 1;
+                zos.putNextEntry(entryOf(nameOf(i)));
+                zos.write(dataOf(i, version));
+                zos.closeEntry();
+            }
+        }
+    }
+
+    private static ZipEntry entryOf(String name) {
+        final ZipEntry entry = new ZipEntry(name);
+        entry.setTime(ENTRY_TIME);
+        return entry;
+    }
+
+    private byte[] headerStubOf(boolean changed) {
+        final byte[] stub = new byte[headerStubSize];
+        randomOf(-1, changed ? 2 : 1).nextBytes(stub);
+        return stub;
+    }
+
+    private String nameOf(int i) {
+        final String dir = "dir" + (i % 97) + "/sub" + (i % 13) + "/";
+        return isNestedJar(i) ? dir + "nested" + i + ".jar" : dir + "entry" + i + ".bin";
+    }
+    private boolean isNestedJar(int i) {
+        return randomOf(i, -2).nextDouble() < nestedJarRatio;
+    }
+
+    private byte[] dataOf(int i, int version) throws IOException {
+        final Random random = randomOf(i, version);
+        final int size = (int)Math.max(1, Math.min(maxSize, Math.round(medianSize * Math.exp(random.nextGaussian()))));
+        if(!isNestedJar(i)) return contentOf(random, size);
+
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        try(final ZipOutputStream jar = new ZipOutputStream(bout)) {
+            final int count = 1 + random.nextInt(8);
+            for(int j=0; j<count; j++) {
+                jar.putNextEntry(entryOf("nested/Class" + j + ".class"));
+                jar.write(contentOf(random, Math.max(1, size / count)));
+                jar.closeEntry();
+            }
+        }
+        return bout.toByteArray();
+    }
+    private byte[] contentOf(Random random, int size) {
+        final byte[] data = new byte[size];
+        final int textSize = (int)(size * compressibility);
+        for(int pos = 0; pos < textSize; ) {
+            final String word = WORDS[random.nextInt(WORDS.length)];
+            for(int c=0; c<word.length() && pos < textSize; c++) data[pos++] = (byte)word.charAt(c);
+            if(pos < textSize) data[pos++] = ' ';
+        }
+        final byte[] noise = new byte[size - textSize];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, data, textSize, noise.length);
+        return data;
+    }
+
+    /** Random that only depends on the seed, entry index and version, so entries can be generated in any order */
+    private Random randomOf(int i, int version) {
+        return new Random(seed * 0x9E3779B97F4A7C15L + i * 0xBF58476D1CE4E5B9L + version);
+    }
+}
@@ -1,15 +1,23 @@
 package nl.rutilo.zipdiff;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
 import java.util.List;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -41,6 +49,52 @@ public class TestUtils {
         }
     }
 
+    /** Creates a zip64 file that starts with a stored entry named "large" of given size holding only zeros,
+      * which are not written so the file is sparse (on file systems that support it), followed by
+      * given entries with content being the path:version.
+      */
+    public static void createSparseZip64File(File file, long largeSize, List<TestEntry> entries) throws IOException {
+        final byte[] name = "large".getBytes();
+        final long dataStart = ZipIndex.LOCAL_HEADER_SIZE + name.length + 20L;
+        try(final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final ByteBuffer lh = ByteBuffer.allocate((int)dataStart).order(ByteOrder.LITTLE_ENDIAN);
+            lh.putInt(ZipIndex.SIG_LOCAL_HEADER).putShort((short)45).putShort((short)0).putShort((short)ZipEntry.STORED)
+              .putInt(0x21 << 16).putInt((int)crcOfZeros(largeSize)).putInt(-1).putInt(-1)
+              .putShort((short)name.length).putShort((short)20).put(name)
+              .putShort((short)ZipIndex.ZIP64_EXTRA_ID).putShort((short)16).putLong(largeSize).putLong(largeSize);
+            raf.setLength(0);
+            raf.write(lh.array());
+            raf.setLength(dataStart + largeSize);
+        }
+        try(final ZipWriter writer = ZipWriter.resume(file, 0, dataStart + largeSize, i -> null)) {
+            for(final TestEntry entry : entries) {
+                writer.writeEntry(new ZipEntry(entry.name), new ByteArrayInputStream((entry.name + ":" + entry.version).getBytes()));
+            }
+        }
+    }
+    public static long crcOfZeros(long size) {
+        final CRC32 crc = new CRC32();
+        final byte[] zeros = new byte[1024 * 1024];
+        for(long remaining = size; remaining > 0; remaining -= zeros.length) crc.update(zeros, 0, (int)Math.min(zeros.length, remaining));
+        return crc.getValue();
+    }
+
+    /** Creates directory containing given filenames with content being the path:version */
+    public static void createDirectory(File dir, List<TestEntry> entries) throws IOException {
+        deleteDirectory(dir);
+        for (final TestEntry entry : entries) {
+            final File file = new File(dir, entry.name);
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), (entry.name + ":" + entry.version).getBytes());
+        }
+    }
+    public static void deleteDirectory(File dir) throws IOException {
+        if(!dir.exists()) return;
+        try(final Stream<Path> paths = Files.walk(dir.toPath())) {
+            for(final Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) Files.delete(path);
+        }
+    }
+
     public static class TestEntry {
         final String name;
         final int version;
@@ -0,0 +1,126 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
+
+public class ZipDiffServerTest {
+    private File fileOld;
+    private File fileNew;
+    private ZipDiffServer server;
+
+    @Before
+    public void setup() throws IOException {
+        fileOld = File.createTempFile("test-old", ".zip");
+        fileNew = File.createTempFile("test-new", ".zip");
+        TestUtils.createZipFile(fileOld, ZipPatcherTest.entriesOld);
+        TestUtils.createZipFile(fileNew, ZipPatcherTest.entriesNew);
+
+        server = new ZipDiffServer(0);
+        final Thread serving = new Thread(() -> {
+            try {
+                server.serve();
+            } catch(final IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        serving.setDaemon(true);
+        serving.start();
+    }
+    @After
+    public void teardown() throws IOException {
+        server.close();
+        Files.delete(fileOld.toPath());
+        Files.delete(fileNew.toPath());
+    }
+
+    private String[] runOnServer(String... args) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        final ByteArrayOutputStream berr = new ByteArrayOutputStream();
+        ZipDiffServer.runOnServer(server.getPort(), Arrays.asList(args), new PrintStream(bout), new PrintStream(berr));
+        return new String[] { ZipUtil.asString(bout.toByteArray()), ZipUtil.asString(berr.toByteArray()) };
+    }
+
+    @Test
+    public void testListDiffOnServer() throws IOException {
+        final String[] output = runOnServer("-f", fileOld.getAbsolutePath(), "-c", fileNew.getAbsolutePath());
+        assertThat(output[0], containsString("Changes from"));
+        assertThat(output[0], containsString("Added "));
+        assertThat(output[1], is(""));
+    }
+
+    @Test
+    public void testErrorsAreReturned() throws IOException {
+        assertThat(runOnServer("-f", fileOld.getAbsolutePath())[1], containsString("Command ERROR"));
+        assertThat(runOnServer("--serve", "1234")[1], containsString("Command ERROR"));
+    }
+
+    @Test
+    public void testClientsWithoutTokenAreRejected() throws IOException {
+        final File tokenFile = ZipDiffServer.tokenFileOf(server.getPort());
+        assertThat(tokenFile, is(server.getTokenFile()));
+        if(FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile.toPath())), is("rw-------"));
+        }
+        final File target = new File(fileOld.getAbsolutePath() + ".patch");
+        try(final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+            final DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeUTF("wrong token");
+            out.writeInt(6);
+            for(final String arg : new String[] { "-f", fileOld.getAbsolutePath(), "-c", fileNew.getAbsolutePath(), "-g", target.getAbsolutePath() }) out.writeUTF(arg);
+            out.flush();
+            assertThat(socket.getInputStream().read(), is(-1));
+        }
+        assertFalse(target.exists());
+
+        server.close();
+        assertFalse("token file deleted", tokenFile.exists());
+    }
+
+    @Test
+    public void testConcurrentPatches() throws Exception {
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".zpatch");
+        new ZipPatcher(fileOld).generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<File> patched = new ArrayList<>();
+        try {
+            final List<Future<String[]>> results = new ArrayList<>();
+            for(int i=0; i<8; i++) {
+                final File target = new File(fileOld.getAbsolutePath() + "." + i + ".zip");
+                patched.add(target);
+                results.add(executor.submit(() -> runOnServer("-f", fileOld.getAbsolutePath(), "-p", patchFile.getAbsolutePath(), "-t", target.getAbsolutePath(), "-v")));
+            }
+            for(int i=0; i<results.size(); i++) {
+                assertThat(results.get(i).get()[0], containsString("Patched"));
+                final ZipPatcher.Changes changes = new ZipPatcher(patched.get(i)).getChangesTo(new ZipPatcher(fileNew));
+                assertThat(changes.added.isEmpty() && changes.removed.isEmpty() && changes.replaced.isEmpty(), is(true));
+            }
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(patchFile.toPath());
+            for(final File file : patched) Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -5,7 +5,9 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -115,6 +117,53 @@ public class ZipDiffTest {
             assertThat(out, containsString("Added 6"));
         });
     }
+    @Test public void testListDiffAsJsonLines() {
+        runTest(() -> ZipDiff.main(
+            "--base-file",    nameOfZipA,
+            "--compare-with", nameOfZipB,
+            "--format",       "jsonl"
+        )).get((out, err) -> {
+            assertTrue(err.isEmpty());
+            final String[] lines = out.trim().split("\n");
+            assertThat(lines.length, is(6 + 2 + 4));
+            assertThat(out, containsString("{\"change\":\"added\",\"name\":\"fileD\",\"oldCrc\":null,\"newCrc\":"));
+            assertThat(out, containsString("{\"change\":\"removed\",\"name\":\"fileB\","));
+            assertTrue(lines[lines.length - 1].matches("^\\{\"change\":\"removed\".*,\"estimatedPatchBytes\":\\d+}$"));
+        });
+    }
+    @Test public void testPlanPatch() {
+        runTest(() -> ZipDiff.main(
+            "--base-file",    nameOfZipA,
+            "--compare-with", nameOfZipB,
+            "--plan", "--verbose"
+        )).get((out, err) -> {
+            assertTrue(err.isEmpty());
+            assertThat(out, containsString(" - fileD: whole "));
+            assertThat(out, containsString("Whole: 8 entries"));
+            assertThat(out, containsString("Estimated patch size is "));
+        });
+    }
+    @Test public void testListDiffAsBinary() throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ZipDiff.run(new PrintStream(bout), System.err, /*onServer:*/false, "-f", nameOfZipA, "-c", nameOfZipB, "-F", "binary"); // NOSONAR: Test error output
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        assertThat(in.readInt(), is(DiffFormat.BINARY_MAGIC));
+        final int[] counts = new int[5];
+        for(int type; (type = in.readByte()) != 0; ) {
+            counts[type]++;
+            final byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            final long[] values = new long[7];
+            for(int i=0; i<values.length; i++) values[i] = in.readLong();
+            if(type == 2) assertThat(values[0], is(-1L)); // added has no old crc
+            assertTrue(values[6] > 0);
+        }
+        assertThat(counts[2], is(6));
+        assertThat(counts[3], is(2));
+        assertThat(counts[4], is(4));
+        assertThat(in.available(), is(0));
+    }
     @Test public void testListDiffVerbose() {
         runTest(() -> ZipDiff.main(
             "-v",
@@ -222,6 +271,86 @@ public class ZipDiffTest {
             assertTrue(err.isEmpty());
         });
     }
+    @Test public void testPatchDryRun() throws IOException {
+        testGeneratePatch(); // creates patch file
+
+        runTest(() -> ZipDiff.main(
+            "--base-file",  nameOfZipA,
+            "--patch-with", nameOfPatch,
+            "--dry-run"
+        )).get((out, err) -> {
+            assertTrue(err.isEmpty());
+            assertThat(out, containsString("matches"));
+            assertFalse(new File(nameOfZipAB).exists());
+        });
+
+        // change patch file so the crc check will trigger
+        ZipUtil.updateZip(new File(nameOfPatch), Collections.singletonMap("dummy", ZipUtil.toBytes("dummy")));
+
+        runTest(() -> ZipDiff.main(
+            "--base-file",  nameOfZipA,
+            "--patch-with", nameOfPatch,
+            "--dry-run"
+        )).get((out, err) -> {
+            assertThat(err, containsString("does not match"));
+        });
+    }
+    @Test public void testVerify() throws IOException {
+        runTest(() -> ZipDiff.main(
+            "--base-file", nameOfZipA,
+            "--verify"
+        )).get((out, err) -> {
+            assertTrue(err.isEmpty());
+            assertThat(out, containsString("is valid"));
+        });
+
+        // damage the data of an entry
+        Files.copy(new File(nameOfZipA).toPath(), new File(nameOfZipAB).toPath());
+        final ZipIndex.Entry damaged = ZipIndex.of(new File(nameOfZipAB)).entriesInFileOrder().get(2);
+        try(final java.io.RandomAccessFile raf = new java.io.RandomAccessFile(nameOfZipAB, "rw")) {
+            final long pos = ZipIndex.dataOffsetOf(raf.getChannel(), damaged);
+            raf.seek(pos);
+            final int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0x55);
+        }
+        runTest(() -> ZipDiff.main(
+            "--base-file", nameOfZipAB,
+            "--verify"
+        )).get((out, err) -> {
+            assertThat(err, containsString("1 corrupt entries"));
+            assertThat(err, containsString(damaged.getName()));
+        });
+    }
+    @Test public void testStore() throws IOException {
+        final File storeDir = Files.createTempDirectory("test-store").toFile();
+        try {
+            runTest(() -> ZipDiff.main("--base-file", nameOfZipA, "--store", storeDir.getPath(), "--ingest", "1.0")).get((out, err) -> {
+                assertTrue(err.isEmpty());
+                assertTrue(out.isEmpty());
+            });
+            runTest(() -> ZipDiff.main("--base-file", nameOfZipB, "--store", storeDir.getPath(), "--ingest", "1.1", "--verbose")).get((out, err) -> {
+                assertTrue(err.isEmpty());
+                assertThat(out, containsString("Ingested " + nameOfZipB + " as "));
+            });
+            final BlobStore store = new BlobStore(storeDir);
+            final String version10 = store.versionFileOf("1.0").getPath();
+            final String version11 = store.versionFileOf("1.1").getPath();
+            runTest(() -> ZipDiff.main("--base-file", version10, "--compare-with", version11, "--generate-patch", nameOfPatch)).get((out, err) -> {
+                assertTrue(err.isEmpty());
+                assertTrue(new File(nameOfPatch).exists());
+            });
+            runTest(() -> ZipDiff.main("--store", storeDir.getPath(), "--retire", "1.0", "-v")).get((out, err) -> {
+                assertTrue(err.isEmpty());
+                assertThat(out, containsString("Retired 1.0, deleting 6 unused blobs"));
+            });
+            runTest(() -> ZipDiff.main("--store", storeDir.getPath(), "--retire", "1.0")).get((out, err) -> assertThat(err, containsString("No version 1.0")));
+            runTest(() -> ZipDiff.main("--store", storeDir.getPath(), "--retire", "../../x")).get((out, err) -> assertThat(err, containsString("Invalid version name")));
+        } finally {
+            TestUtils.deleteDirectory(storeDir);
+        }
+    }
+
     @Test public void testPatchNoPatchTo() {
         testGeneratePatch(); // creates patch file
 
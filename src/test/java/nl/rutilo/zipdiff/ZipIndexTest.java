@@ -0,0 +1,137 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import static nl.rutilo.zipdiff.ZipUtil.toBytes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ZipIndexTest {
+
+    @Test
+    public void testIndexOfZipWithHeader() throws IOException {
+        final byte[] headerData = toBytes("Testing header before zip contents");
+        final File file = File.createTempFile("test-file", ".zip");
+        try {
+            TestUtils.createZipFile(file, headerData, ZipPatcherTest.entriesOld);
+
+            final ZipIndex index = ZipIndex.of(file);
+            assertThat(index.zipStart, is((long)headerData.length));
+            assertThat(index.readHeaderData(), is(headerData));
+            assertThat(index.entries.size(), is(ZipPatcherTest.entriesOld.size()));
+
+            final Map<String,byte[]> data = new ZipPatcher(file).readFully();
+            for(final ZipIndex.Entry entry : index.entries) {
+                try(final InputStream in = index.openEntry(entry)) {
+                    assertThat(entry.getName(), ZipUtil.exhaust(in), is(data.get(entry.getName())));
+                }
+                assertThat(entry.size, is((long)data.get(entry.getName()).length));
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testIndexOfSparseZip64() throws IOException {
+        final long largeSize = ZipIndex.ZIP64_MAGIC + 1024 * 1024;
+        final File file = File.createTempFile("test-zip64", ".zip");
+        try {
+            TestUtils.createSparseZip64File(file, largeSize, ZipPatcherTest.entriesOld);
+
+            final ZipIndex index = ZipIndex.of(file);
+            assertThat(index.entries.size(), is(ZipPatcherTest.entriesOld.size() + 1));
+            assertThat(index.entries.get(0).getName(), is("large"));
+            assertThat(index.entries.get(0).size, is(largeSize));
+            assertThat(index.entries.get(0).compressedSize, is(largeSize));
+            try(final ZipFile zip = new ZipFile(file)) {
+                assertThat(zip.getEntry("large").getSize(), is(largeSize));
+                for(final ZipIndex.Entry entry : index.entries.subList(1, index.entries.size())) {
+                    assertThat(entry.localHeaderOffset > largeSize, is(true));
+                    try(final InputStream in = index.openEntry(entry)) {
+                        assertThat(entry.getName(), ZipUtil.exhaust(in), is(ZipUtil.exhaust(zip.getInputStream(zip.getEntry(entry.getName())))));
+                    }
+                }
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testCachedOf() throws IOException {
+        final File file = File.createTempFile("test-file", ".zip");
+        try {
+            TestUtils.createZipFile(file, ZipPatcherTest.entriesOld);
+            assertThat(ZipIndex.cachedOf(file) == ZipIndex.cachedOf(file), is(false)); // caching is disabled by default
+
+            ZipIndex.setCacheSize(1);
+            final ZipIndex index = ZipIndex.cachedOf(file);
+            assertThat(ZipIndex.cachedOf(file) == index, is(true));
+
+            TestUtils.createZipFile(file, ZipPatcherTest.entriesNew);
+            final ZipIndex changed = ZipIndex.cachedOf(file);
+            assertThat(changed == index, is(false));
+            assertThat(changed.entries.size(), is(ZipPatcherTest.entriesNew.size()));
+        } finally {
+            ZipIndex.setCacheSize(0);
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        final File file = File.createTempFile("test-file", ".bin");
+        try {
+            final byte[] data = new byte[3 * ZipIndex.ReadAheadInputStream.CHUNK_SIZE + 123];
+            for(int i=0; i<data.length; i++) data[i] = (byte)(i * 31);
+            Files.write(file.toPath(), data);
+            for(final int readAhead : new int[] { 1, 2, 8 }) {
+                try(final AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    final InputStream in = new ZipIndex.ReadAheadInputStream(channel, 10, data.length - 20L, readAhead, /*closeChannel:*/false)) {
+                    assertThat(ZipUtil.exhaust(in), is(Arrays.copyOfRange(data, 10, data.length - 10)));
+                }
+            }
+            try(final InputStream in = new ZipIndex.ReadAheadInputStream(AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ), 0, data.length, 2, /*closeChannel:*/true)) {
+                assertThat(in.read(), is(0)); // closed while reads are outstanding
+            }
+
+            final File zipFile = File.createTempFile("test-file", ".zip");
+            TestUtils.createZipFile(zipFile, ZipPatcherTest.entriesOld);
+            try(final AsynchronousFileChannel channel = AsynchronousFileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+                final ZipIndex index = ZipIndex.of(zipFile);
+                final Map<String,byte[]> expected = new ZipPatcher(zipFile).readFully();
+                for(final ZipIndex.Entry entry : index.entries) {
+                    try(final InputStream in = ZipIndex.openEntry(channel, entry, 2, /*closeChannel:*/false)) {
+                        assertThat(ZipUtil.exhaust(in), is(expected.get(entry.getName())));
+                    }
+                }
+            } finally {
+                Files.delete(zipFile.toPath());
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testIndexOfInvalidFile() throws IOException {
+        final File file = File.createTempFile("test", ".zip");
+        try {
+            Files.write(file.toPath(), toBytes("not a zip"));
+            ZipIndex.of(file);
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+}
@@ -5,21 +5,40 @@ import nl.rutilo.zipdiff.TestUtils.ThrowingBiConsumer;
 import nl.rutilo.zipdiff.TestUtils.ThrowingConsumer;
 import nl.rutilo.zipdiff.TestUtils.ThrowingTriConsumer;
 import org.junit.After;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import static nl.rutilo.zipdiff.ZipUtil.asString;
 import static nl.rutilo.zipdiff.ZipUtil.toBytes;
 import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -118,6 +137,707 @@ public class ZipPatcherTest {
         assertThat(patcher.readFully().size(), is(entriesOld.size()));
     }
 
+    @Test public void testDirectoryChanges() throws IOException {
+        final File dirOld = Files.createTempDirectory("test-old").toFile();
+        final File dirNew = Files.createTempDirectory("test-new").toFile();
+        try {
+            TestUtils.createDirectory(dirOld, entriesOld);
+            TestUtils.createDirectory(dirNew, entriesNew);
+
+            for(final File[] oldNew : new File[][] { { fileOld, dirNew }, { dirOld, fileNew }, { dirOld, dirNew } }) {
+                final ZipPatcher.Changes changes = new ZipPatcher(oldNew[0]).getChangesTo(new ZipPatcher(oldNew[1]));
+                assertThat("Additions",    changes.added   .size(), is(6));
+                assertThat("Removals",     changes.removed .size(), is(4));
+                assertThat("Replacements", changes.replaced.size(), is(2));
+                assertThat(changes.newHeaderData, is(ZipPatcher.CODE_HEADER_NOCHANGE));
+            }
+            assertTrue(new ZipPatcher(dirNew).getChangesTo(new ZipPatcher(fileNew)).replaced.isEmpty());
+
+            // a zip with explicit directory entries is the same as its extracted directory
+            try(final ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(fileOld))) {
+                for(final String dir : new String[] { "dirA/", "dirA/dirAA/", "dirA/dirAB/", "dirB/" }) zipOut.putNextEntry(new ZipEntry(dir));
+                for(final TestEntry entry : entriesOld) {
+                    zipOut.putNextEntry(new ZipEntry(entry.name));
+                    zipOut.write(toBytes(entry.name + ":" + entry.version));
+                }
+            }
+            for(final ZipPatcher.Changes changes : Arrays.asList(new ZipPatcher(fileOld).getChangesTo(new ZipPatcher(dirOld)),
+                                                                 new ZipPatcher(dirOld).getChangesTo(new ZipPatcher(fileOld)))) {
+                assertTrue(changes.added.isEmpty());
+                assertTrue(changes.removed.isEmpty());
+                assertTrue(changes.replaced.isEmpty());
+            }
+        } finally {
+            TestUtils.deleteDirectory(dirOld);
+            TestUtils.deleteDirectory(dirNew);
+        }
+    }
+    @Test public void testFilteredPatch() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final File baseDir     = new File(fileOld.getAbsolutePath() + ".dir");
+        final EntryFilter filter = new EntryFilter(Collections.singletonList("dirA/**"), Collections.singletonList("dirA/dirAB/**"));
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld, filter);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew, filter);
+            final ZipPatcher.Changes changes = zipOld.getChangesTo(zipNew);
+            assertThat(changes.added,    is(new HashSet<>(Arrays.asList("dirA/fileAC.txt", "dirA/dirAA/fileAAC.txt", "dirA/dirAC/fileACA.txt", "dirA/dirAC/fileACB.txt"))));
+            assertThat(changes.removed,  is(new HashSet<>(Arrays.asList("dirA/fileAB.txt", "dirA/dirAA/fileAAB.txt"))));
+            assertThat(changes.replaced, is(Collections.<String>emptySet()));
+
+            zipOld.generatePatchFileTo(zipNew, patchFile);
+            final ZipPatcher base = new ZipPatcher(fileOld);
+            assertThat(base.verifyPatch(patchFile), is(true));
+            base.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            final Map<String,byte[]> patched = new ZipPatcher(patchedFile).readFully();
+            assertThat(patched.get("fileB"), is(toBytes("fileB:1")));                                   // excluded, kept from base
+            assertThat(patched.get("dirA/dirAB/fileABA.txt"), is(toBytes("dirA/dirAB/fileABA.txt:1"))); // excluded, kept from base
+            assertThat(patched.containsKey("dirA/fileAB.txt"), is(false));                              // removed
+            assertThat(patched.get("dirA/fileAC.txt"), is(toBytes("dirA/fileAC.txt:1")));               // added
+
+            // a filtered directory base also keeps its excluded files
+            TestUtils.createDirectory(baseDir, entriesOld);
+            new ZipPatcher(baseDir, filter).patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            assertThat(new ZipPatcher(patchedFile).readFully().keySet(), is(patched.keySet()));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+            TestUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @Test public void testDifferentlyFilteredPatch() throws IOException {
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        final ZipPatcher zipOld = new ZipPatcher(fileOld, new EntryFilter(Collections.singletonList("dirA/**"), Collections.<String>emptyList()));
+        final ZipPatcher zipNew = new ZipPatcher(fileNew, new EntryFilter(Collections.singletonList("dirB/**"), Collections.<String>emptyList()));
+        try {
+            zipOld.generatePatchFileTo(zipNew, patchFile);
+            fail("Expected IOException");
+        } catch(final IOException e) {
+            assertThat(e.getMessage(), containsString("filtered differently"));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+
+        // the same filter on both sides is fine
+        final EntryFilter filter = new EntryFilter(Collections.singletonList("dirA/**"), Collections.<String>emptyList());
+        try {
+            new ZipPatcher(fileOld, filter).generatePatchFileTo(new ZipPatcher(fileNew, filter), patchFile);
+            assertThat(new ZipPatcher(fileOld).verifyPatch(patchFile), is(true));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testPatchDirectories() throws IOException {
+        final File dirOld      = Files.createTempDirectory("test-old").toFile();
+        final File dirNew      = Files.createTempDirectory("test-new").toFile();
+        final File patchFile   = new File(dirOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(dirOld.getAbsolutePath() + ".patched");
+        try {
+            TestUtils.createDirectory(dirOld, entriesOld);
+            TestUtils.createDirectory(dirNew, entriesNew);
+
+            final ZipPatcher zipOld = new ZipPatcher(dirOld);
+            zipOld.generatePatchFileTo(new ZipPatcher(dirNew), patchFile);
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            final ZipPatcher zipPatched = new ZipPatcher(patchedFile);
+            final ZipPatcher.Changes changes = zipPatched.getChangesTo(new ZipPatcher(fileNew));
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+            assertThat(zipPatched.readFully().get("fileC"), is(toBytes("fileC:2")));
+        } finally {
+            TestUtils.deleteDirectory(dirOld);
+            TestUtils.deleteDirectory(dirNew);
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testPatchInPlace() throws IOException {
+        final File dir       = Files.createTempDirectory("test-dir").toFile();
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        try {
+            TestUtils.createDirectory(dir, entriesOld);
+            final File untouched = new File(dir, "fileA");
+            untouched.setLastModified(1_000_000_000L);
+
+            new ZipPatcher(fileOld).generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+            ZipPatcher.patchInPlace(patchFile, dir, /*ignoreValidation:*/false);
+
+            final ZipPatcher.Changes changes = new ZipPatcher(dir).getChangesTo(new ZipPatcher(fileNew));
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+            assertThat(untouched.lastModified(), is(1_000_000_000L));
+            assertFalse("removed file deleted", new File(dir, "fileB").exists());
+        } finally {
+            TestUtils.deleteDirectory(dir);
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testCopiedEntriesAreNotInflated() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+
+            Pools.resetStats();
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/true);
+            final Pools.Stats unvalidated = Pools.getStats();
+            Pools.resetStats();
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            final Pools.Stats validated = Pools.getStats();
+
+            // validation does not inflate the 4 unchanged entries that are copied from the base
+            assertThat(validated.inflaterHits + validated.inflaterMisses, is(unvalidated.inflaterHits + unvalidated.inflaterMisses));
+            final ZipPatcher.Changes changes = new ZipPatcher(patchedFile).getChangesTo(new ZipPatcher(fileNew));
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testVerifyPatch() throws IOException {
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+
+            assertTrue(zipOld.verifyPatch(patchFile));
+            assertTrue("patching the target gives the target", new ZipPatcher(fileNew).verifyPatch(patchFile));
+
+            ZipUtil.updateZip(fileNew, Collections.singletonMap("fileA", toBytes("other")), "fileA");
+            assertFalse(new ZipPatcher(fileNew).verifyPatch(patchFile));
+
+            ZipUtil.updateZip(patchFile, Collections.singletonMap("dummy", toBytes("dummy")));
+            assertFalse(zipOld.verifyPatch(patchFile));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testPatchResumesFromCheckpoint() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final File journalFile = PatchJournal.fileFor(patchedFile);
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld).setCheckpointInterval(2, Long.MAX_VALUE);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+
+            // interrupt the patch after 5 entries -- the last checkpoint is after 4 entries
+            zipOld.setProgressListener((name, count) -> { if(count == 5) throw new IllegalStateException("interrupted"); });
+            try {
+                zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+                fail("Expected interruption");
+            } catch(final IllegalStateException expected) {
+                // expected
+            }
+            assertTrue(journalFile.exists());
+
+            final int[] firstCount = { -1 };
+            zipOld.setProgressListener((name, count) -> { if(firstCount[0] < 0) firstCount[0] = count; });
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            assertThat("resumed after checkpoint", firstCount[0], is(5));
+            assertFalse(journalFile.exists());
+            final ZipPatcher.Changes changes = new ZipPatcher(patchedFile).getChangesTo(new ZipPatcher(fileNew));
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+            Files.deleteIfExists(journalFile.toPath());
+        }
+    }
+
+    @Test public void testPipelinedPatchIsSameAsSequential() throws IOException {
+        final File patchFile      = new File(fileOld.getAbsolutePath() + ".patch");
+        final File sequentialFile = new File(fileOld.getAbsolutePath() + ".sequential");
+        final File patchedFile    = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld).setQueueDepths(0, 1);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+            final byte[] sequentialPatch = Files.readAllBytes(patchFile.toPath());
+            zipOld.patchTo(patchFile, sequentialFile, /*ignoreValidation:*/false);
+
+            zipOld.setQueueDepths(3, 2).generatePatchFileTo(new ZipPatcher(fileNew), patchFile);
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            assertThat(Files.readAllBytes(patchedFile.toPath()), is(Files.readAllBytes(sequentialFile.toPath())));
+            assertThat(sequentialPatch.length, is((int)patchFile.length()));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(sequentialFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testExactPatch() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            // target with other compression levels, a stored entry and a zip comment
+            try(final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(fileNew))) {
+                int level = 0;
+                for(final TestEntry entry : entriesNew) {
+                    zos.setLevel(level++ % 10);
+                    zos.putNextEntry(new ZipEntry(entry.name));
+                    zos.write(toBytes(entry.name + ":" + entry.version));
+                }
+                zos.setComment("comment");
+            }
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), patchFile, new PatchOptions().setExact(true));
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            assertThat(Files.readAllBytes(patchedFile.toPath()), is(Files.readAllBytes(fileNew.toPath())));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testExactPatchOfUnreproducibleEntry() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            final StringBuilder sb = new StringBuilder();
+            for(int i=0; i<2000; i++) sb.append("line ").append(i % 100).append('\n');
+            final byte[] same = toBytes(sb.toString());
+            try(final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(fileOld))) {
+                zos.putNextEntry(new ZipEntry("same"));
+                zos.write(same);
+                zos.putNextEntry(new ZipEntry("changed"));
+                zos.write(toBytes("changed:1"));
+            }
+            // no compression level reproduces data deflated with another strategy
+            final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, /*nowrap:*/true);
+            deflater.setStrategy(Deflater.HUFFMAN_ONLY);
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+            try(final DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater)) { out.write(same); }
+            deflater.end();
+            final CRC32 crc = new CRC32();
+            crc.update(same);
+            try(final ZipWriter out = new ZipWriter(fileNew, new byte[0])) {
+                out.writeCompressed(new ZipEntry("same"), crc.getValue(), same.length, deflated);
+                out.writeEntry(new ZipEntry("changed"), new ByteArrayInputStream(toBytes("changed:2")));
+            }
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), patchFile, new PatchOptions().setExact(true));
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            assertThat(Files.readAllBytes(patchedFile.toPath()), is(Files.readAllBytes(fileNew.toPath())));
+
+            // the compressed data is in the patch as entry, not as literal in the layout
+            final ZipIndex patchIndex = ZipIndex.of(patchFile);
+            ZipIndex.Entry layout = null;
+            ZipIndex.Entry raw = null;
+            for(final ZipIndex.Entry entry : patchIndex.entries) {
+                if(entry.getName().equals(ZipPatcher.LAYOUT_FILENAME)) layout = entry;
+                if(entry.getName().equals(ExactLayout.rawNameOf("same"))) raw = entry;
+            }
+            assertTrue("raw entry in patch", raw != null);
+            assertThat(raw.compressedSize, is((long)deflated.size()));
+            assertTrue("layout has no compressed data", layout.size < deflated.size());
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testShardedPatch() throws IOException {
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final File baseDir     = new File(fileOld.getAbsolutePath() + ".dir");
+        final int shards = 3;
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            zipOld.generatePatchFileTo(new ZipPatcher(fileNew), zipOld.getChangesTo(new ZipPatcher(fileNew)), patchFile, new PatchOptions().setShards(shards));
+
+            int entriesInShards = 0;
+            for(int i=1; i<=shards; i++) entriesInShards += ZipIndex.of(PatchShards.shardFile(patchFile, i)).entries.size();
+            assertThat(entriesInShards, is(8));
+            assertThat(ZipIndex.of(patchFile).entries.size(), is(3)); // removals, shards, expected crc
+
+            assertThat(zipOld.verifyPatch(patchFile), is(true));
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            final ZipPatcher.Changes changes = new ZipPatcher(patchedFile).getChangesTo(new ZipPatcher(fileNew));
+            assertTrue(changes.added.isEmpty() && changes.removed.isEmpty() && changes.replaced.isEmpty());
+
+            TestUtils.createDirectory(baseDir, entriesOld);
+            ZipPatcher.patchInPlace(patchFile, baseDir, /*ignoreValidation:*/false);
+            final ZipPatcher.Changes dirChanges = new ZipPatcher(baseDir).getChangesTo(new ZipPatcher(fileNew));
+            assertTrue(dirChanges.added.isEmpty() && dirChanges.removed.isEmpty() && dirChanges.replaced.isEmpty());
+
+            // a corrupt shard is named, so only that shard has to be fetched again
+            final File corrupt = PatchShards.shardFile(patchFile, 2);
+            final byte[] data = Files.readAllBytes(corrupt.toPath());
+            data[data.length / 2] ^= 1;
+            Files.write(corrupt.toPath(), data);
+            try {
+                zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+                fail("Patching with a corrupt shard should fail");
+            } catch(final IOException e) {
+                assertThat(e.getMessage(), containsString(corrupt.getName() + " (corrupt)"));
+                assertFalse(e.getMessage().contains(PatchShards.shardFile(patchFile, 1).getName()));
+            }
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+            for(int i=1; i<=shards; i++) Files.deleteIfExists(PatchShards.shardFile(patchFile, i).toPath());
+            TestUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    @Test public void testDictionaryPatch() throws IOException {
+        final String oldText = randomXml(500);
+        final String newText = oldText.replace("id=\"12", "id=\"+12"); // a few small edits
+        ZipUtil.updateZip(fileOld, Collections.<String,Object>singletonMap("text.xml", toBytes(oldText)));
+        ZipUtil.updateZip(fileNew, Collections.<String,Object>singletonMap("text.xml", toBytes(newText)));
+
+        final Map<String,byte[]> patch = assertSmallerAndApplies(new PatchOptions(), new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE), 2.0 / 3,
+            Collections.singletonMap("text.xml", toBytes(oldText)), null);
+        assertThat(asString(patch.get(ZipPatcher.DICTIONARY_ENTRIES_FILENAME)), containsString("text.xml\t"));
+    }
+
+    /** Generates a patch from fileOld to fileNew with given options, which should be smaller than maxRatio of the
+      * patch with plainOptions, and applies it: to fileOld (after verifying it) and in place to a directory with
+      * entriesOld and given base files, which dirChecker (when not null) can check further. Both results should
+      * have the entries of fileNew. Returns the entries of the patch.
+      */
+    private Map<String,byte[]> assertSmallerAndApplies(PatchOptions plainOptions, PatchOptions options, double maxRatio,
+                                                      Map<String,byte[]> baseFiles, ThrowingConsumer<File> dirChecker) throws IOException {
+        final File plainPatch  = new File(fileOld.getAbsolutePath() + ".plain.patch");
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final File baseDir     = new File(fileOld.getAbsolutePath() + ".dir");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), plainPatch, plainOptions);
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), patchFile, options);
+            assertTrue(patchFile.length() + " < " + plainPatch.length(), patchFile.length() < plainPatch.length() * maxRatio);
+
+            assertThat(zipOld.verifyPatch(patchFile), is(true));
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            final Map<String,byte[]> patched = new ZipPatcher(patchedFile).readFully();
+            final Map<String,byte[]> expected = zipNew.readFully();
+            assertThat(patched.keySet(), is(expected.keySet()));
+            for(final String name : expected.keySet()) assertTrue(name, Arrays.equals(patched.get(name), expected.get(name)));
+
+            TestUtils.createDirectory(baseDir, entriesOld);
+            for(final Map.Entry<String,byte[]> baseFile : baseFiles.entrySet()) {
+                final File file = new File(baseDir, baseFile.getKey());
+                Files.createDirectories(file.getParentFile().toPath());
+                Files.write(file.toPath(), baseFile.getValue());
+            }
+            ZipPatcher.patchInPlace(patchFile, baseDir, /*ignoreValidation:*/false);
+            final ZipPatcher.Changes changes = new ZipPatcher(baseDir).getChangesTo(zipNew);
+            assertTrue("patched has no added", changes.added.isEmpty());
+            assertTrue("patched has no removed", changes.removed.isEmpty());
+            assertTrue("patched has no replaced", changes.replaced.isEmpty());
+            if(dirChecker != null) dirChecker.accept(baseDir);
+
+            return new ZipPatcher(patchFile).readFully();
+        } finally {
+            Files.deleteIfExists(plainPatch.toPath());
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+            TestUtils.deleteDirectory(baseDir);
+        }
+    }
+
+    /** Lines of xml with random ids and values, the same for the same number of lines */
+    private static String randomXml(int lines) {
+        final StringBuilder text = new StringBuilder();
+        final Random random = new Random(1);
+        for(int i=0; i<lines; i++) text.append("<entry id=\"").append(random.nextInt()).append("\">").append(Long.toHexString(random.nextLong())).append("</entry>\n");
+        return text.toString();
+    }
+
+    @Test public void testPlanPatch() throws IOException {
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        final String oldText = randomXml(2000);
+        final String newText = oldText.replaceFirst("id=\"", "id=\"+"); // a single edit near the start
+        try {
+            ZipUtil.updateZip(fileOld, Collections.<String,Object>singletonMap("text.xml", toBytes(oldText)));
+            ZipUtil.updateZip(fileNew, Collections.<String,Object>singletonMap("text.xml", toBytes(newText)));
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            final ZipPatcher.Changes changes = zipOld.getChangesTo(zipNew);
+
+            final PatchPlan wholePlan = zipOld.planPatchTo(zipNew, changes, new PatchOptions());
+            assertThat(wholePlan.getEntries().size(), is(6 + 3));
+            assertThat(wholePlan.encodingOf("text.xml"), is(PatchPlan.Encoding.WHOLE));
+            assertThat(wholePlan.getArchiveBytes(), is(fileNew.length()));
+            assertTrue(wholePlan.getBestPatchBytes() < wholePlan.getPatchBytes());
+            assertTrue(wholePlan.recommendsFullArchive()); // all of the large entry is in the patch
+
+            final PatchOptions options = new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE);
+            final PatchPlan plan = zipOld.planPatchTo(zipNew, changes, options);
+            final PatchPlan.EntryPlan textPlan = plan.getEntry("text.xml");
+            assertThat(textPlan.getEncoding(), is(PatchPlan.Encoding.DICTIONARY));
+            assertTrue(textPlan.getCost() + " < " + textPlan.costOf(PatchPlan.Encoding.WHOLE), textPlan.getCost() < textPlan.costOf(PatchPlan.Encoding.WHOLE));
+            assertThat(plan.encodingOf("fileD"), is(PatchPlan.Encoding.WHOLE)); // added, so there is no base
+            assertThat(plan.getEntry("fileD").costOf(PatchPlan.Encoding.DICTIONARY), is(-1L));
+            assertThat(plan.getPatchBytes(), is(plan.getBestPatchBytes()));
+
+            zipOld.generatePatchFileTo(zipNew, changes, patchFile, options);
+            assertTrue(patchFile.length() + " vs estimated " + plan.getPatchBytes(),
+                patchFile.length() > plan.getPatchBytes() / 2 && patchFile.length() < plan.getPatchBytes() * 2);
+            assertThat(asString(new ZipPatcher(patchFile).readFully().get(ZipPatcher.DICTIONARY_ENTRIES_FILENAME)), containsString("text.xml\t"));
+            assertThat(zipOld.planPatchTo(zipNew, changes, options.setMaxPatchRatio(100)).recommendsFullArchive(), is(false));
+            assertThat(zipOld.planPatchTo(zipNew, changes, new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE).setExact(true)).encodingOf("text.xml"),
+                is(PatchPlan.Encoding.WHOLE));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testSimilarSourcePatch() throws IOException {
+        final String oldText = randomXml(500);
+        final String newText = oldText.replace("id=\"12", "id=\"+12"); // moved to another directory and edited
+        ZipUtil.updateZip(fileOld, Collections.<String,Object>singletonMap("old/text.xml", toBytes(oldText)));
+        ZipUtil.updateZip(fileNew, Collections.<String,Object>singletonMap("new/text.xml", toBytes(newText)));
+
+        final PatchOptions plainOptions = new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE);
+        final PatchOptions options = new PatchOptions().setDictionarySize(PresetDictionary.MAX_SIZE).setSimilarSources(true);
+        final Map<String,byte[]> patch = assertSmallerAndApplies(plainOptions, options, 2.0 / 3,
+            Collections.singletonMap("old/text.xml", toBytes(oldText)), dir -> assertFalse(new File(dir, "old").exists()));
+        assertThat(asString(patch.get(ZipPatcher.DICTIONARY_ENTRIES_FILENAME)), containsString("\tdictionary\told/text.xml\n"));
+
+        final ZipPatcher zipOld = new ZipPatcher(fileOld);
+        final ZipPatcher zipNew = new ZipPatcher(fileNew);
+        assertThat(zipOld.planPatchTo(zipNew, zipOld.getChangesTo(zipNew), options).getEntry("new/text.xml").source, is("old/text.xml"));
+    }
+
+    @Test public void testSolidPatch() throws IOException {
+        final Map<String,Object> changed = new LinkedHashMap<>();
+        final Random random = new Random(1);
+        for(int i=0; i<200; i++) changed.put("props/file" + i + ".properties", toBytes("name=file" + i + "\nversion=2." + random.nextInt(10) + "\nenabled=true\n"));
+        changed.put("large.bin", new byte[SolidGroups.MAX_ENTRY_SIZE + 1]); // not in a group
+        ZipUtil.updateZip(fileNew, changed);
+
+        final Map<String,byte[]> patch = assertSmallerAndApplies(new PatchOptions(), new PatchOptions().setSolid(true), 1.0 / 2, Collections.emptyMap(), null);
+        assertTrue(patch.containsKey(".solid_1.zipdiff"));
+        assertTrue(patch.containsKey("large.bin"));
+        assertFalse(patch.containsKey("props/file0.properties"));
+
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), patchFile, new PatchOptions().setSolid(true).setShards(2));
+            fail("Expected IOException");
+        } catch(final IOException e) {
+            assertThat(e.getMessage(), containsString("cannot be solid"));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testClassDeltaPatch() throws IOException {
+        final byte[] oldClass = ClassDeltaTest.compile(ClassDeltaTest.SOURCE_OLD);
+        Assume.assumeTrue("needs a java compiler", oldClass != null);
+        final byte[] newClass = ClassDeltaTest.compile(ClassDeltaTest.SOURCE_NEW);
+        ZipUtil.updateZip(fileOld, Collections.<String,Object>singletonMap("a/Sample.class", oldClass));
+        ZipUtil.updateZip(fileNew, Collections.<String,Object>singletonMap("a/Sample.class", newClass));
+
+        // fileC is not a class, so it uses a dictionary
+        final Map<String,byte[]> patch = assertSmallerAndApplies(new PatchOptions(), new PatchOptions().setClassDeltas(true).setDictionarySize(PresetDictionary.MAX_SIZE), 1,
+            Collections.singletonMap("a/Sample.class", oldClass), null);
+        assertThat(asString(patch.get(ZipPatcher.DICTIONARY_ENTRIES_FILENAME)), containsString("a/Sample.class\t"));
+    }
+
+    @Test public void testPatchFromRanges() throws IOException {
+        final byte[] headerText = toBytes("Header of the new version");
+        TestUtils.createZipFile(fileNew, headerText, entriesNew);
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        final File baseDir     = new File(fileOld.getAbsolutePath() + ".dir");
+        final int[] requests = { 0 };
+        try(final RangeSource fileSource = RangeSource.of(fileNew)) {
+            final RangeSource target = new RangeSource() {
+                @Override public long length() throws IOException { return fileSource.length(); }
+                @Override public InputStream openRange(long offset, long length) throws IOException { requests[0]++; return fileSource.openRange(offset, length); }
+            };
+            final Map<String,byte[]> expected = new ZipPatcher(fileNew).readFully();
+
+            final ZipPatcher.Fetched fetched = new ZipPatcher(fileOld).patchFromRanges(target, patchedFile, /*ignoreValidation:*/false);
+            assertThat(fetched.entries, is(8)); // 6 added, 2 replaced
+            assertThat(fetched.requests, is(2)); // header and the merged entry ranges
+            assertThat(requests[0], is(3)); // including the tail with the central directory
+            assertSameEntries(new ZipPatcher(patchedFile), expected);
+            assertThat(new ZipPatcher(patchedFile).getHeaderData(), is(headerText));
+            assertTrue(fetched.bytes < fileNew.length());
+            assertFalse(new File(patchedFile.getPath() + ".ranges").exists());
+
+            final ZipPatcher.Fetched unmerged = new ZipPatcher(fileOld).setRangeMergeGap(0).patchFromRanges(target, patchedFile, /*ignoreValidation:*/false);
+            assertTrue(unmerged.requests + " > " + fetched.requests, unmerged.requests > fetched.requests);
+            assertTrue(unmerged.bytes <= fetched.bytes);
+            assertSameEntries(new ZipPatcher(patchedFile), expected);
+
+            TestUtils.createDirectory(baseDir, entriesOld);
+            new ZipPatcher(baseDir).patchFromRanges(target, patchedFile, /*ignoreValidation:*/false);
+            assertSameEntries(new ZipPatcher(patchedFile), expected);
+        } finally {
+            Files.deleteIfExists(patchedFile.toPath());
+            TestUtils.deleteDirectory(baseDir);
+        }
+    }
+    private static void assertSameEntries(ZipPatcher zip, Map<String,byte[]> expected) throws IOException {
+        final Map<String,byte[]> actual = zip.readFully();
+        assertThat(new ArrayList<>(actual.keySet()), is(new ArrayList<>(expected.keySet())));
+        expected.forEach((name, data) -> assertThat(name, actual.get(name), is(data)));
+    }
+
+    @Test public void testPatchFromExportedIndex() throws IOException {
+        final File indexFile   = new File(fileOld.getAbsolutePath() + IndexManifest.EXT);
+        final File plainPatch  = new File(fileOld.getAbsolutePath() + ".plain.patch");
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            TestUtils.createZipFile(fileOld, toBytes("header"), entriesOld);
+            TestUtils.createZipFile(fileNew, toBytes("header"), entriesNew);
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.exportIndexTo(indexFile);
+            assertTrue(indexFile.length() < fileOld.length());
+
+            final ZipPatcher fromIndex = new ZipPatcher(indexFile);
+            assertThat(fromIndex.getChangesTo(zipNew).newHeaderData, is(ZipPatcher.CODE_HEADER_NOCHANGE));
+            fromIndex.generatePatchFileTo(zipNew, patchFile);
+            zipOld.generatePatchFileTo(zipNew, plainPatch);
+            assertThat(new ZipPatcher(patchFile).readFully().keySet(), is(new ZipPatcher(plainPatch).readFully().keySet()));
+            assertThat(fromIndex.verifyPatch(patchFile), is(true));
+
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+            final ZipPatcher.Changes changes = new ZipPatcher(patchedFile).getChangesTo(zipNew);
+            assertTrue(changes.added.isEmpty() && changes.removed.isEmpty() && changes.replaced.isEmpty());
+
+            try {
+                fromIndex.generatePatchFileTo(zipNew, fromIndex.getChangesTo(zipNew), patchFile, new PatchOptions().setExact(true));
+                fail("An exact patch needs the base data");
+            } catch(final IOException e) {
+                assertThat(e.getMessage(), containsString("not an index"));
+            }
+        } finally {
+            Files.deleteIfExists(indexFile.toPath());
+            Files.deleteIfExists(plainPatch.toPath());
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testPatchWithMerkleTree() throws IOException {
+        final File patchFile = new File(fileOld.getAbsolutePath() + ".patch");
+        try {
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            assertThat(zipOld.hasSameContentAs(new ZipPatcher(fileOld)), is(true));
+            assertThat(zipOld.hasSameContentAs(zipNew), is(false));
+
+            zipOld.generatePatchFileTo(zipNew, zipOld.getChangesTo(zipNew), patchFile, new PatchOptions().setMerkleTree(true));
+            final MerkleTree tree = ZipPatcher.readMerkleTreeOf(patchFile);
+            assertThat(tree.isEqualTo(zipNew.getMerkleTree()), is(true));
+            assertThat(tree.differencesFrom(zipOld.getMerkleTree()).contains("dirA/dirAC/"), is(true));
+            assertThat(zipOld.verifyPatch(patchFile), is(true));
+
+            zipOld.generatePatchFileTo(zipNew, patchFile);
+            assertThat(ZipPatcher.readMerkleTreeOf(patchFile), is((MerkleTree)null));
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+        }
+    }
+
+    @Test public void testShardsAreBalancedBySize() {
+        final List<ZipEntry> entries = new ArrayList<>();
+        for(final int size : new int[] { 20, 70, 40, 30, 50 }) {
+            final ZipEntry entry = new ZipEntry("size" + size);
+            entry.setSize(size);
+            entries.add(entry);
+        }
+        final List<List<ZipEntry>> shards = PatchShards.balance(entries, 3);
+        for(final List<ZipEntry> shard : shards) {
+            assertThat(shard.stream().mapToLong(ZipEntry::getSize).sum(), is(70L));
+        }
+        assertThat(shards.get(1).get(0).getName(), is("size20")); // original order within a shard
+    }
+
+    @Test public void testPatchSparseZip64() throws IOException {
+        final long largeSize   = ZipIndex.ZIP64_MAGIC + 1024 * 1024;
+        final File patchFile   = new File(fileOld.getAbsolutePath() + ".patch");
+        final File patchedFile = new File(fileOld.getAbsolutePath() + ".patched");
+        try {
+            TestUtils.createSparseZip64File(fileOld, largeSize, entriesOld);
+            TestUtils.createSparseZip64File(fileNew, largeSize, entriesNew);
+            final ZipPatcher zipOld = new ZipPatcher(fileOld);
+            final ZipPatcher zipNew = new ZipPatcher(fileNew);
+            zipOld.generatePatchFileTo(zipNew, patchFile);
+            assertThat(zipOld.verifyPatch(patchFile), is(true));
+            zipOld.patchTo(patchFile, patchedFile, /*ignoreValidation:*/false);
+
+            final ZipIndex patched = ZipIndex.of(patchedFile);
+            final ZipIndex expected = ZipIndex.of(fileNew);
+            assertThat(patched.entries.size(), is(expected.entries.size()));
+            for(final ZipIndex.Entry entry : expected.entries) {
+                final ZipIndex.Entry patchedEntry = patched.entries.stream().filter(e -> e.getName().equals(entry.getName())).findFirst().orElse(null);
+                assertThat(entry.getName(), patchedEntry == null ? -1 : patchedEntry.size, is(entry.size));
+                assertThat(entry.getName(), patchedEntry == null ? -1 : patchedEntry.crc,  is(entry.crc));
+            }
+        } finally {
+            Files.deleteIfExists(patchFile.toPath());
+            Files.deleteIfExists(patchedFile.toPath());
+        }
+    }
+
+    @Test public void testTransform() throws IOException {
+        final File transformed = new File(fileOld.getAbsolutePath() + ".transformed");
+        try {
+            Pools.resetStats();
+            new ZipPatcher(fileOld).transformTo(transformed, (entry, data, output) -> {
+                switch(entry.getName()) {
+                    case "fileA": output.drop(); break;
+                    case "fileB": output.replace(new ZipEntry("fileB2"), new ByteArrayInputStream(toBytes("replaced"))); break;
+                    case "fileC":
+                        try(final OutputStream out = output.rewrite(new ZipEntry("fileC"))) {
+                            out.write(asString(ZipUtil.exhaust(data)).toUpperCase().getBytes());
+                        }
+                        break;
+                    default: break; // keep
+                }
+            });
+            final Pools.Stats stats = Pools.getStats(); // only the data of fileC is read, so inflated
+
+            final ZipIndex original = ZipIndex.of(fileOld);
+            final ZipIndex result = ZipIndex.of(transformed);
+            final Map<String,byte[]> data = new ZipPatcher(transformed).readFully();
+            assertThat(result.entries.size(), is(original.entries.size() - 1));
+            assertThat(data.containsKey("fileA"), is(false));
+            assertThat(data.get("fileB2"), is(toBytes("replaced")));
+            assertThat(data.get("fileC"), is(toBytes("FILEC:1")));
+            assertThat(stats.inflaterHits + stats.inflaterMisses, is(1L));
+            for(final ZipIndex.Entry entry : original.entries) {
+                if(entry.getName().startsWith("file")) continue;
+                final ZipIndex.Entry kept = result.entries.stream().filter(e -> e.getName().equals(entry.getName())).findFirst().orElse(null);
+                assertThat(entry.getName(), kept == null ? null : kept.centralHeader.length, is(entry.centralHeader.length));
+                assertThat(entry.getName(), kept == null ? -1 : kept.getRegionLength(), is(entry.getRegionLength()));
+            }
+        } finally {
+            Files.deleteIfExists(transformed.toPath());
+        }
+    }
+
     private void runPatchTest(ThrowingBiConsumer<ZipPatcher, ZipPatcher> init,
                               ThrowingConsumer<File> patchFileModifier,
                               ThrowingTriConsumer<ZipPatcher,ZipPatcher,ZipPatcher> patchChecker) throws IOException {
@@ -0,0 +1,59 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ZipVerifierTest {
+    private File zipFile;
+
+    @Before
+    public void setup() throws IOException {
+        zipFile = File.createTempFile("test-verify", ".zip");
+        TestUtils.createZipFile(zipFile, ZipPatcherTest.entriesOld);
+    }
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(zipFile.toPath());
+    }
+
+    @Test
+    public void testValidZip() throws IOException {
+        assertThat(ZipVerifier.corruptEntriesOf(zipFile).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testAllCorruptEntriesAreReported() throws IOException {
+        final ZipIndex index = ZipIndex.of(zipFile);
+        final List<ZipIndex.Entry> entries = index.entriesInFileOrder();
+        final ZipIndex.Entry first = entries.get(1);
+        final ZipIndex.Entry second = entries.get(6);
+        try(final RandomAccessFile raf = new RandomAccessFile(zipFile, "rw")) {
+            for(final ZipIndex.Entry entry : Arrays.asList(first, second)) {
+                final long pos = ZipIndex.dataOffsetOf(raf.getChannel(), entry) + (entry.method == ZipEntry.STORED ? 0 : entry.compressedSize / 2);
+                raf.seek(pos);
+                final int b = raf.read();
+                raf.seek(pos);
+                raf.write(b ^ 0x55);
+            }
+        }
+        final List<String> corrupt = ZipVerifier.corruptEntriesOf(index, name -> true, /*threads:*/4);
+        assertThat(corrupt.size(), is(2));
+        assertThat(corrupt.get(0).startsWith(first.getName() + " ("), is(true));
+        assertThat(corrupt.get(1).startsWith(second.getName() + " ("), is(true));
+
+        // only the entries to check are inflated
+        assertThat(ZipVerifier.corruptEntriesOf(index, name -> !name.equals(second.getName()), /*threads:*/1).size(), is(1));
+    }
+}
@@ -0,0 +1,109 @@
+package nl.rutilo.zipdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static nl.rutilo.zipdiff.ZipUtil.toBytes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ZipWriterTest {
+    private File source;
+    private File target;
+
+    @Before
+    public void setup() throws IOException {
+        source = File.createTempFile("test-source", ".zip");
+        target = File.createTempFile("test-target", ".zip");
+        TestUtils.createZipFile(source, ZipPatcherTest.entriesOld);
+    }
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(source.toPath());
+        Files.deleteIfExists(target.toPath());
+    }
+
+    @Test
+    public void testWriteAndCopyRaw() throws IOException {
+        final byte[] headerData = toBytes("header");
+        final ZipIndex sourceIndex = ZipIndex.of(source);
+        final List<ZipIndex.Entry> toCopy = sourceIndex.entriesInFileOrder().subList(2, 6);
+
+        try(final ZipWriter writer = new ZipWriter(target, headerData);
+            final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            writer.writeEntry(new ZipEntry("first"), new ByteArrayInputStream(toBytes("first:1")));
+            writer.copyRaw(channel, toCopy);
+            final ZipEntry stored = new ZipEntry("stored");
+            stored.setMethod(ZipEntry.STORED);
+            writer.writeEntry(stored, new ByteArrayInputStream(toBytes("stored:1")));
+        }
+
+        assertThat(ZipIndex.of(target).readHeaderData(), is(headerData));
+        final Map<String,byte[]> data = new ZipPatcher(source).readFully();
+        try(final ZipFile zip = new ZipFile(target)) {
+            assertThat(zip.size(), is(6));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("first"))), is(toBytes("first:1")));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("stored"))), is(toBytes("stored:1")));
+            for(final ZipIndex.Entry entry : toCopy) {
+                assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry(entry.getName()))), is(data.get(entry.getName())));
+            }
+        }
+    }
+
+    @Test
+    public void testZip64ManyEntries() throws IOException {
+        final int count = 0xFFFF + 10;
+        try(final ZipWriter writer = new ZipWriter(target, toBytes("header"))) {
+            for(int i=0; i<count; i++) {
+                final ZipEntry entry = new ZipEntry("entry" + i);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(String.valueOf(i).length());
+                writer.writeEntry(entry, new ByteArrayInputStream(toBytes(String.valueOf(i))));
+            }
+        }
+        final ZipIndex index = ZipIndex.of(target);
+        assertThat(index.entries.size(), is(count));
+        assertThat(index.zipStart, is(6L));
+        try(final ZipFile zip = new ZipFile(target)) {
+            assertThat(zip.size(), is(count));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("entry" + (count - 1)))), is(toBytes(String.valueOf(count - 1))));
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        final ZipIndex sourceIndex = ZipIndex.of(source);
+        final List<ZipIndex.Entry> toCopy = sourceIndex.entriesInFileOrder().subList(0, 3);
+        final long checkpoint;
+
+        try(final ZipWriter writer = new ZipWriter(target, null);
+            final FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            writer.copyRaw(channel, toCopy);
+            writer.writeEntry(new ZipEntry("new"), new ByteArrayInputStream(toBytes("new:1")));
+            checkpoint = writer.getPosition();
+            writer.writeEntry(new ZipEntry("lost"), new ByteArrayInputStream(toBytes("lost:1")));
+        }
+        try(final ZipWriter writer = ZipWriter.resume(target, 0, checkpoint, i -> i < toCopy.size() ? toCopy.get(i) : null)) {
+            assertThat(writer.getEntryCount(), is(4));
+            writer.writeEntry(new ZipEntry("last"), new ByteArrayInputStream(toBytes("last:1")));
+        }
+        try(final ZipFile zip = new ZipFile(target)) {
+            assertThat(zip.size(), is(5));
+            assertThat(zip.getEntry("lost"), is((ZipEntry)null));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("new"))), is(toBytes("new:1")));
+            assertThat(ZipUtil.exhaust(zip.getInputStream(zip.getEntry("last"))), is(toBytes("last:1")));
+        }
+    }
+}